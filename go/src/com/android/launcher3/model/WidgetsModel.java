@@ -51,6 +51,10 @@ public class WidgetsModel {
         return EMPTY_WIDGET_LIST;
     }
 
+    public static ProviderList queryAllProviders(Context context) {
+        return new ProviderList();
+    }
+
     /**
      * @param packageUser If null, all widgets and shortcuts are updated and returned, otherwise
      *                    only widgets and shortcuts associated with the package/user are.
@@ -60,8 +64,15 @@ public class WidgetsModel {
         return Collections.emptyList();
     }
 
+    public List<ComponentWithLabel> updateFromProviders(LauncherAppState app,
+            ProviderList providers) {
+        return Collections.emptyList();
+    }
+
 
     public void onPackageIconsUpdated(Set<String> packageNames, UserHandle user,
             LauncherAppState app) {
     }
-}
\ No newline at end of file
+
+    public static class ProviderList { }
+}
@@ -19,6 +19,7 @@ import static com.android.launcher3.icons.BaseIconFactory.getFullResDefaultActiv
 import static com.android.launcher3.icons.BitmapInfo.LOW_RES_ICON;
 import static com.android.launcher3.icons.GraphicsUtils.setColorAlphaBound;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -49,12 +50,20 @@ import com.android.launcher3.icons.GraphicsUtils;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.SQLiteCacheHelper;
 
-import java.util.AbstractMap;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 import androidx.annotation.NonNull;
@@ -64,7 +73,32 @@ public abstract class BaseIconCache {
     private static final String TAG = "BaseIconCache";
     private static final boolean DEBUG = false;
 
-    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // Fraction of the app memory class the in-memory cache may use, excluding pinned entries
+    private static final int MEMORY_CACHE_SIZE_DIVISOR = 16;
+
+    // Threads used to decode icons preloaded from the DB
+    private static final int PRELOAD_DECODE_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final ThreadPoolExecutor PRELOAD_DECODE_EXECUTOR = new ThreadPoolExecutor(
+            PRELOAD_DECODE_THREADS, PRELOAD_DECODE_THREADS, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
+    static {
+        PRELOAD_DECODE_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+    // Number of components looked up by one preload query, below the SQLite argument limit
+    private static final int PRELOAD_QUERY_CHUNK_SIZE = 500;
+
+    // Threads used to render icons which aren't in the DB. Each render obtains its own icon
+    // factory, so renders only contend on the cache lock when their results are committed.
+    private static final int RENDER_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    static final ThreadPoolExecutor RENDER_EXECUTOR = new ThreadPoolExecutor(
+            RENDER_THREADS, RENDER_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        RENDER_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+    // Number of rendered entries added to the cache and the DB at once
+    static final int RENDER_BATCH_SIZE = 16;
 
     // Empty class name is used for storing package default entry.
     public static final String EMPTY_CLASS_NAME = ".";
@@ -79,7 +113,8 @@ public abstract class BaseIconCache {
     protected final Context mContext;
     protected final PackageManager mPackageManager;
 
-    private final Map<ComponentKey, CacheEntry> mCache;
+    private final IconMemoryCache mCache;
+    private final boolean mInMemoryCache;
     protected final Handler mWorkerHandler;
 
     protected int mIconDpi;
@@ -90,6 +125,9 @@ public abstract class BaseIconCache {
     private final BitmapFactory.Options mDecodeOptions;
     private final Looper mBgLooper;
 
+    // Incremented to cancel the asynchronous renders of previous update handlers
+    private final AtomicInteger mRenderGeneration = new AtomicInteger();
+
     public BaseIconCache(Context context, String dbFileName, Looper bgLooper,
             int iconDpi, int iconPixelSize, boolean inMemoryCache) {
         mContext = context;
@@ -97,23 +135,11 @@ public abstract class BaseIconCache {
         mPackageManager = context.getPackageManager();
         mBgLooper = bgLooper;
         mWorkerHandler = new Handler(mBgLooper);
+        mInMemoryCache = inMemoryCache;
 
-        if (inMemoryCache) {
-            mCache = new HashMap<>(INITIAL_ICON_CACHE_CAPACITY);
-        } else {
-            // Use a dummy cache
-            mCache = new AbstractMap<ComponentKey, CacheEntry>() {
-                @Override
-                public Set<Entry<ComponentKey, CacheEntry>> entrySet() {
-                    return Collections.emptySet();
-                }
-
-                @Override
-                public CacheEntry put(ComponentKey key, CacheEntry value) {
-                    return value;
-                }
-            };
-        }
+        ActivityManager am = context.getSystemService(ActivityManager.class);
+        mCache = new IconMemoryCache(inMemoryCache,
+                am.getMemoryClass() * 1024L * 1024L / MEMORY_CACHE_SIZE_DIVISOR);
 
         if (BitmapRenderer.USE_HARDWARE_BITMAP && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             mDecodeOptions = new BitmapFactory.Options();
@@ -198,7 +224,7 @@ public abstract class BaseIconCache {
      */
     private void removeFromMemCacheLocked(String packageName, UserHandle user) {
         HashSet<ComponentKey> forDeletion = new HashSet<>();
-        for (ComponentKey key: mCache.keySet()) {
+        for (ComponentKey key: mCache.keys()) {
             if (key.componentName.getPackageName().equals(packageName)
                     && key.user.equals(user)) {
                 forDeletion.add(key);
@@ -254,7 +280,7 @@ public abstract class BaseIconCache {
         final ComponentKey key = new ComponentKey(componentName, user);
         CacheEntry entry = null;
         if (!replaceExisting) {
-            entry = mCache.get(key);
+            entry = mCache.peek(key);
             // We can't reuse the entry if the high-res icon is not present.
             if (entry == null || entry.icon == null || entry.isLowRes()) {
                 entry = null;
@@ -279,11 +305,151 @@ public abstract class BaseIconCache {
      */
     private void addIconToDB(ContentValues values, ComponentName key,
             PackageInfo info, long userSerial) {
+        putVersionValues(values, key, info, userSerial);
+        mIconDb.insertOrReplace(values);
+    }
+
+    private static void putVersionValues(ContentValues values, ComponentName key,
+            PackageInfo info, long userSerial) {
         values.put(IconDB.COLUMN_COMPONENT, key.flattenToString());
         values.put(IconDB.COLUMN_USER, userSerial);
         values.put(IconDB.COLUMN_LAST_UPDATED, info.lastUpdateTime);
         values.put(IconDB.COLUMN_VERSION, info.versionCode);
-        mIconDb.insertOrReplace(values);
+    }
+
+    /**
+     * Renders the icons of {@param objects} in parallel and adds them to the memory cache and
+     * the DB in batches. Objects of pinned components are rendered first, so the workspace is
+     * complete as early as possible. This blocks until all icons have been added.
+     */
+    public <T> void renderEntries(List<T> objects, CachingLogic<T> cachingLogic) {
+        assertWorkerThread();
+        if (objects.isEmpty()) {
+            return;
+        }
+        ArrayList<Future<RenderedEntry>> futures = new ArrayList<>(objects.size());
+        for (T object : sortByPriority(objects, cachingLogic)) {
+            futures.add(RENDER_EXECUTOR.submit(
+                    () -> renderEntry(object, cachingLogic, null, false)));
+        }
+
+        ArrayList<RenderedEntry> batch = new ArrayList<>(RENDER_BATCH_SIZE);
+        for (Future<RenderedEntry> future : futures) {
+            try {
+                batch.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                // The entry is left for cacheLocked
+                Log.e(TAG, "Failed to render icon", e.getCause());
+            }
+            if (batch.size() >= RENDER_BATCH_SIZE) {
+                commitRenderedEntries(batch);
+                batch.clear();
+            }
+        }
+        commitRenderedEntries(batch);
+    }
+
+    /**
+     * Returns a copy of {@param objects} with the objects of pinned components first, keeping
+     * the order otherwise.
+     */
+    synchronized <T> ArrayList<T> sortByPriority(Collection<T> objects,
+            CachingLogic<T> cachingLogic) {
+        ArrayList<T> sorted = new ArrayList<>(objects.size());
+        ArrayList<T> others = new ArrayList<>();
+        for (T object : objects) {
+            ComponentKey key = new ComponentKey(
+                    cachingLogic.getComponent(object), cachingLogic.getUser(object));
+            (mCache.isPinned(key) ? sorted : others).add(object);
+        }
+        sorted.addAll(others);
+        return sorted;
+    }
+
+    /**
+     * Renders the entry of {@param object} without holding the cache lock. This can be called on
+     * any thread.
+     * @param info the package of the object, or null to look it up
+     * @param reuseExisting if true, the icon of a high-res entry in memory is reused
+     */
+    <T> RenderedEntry renderEntry(T object, CachingLogic<T> cachingLogic, PackageInfo info,
+            boolean reuseExisting) {
+        UserHandle user = cachingLogic.getUser(object);
+        ComponentName componentName = cachingLogic.getComponent(object);
+        ComponentKey key = new ComponentKey(componentName, user);
+
+        CacheEntry entry = new CacheEntry();
+        CacheEntry existing = reuseExisting ? getHighResEntry(key) : null;
+        if (existing != null) {
+            existing.applyTo(entry);
+        } else {
+            cachingLogic.loadIcon(mContext, object, entry);
+        }
+        entry.title = cachingLogic.getLabel(object);
+        entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
+
+        if (info == null) {
+            try {
+                info = mPackageManager.getPackageInfo(componentName.getPackageName(),
+                        PackageManager.MATCH_UNINSTALLED_PACKAGES);
+            } catch (NameNotFoundException e) {
+                // Only kept in memory, as the entry can't be validated later
+                return new RenderedEntry(key, entry, null);
+            }
+        }
+        // Compressing the icon is about as expensive as rendering it, so it's done here as well
+        ContentValues values = newContentValues(entry, entry.title.toString(),
+                componentName.getPackageName());
+        putVersionValues(values, componentName, info, getSerialNumberForUser(user));
+        return new RenderedEntry(key, entry, values);
+    }
+
+    private synchronized CacheEntry getHighResEntry(ComponentKey key) {
+        CacheEntry entry = mCache.peek(key);
+        return entry == null || entry.icon == null || entry.isLowRes() ? null : entry;
+    }
+
+    /**
+     * Adds {@param entries} to the memory cache, and writes them to the DB in one transaction.
+     */
+    synchronized void commitRenderedEntries(List<RenderedEntry> entries) {
+        ArrayList<ContentValues> values = new ArrayList<>(entries.size());
+        for (RenderedEntry rendered : entries) {
+            mCache.put(rendered.key, rendered.entry);
+            if (rendered.values != null) {
+                values.add(rendered.values);
+            }
+        }
+        mIconDb.insertOrReplaceAll(values);
+    }
+
+    /**
+     * Cancels the asynchronous renders started before, and returns the generation to pass to
+     * {@link #isRenderCancelled} for renders started from now on.
+     */
+    int cancelAsyncRenders() {
+        return mRenderGeneration.incrementAndGet();
+    }
+
+    boolean isRenderCancelled(int generation) {
+        return mRenderGeneration.get() != generation;
+    }
+
+    static class RenderedEntry {
+
+        final ComponentKey key;
+        final CacheEntry entry;
+        // Null if the entry isn't written to the DB
+        final ContentValues values;
+
+        RenderedEntry(ComponentKey key, CacheEntry entry, ContentValues values) {
+            this.key = key;
+            this.entry = entry;
+            this.values = values;
+        }
     }
 
     public synchronized BitmapInfo getDefaultIcon(UserHandle user) {
@@ -318,9 +484,6 @@ public abstract class BaseIconCache {
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null || (entry.isLowRes() && !useLowResIcon)) {
             entry = new CacheEntry();
-            if (addToMemCache) {
-                mCache.put(cacheKey, entry);
-            }
 
             // Check the DB first.
             T object = null;
@@ -362,6 +525,11 @@ public abstract class BaseIconCache {
                     entry.contentDescription = mPackageManager.getUserBadgedLabel(entry.title, user);
                 }
             }
+
+            // Only add the entry once it is filled out, as the memory cache is sized on insertion
+            if (addToMemCache) {
+                mCache.put(cacheKey, entry);
+            }
         }
         return entry;
     }
@@ -380,7 +548,7 @@ public abstract class BaseIconCache {
         removeFromMemCacheLocked(packageName, user);
 
         ComponentKey cacheKey = getPackageKey(packageName, user);
-        CacheEntry entry = mCache.get(cacheKey);
+        CacheEntry entry = mCache.peek(cacheKey);
 
         // For icon caching, do not go through DB. Just update the in-memory entry.
         if (entry == null) {
@@ -504,6 +672,191 @@ public abstract class BaseIconCache {
         return false;
     }
 
+    /**
+     * Pins the in-memory entries of {@param keys}, replacing the previously pinned ones. Pinned
+     * entries are never evicted from memory.
+     */
+    public synchronized void setPinnedEntries(Collection<ComponentKey> keys) {
+        mCache.setPinned(keys);
+    }
+
+    /**
+     * Evicts in-memory entries depending on {@param level}, see
+     * {@link android.content.ComponentCallbacks2#onTrimMemory}.
+     */
+    public synchronized void onTrimMemory(int level) {
+        mCache.onTrimMemory(level);
+    }
+
+    public synchronized void dumpMemoryCache(String prefix, PrintWriter writer) {
+        mCache.dump(prefix, writer);
+    }
+
+    /**
+     * Loads the entries of {@param components} for {@param user} which are not in the memory
+     * cache yet, using one DB query per chunk of components instead of one query per component.
+     * If {@param lowRes} is true, only the color and label are loaded, as in
+     * {@link #getEntryFromDB}. Otherwise the icons are decoded in parallel without holding the
+     * cache lock, so other callers of the cache aren't blocked in the meantime.
+     * @return the components without an entry in memory or in the DB, in their original order,
+     *         which can be passed on to {@link #renderEntries}
+     */
+    public List<ComponentName> preloadEntries(UserHandle user,
+            Collection<ComponentName> components, boolean lowRes) {
+        assertWorkerThread();
+        if (!mInMemoryCache || components.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        ArrayList<String> missing = new ArrayList<>();
+        synchronized (this) {
+            for (ComponentName cn : components) {
+                CacheEntry entry = mCache.peek(new ComponentKey(cn, user));
+                if (entry == null || (entry.isLowRes() && !lowRes)) {
+                    missing.add(cn.flattenToString());
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        HashSet<String> notFound = new HashSet<>(missing);
+        ArrayList<PreloadedEntry> preloaded = new ArrayList<>();
+        String userSerial = Long.toString(getSerialNumberForUser(user));
+        for (int start = 0; start < missing.size(); start += PRELOAD_QUERY_CHUNK_SIZE) {
+            List<String> chunk = missing.subList(start,
+                    Math.min(start + PRELOAD_QUERY_CHUNK_SIZE, missing.size()));
+            queryPreloadedEntries(chunk, userSerial, lowRes, notFound, preloaded);
+        }
+        ArrayList<ComponentName> notInDb = new ArrayList<>(notFound.size());
+        for (ComponentName cn : components) {
+            if (notFound.remove(cn.flattenToString())) {
+                notInDb.add(cn);
+            }
+        }
+        if (preloaded.isEmpty()) {
+            return notInDb;
+        }
+
+        if (lowRes) {
+            for (PreloadedEntry preloadedEntry : preloaded) {
+                preloadedEntry.decode(mPackageManager, user, null);
+            }
+        } else {
+            decodePreloadedEntries(preloaded, user);
+        }
+
+        synchronized (this) {
+            for (PreloadedEntry preloadedEntry : preloaded) {
+                if (preloadedEntry.componentName == null || preloadedEntry.entry.icon == null) {
+                    continue;
+                }
+                ComponentKey key = new ComponentKey(preloadedEntry.componentName, user);
+                CacheEntry entry = mCache.peek(key);
+                if (entry == null || (entry.isLowRes() && !lowRes)) {
+                    mCache.put(key, preloadedEntry.entry);
+                }
+            }
+        }
+        return notInDb;
+    }
+
+    private void queryPreloadedEntries(List<String> components, String userSerial,
+            boolean lowRes, HashSet<String> notFound, ArrayList<PreloadedEntry> out) {
+        StringBuilder selection = new StringBuilder(IconDB.COLUMN_USER)
+                .append(" = ? AND ").append(IconDB.COLUMN_COMPONENT).append(" IN (");
+        String[] selectionArgs = new String[components.size() + 1];
+        selectionArgs[0] = userSerial;
+        for (int i = 0; i < components.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i + 1] = components.get(i);
+        }
+        selection.append(")");
+
+        Cursor c = null;
+        try {
+            c = mIconDb.query(lowRes ? IconDB.COLUMNS_PRELOAD_LOW_RES : IconDB.COLUMNS_PRELOAD,
+                    selection.toString(), selectionArgs);
+            while (c.moveToNext()) {
+                String component = c.getString(0);
+                if (notFound.remove(component)) {
+                    out.add(new PreloadedEntry(ComponentName.unflattenFromString(component),
+                            c.getInt(1), c.getString(2), lowRes ? null : c.getBlob(3),
+                            lowRes));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.d(TAG, "Error reading icon cache", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void decodePreloadedEntries(ArrayList<PreloadedEntry> preloaded, UserHandle user) {
+        final int taskCount = Math.min(PRELOAD_DECODE_THREADS, preloaded.size());
+        ArrayList<Callable<Void>> tasks = new ArrayList<>(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            final int firstIndex = i;
+            tasks.add(() -> {
+                // The options are written to while decoding, so they can't be shared
+                BitmapFactory.Options options = null;
+                if (mDecodeOptions != null) {
+                    options = new BitmapFactory.Options();
+                    options.inPreferredConfig = mDecodeOptions.inPreferredConfig;
+                }
+                for (int j = firstIndex; j < preloaded.size(); j += taskCount) {
+                    preloaded.get(j).decode(mPackageManager, user, options);
+                }
+                return null;
+            });
+        }
+        try {
+            PRELOAD_DECODE_EXECUTOR.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class PreloadedEntry {
+
+        final ComponentName componentName;
+        final CacheEntry entry = new CacheEntry();
+
+        private final String mTitle;
+        private final byte[] mIconData;
+
+        PreloadedEntry(ComponentName componentName, int color, String title, byte[] iconData,
+                boolean lowRes) {
+            this.componentName = componentName;
+            // Set the alpha to be 255, so that we never have a wrong color
+            entry.color = setColorAlphaBound(color, 255);
+            if (lowRes) {
+                entry.icon = LOW_RES_ICON;
+            }
+            mTitle = title;
+            mIconData = iconData;
+        }
+
+        void decode(PackageManager pm, UserHandle user, BitmapFactory.Options options) {
+            if (mTitle == null) {
+                entry.title = "";
+                entry.contentDescription = "";
+            } else {
+                entry.title = mTitle;
+                entry.contentDescription = pm.getUserBadgedLabel(mTitle, user);
+            }
+            if (mIconData != null) {
+                try {
+                    entry.icon = BitmapFactory.decodeByteArray(
+                            mIconData, 0, mIconData.length, options);
+                } catch (Exception e) { }
+            }
+        }
+    }
+
     static final class IconDB extends SQLiteCacheHelper {
         private final static int RELEASE_VERSION = 28;
 
@@ -522,6 +875,11 @@ public abstract class BaseIconCache {
                 IconDB.COLUMN_ICON_COLOR, IconDB.COLUMN_LABEL, IconDB.COLUMN_ICON };
         public final static String[] COLUMNS_LOW_RES = new String[] {
                 IconDB.COLUMN_ICON_COLOR, IconDB.COLUMN_LABEL };
+        public final static String[] COLUMNS_PRELOAD = new String[] {
+                IconDB.COLUMN_COMPONENT, IconDB.COLUMN_ICON_COLOR, IconDB.COLUMN_LABEL,
+                IconDB.COLUMN_ICON };
+        public final static String[] COLUMNS_PRELOAD_LOW_RES = new String[] {
+                IconDB.COLUMN_COMPONENT, IconDB.COLUMN_ICON_COLOR, IconDB.COLUMN_LABEL };
 
         public IconDB(Context context, String dbFileName, int iconPixelSize) {
             super(context, dbFileName, (RELEASE_VERSION << 16) + iconPixelSize, TABLE_NAME);
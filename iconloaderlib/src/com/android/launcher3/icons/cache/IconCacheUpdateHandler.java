@@ -28,14 +28,16 @@ import android.util.Log;
 import android.util.SparseBooleanArray;
 
 import com.android.launcher3.icons.cache.BaseIconCache.IconDB;
+import com.android.launcher3.icons.cache.BaseIconCache.RenderedEntry;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Stack;
 
 /**
  * Utility class to handle updating the Icon cache
@@ -66,6 +68,8 @@ public class IconCacheUpdateHandler {
     private final SparseBooleanArray mItemsToDelete = new SparseBooleanArray();
     private boolean mFilterMode = MODE_SET_INVALID_ITEMS;
 
+    private final int mRenderGeneration;
+
     IconCacheUpdateHandler(BaseIconCache cache) {
         mIconCache = cache;
 
@@ -73,6 +77,7 @@ public class IconCacheUpdateHandler {
 
         // Remove all active icon update tasks.
         mIconCache.mWorkerHandler.removeCallbacksAndMessages(ICON_UPDATE_TOKEN);
+        mRenderGeneration = mIconCache.cancelAsyncRenders();
 
         createPackageInfoMap();
     }
@@ -132,7 +137,7 @@ public class IconCacheUpdateHandler {
         }
         long userSerial = mIconCache.getSerialNumberForUser(user);
 
-        Stack<T> appsToUpdate = new Stack<>();
+        ArrayList<T> appsToUpdate = new ArrayList<>();
 
         try (Cursor c = mIconCache.mIconDb.query(
                 new String[]{IconDB.COLUMN_ROWID, IconDB.COLUMN_COMPONENT,
@@ -196,10 +201,8 @@ public class IconCacheUpdateHandler {
 
         // Insert remaining apps.
         if (!componentMap.isEmpty() || !appsToUpdate.isEmpty()) {
-            Stack<T> appsToAdd = new Stack<>();
-            appsToAdd.addAll(componentMap.values());
-            new SerializedIconUpdateTask(userSerial, user, appsToAdd, appsToUpdate, cachingLogic,
-                    onUpdateCallback).scheduleNext();
+            new ParallelIconUpdateTask<>(user, cachingLogic, onUpdateCallback)
+                    .start(appsToUpdate, componentMap.values());
         }
     }
 
@@ -233,66 +236,105 @@ public class IconCacheUpdateHandler {
 
 
     /**
-     * A runnable that updates invalid icons and adds missing icons in the DB for the provided
-     * LauncherActivityInfo list. Items are updated/added one at a time, so that the
-     * worker thread doesn't get blocked.
+     * Updates invalid icons and adds missing icons in the DB for the provided app list. The icons
+     * are rendered in parallel off the worker thread, and the results are committed on the worker
+     * thread in batches, so that it doesn't get blocked. Invalid icons are rendered first, with
+     * the icons of pinned components ahead of the others.
      */
-    private class SerializedIconUpdateTask<T> implements Runnable {
-        private final long mUserSerial;
+    private class ParallelIconUpdateTask<T> {
         private final UserHandle mUserHandle;
-        private final Stack<T> mAppsToAdd;
-        private final Stack<T> mAppsToUpdate;
         private final CachingLogic<T> mCachingLogic;
         private final HashSet<String> mUpdatedPackages = new HashSet<>();
         private final OnUpdateCallback mOnUpdateCallback;
 
-        SerializedIconUpdateTask(long userSerial, UserHandle userHandle,
-                Stack<T> appsToAdd, Stack<T> appsToUpdate, CachingLogic<T> cachingLogic,
+        // Guarded by this
+        private final ArrayList<RenderedEntry> mRendered = new ArrayList<>();
+        private int mRemainingUpdates;
+        private int mRemaining;
+
+        private boolean mUpdatesNotified;
+
+        ParallelIconUpdateTask(UserHandle userHandle, CachingLogic<T> cachingLogic,
                 OnUpdateCallback onUpdateCallback) {
             mUserHandle = userHandle;
-            mUserSerial = userSerial;
-            mAppsToAdd = appsToAdd;
-            mAppsToUpdate = appsToUpdate;
             mCachingLogic = cachingLogic;
             mOnUpdateCallback = onUpdateCallback;
         }
 
-        @Override
-        public void run() {
-            if (!mAppsToUpdate.isEmpty()) {
-                T app = mAppsToUpdate.pop();
-                String pkg = mCachingLogic.getComponent(app).getPackageName();
-                PackageInfo info = mPkgInfoMap.get(pkg);
-                mIconCache.addIconToDBAndMemCache(
-                        app, mCachingLogic, info, mUserSerial, true /*replace existing*/);
-                mUpdatedPackages.add(pkg);
-
-                if (mAppsToUpdate.isEmpty() && !mUpdatedPackages.isEmpty()) {
-                    // No more app to update. Notify callback.
-                    mOnUpdateCallback.onPackageIconsUpdated(mUpdatedPackages, mUserHandle);
+        void start(Collection<T> appsToUpdate, Collection<T> appsToAdd) {
+            ArrayList<T> updates = mIconCache.sortByPriority(appsToUpdate, mCachingLogic);
+            ArrayList<T> adds = new ArrayList<>(appsToAdd.size());
+            // We do not check the mPkgInfoMap when generating the appsToAdd. Although every
+            // app should have package info, this is not guaranteed by the api
+            for (T app : mIconCache.sortByPriority(appsToAdd, mCachingLogic)) {
+                if (getPackageInfo(app) != null) {
+                    adds.add(app);
                 }
+            }
+            for (T app : updates) {
+                mUpdatedPackages.add(mCachingLogic.getComponent(app).getPackageName());
+            }
+            synchronized (this) {
+                mRemainingUpdates = updates.size();
+                mRemaining = updates.size() + adds.size();
+            }
+            mUpdatesNotified = updates.isEmpty();
 
-                // Let it run one more time.
-                scheduleNext();
-            } else if (!mAppsToAdd.isEmpty()) {
-                T app = mAppsToAdd.pop();
-                PackageInfo info = mPkgInfoMap.get(mCachingLogic.getComponent(app).getPackageName());
-                // We do not check the mPkgInfoMap when generating the mAppsToAdd. Although every
-                // app should have package info, this is not guaranteed by the api
-                if (info != null) {
-                    mIconCache.addIconToDBAndMemCache(app, mCachingLogic, info,
-                            mUserSerial, false /*replace existing*/);
-                }
+            for (T app : updates) {
+                submit(app, true /* isUpdate */);
+            }
+            for (T app : adds) {
+                submit(app, false /* isUpdate */);
+            }
+        }
 
-                if (!mAppsToAdd.isEmpty()) {
-                    scheduleNext();
+        private PackageInfo getPackageInfo(T app) {
+            return mPkgInfoMap.get(mCachingLogic.getComponent(app).getPackageName());
+        }
+
+        private void submit(T app, boolean isUpdate) {
+            PackageInfo info = getPackageInfo(app);
+            BaseIconCache.RENDER_EXECUTOR.execute(() -> {
+                RenderedEntry rendered = null;
+                if (!mIconCache.isRenderCancelled(mRenderGeneration)) {
+                    rendered = mIconCache.renderEntry(app, mCachingLogic, info,
+                            !isUpdate /* reuseExisting */);
                 }
-            }
+                boolean commit;
+                synchronized (this) {
+                    if (rendered != null) {
+                        mRendered.add(rendered);
+                    }
+                    if (isUpdate) {
+                        mRemainingUpdates--;
+                    }
+                    mRemaining--;
+                    commit = mRendered.size() >= BaseIconCache.RENDER_BATCH_SIZE
+                            || mRemainingUpdates == 0 && isUpdate
+                            || mRemaining == 0;
+                }
+                if (commit && !mIconCache.isRenderCancelled(mRenderGeneration)) {
+                    mIconCache.mWorkerHandler.postAtTime(this::commit, ICON_UPDATE_TOKEN,
+                            SystemClock.uptimeMillis());
+                }
+            });
         }
 
-        public void scheduleNext() {
-            mIconCache.mWorkerHandler.postAtTime(this, ICON_UPDATE_TOKEN,
-                    SystemClock.uptimeMillis() + 1);
+        private void commit() {
+            ArrayList<RenderedEntry> batch;
+            boolean updatesDone;
+            synchronized (this) {
+                batch = new ArrayList<>(mRendered);
+                mRendered.clear();
+                updatesDone = mRemainingUpdates == 0;
+            }
+            mIconCache.commitRenderedEntries(batch);
+
+            if (updatesDone && !mUpdatesNotified) {
+                // No more app to update. Notify callback.
+                mUpdatesNotified = true;
+                mOnUpdateCallback.onPackageIconsUpdated(mUpdatedPackages, mUserHandle);
+            }
         }
     }
 
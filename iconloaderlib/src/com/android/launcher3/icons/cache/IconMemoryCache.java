@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.icons.cache;
+
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_BACKGROUND;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_MODERATE;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+import static android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+
+import android.graphics.Bitmap;
+
+import com.android.launcher3.icons.BitmapInfo;
+import com.android.launcher3.icons.cache.BaseIconCache.CacheEntry;
+import com.android.launcher3.util.ComponentKey;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The in-memory tier of {@link BaseIconCache}: a least recently used map of cache entries bounded
+ * by the size of their bitmaps.
+ *
+ * Entries of pinned components (like the items on the workspace) are never evicted and do not
+ * count towards the limit. This class is not thread safe, it must be accessed with the icon cache
+ * lock held.
+ */
+class IconMemoryCache {
+
+    // Rough size of an entry without its bitmap
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final LinkedHashMap<ComponentKey, Node> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true /* accessOrder */);
+    private final HashSet<ComponentKey> mPinned = new HashSet<>();
+    private final boolean mEnabled;
+    private final long mMaxBytes;
+
+    private long mBytes;
+    private long mPinnedBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param enabled if false, nothing is kept in memory
+     */
+    IconMemoryCache(boolean enabled, long maxBytes) {
+        mEnabled = enabled;
+        mMaxBytes = maxBytes;
+    }
+
+    CacheEntry get(ComponentKey key) {
+        CacheEntry entry = peek(key);
+        if (entry != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Same as {@link #get} but without counting a hit or miss, for the lookups done by the cache
+     * itself rather than on behalf of a caller.
+     */
+    CacheEntry peek(ComponentKey key) {
+        Node node = mEntries.get(key);
+        return node != null ? node.entry : null;
+    }
+
+    /**
+     * Adds {@param entry}, which should not be modified afterwards as its size is only computed
+     * here.
+     */
+    void put(ComponentKey key, CacheEntry entry) {
+        if (!mEnabled) {
+            return;
+        }
+        Node node = new Node(entry);
+        Node previous = mEntries.put(key, node);
+        if (previous != null) {
+            removeSize(key, previous);
+        }
+        addSize(key, node);
+        trimToSize(mMaxBytes);
+    }
+
+    void remove(ComponentKey key) {
+        Node node = mEntries.remove(key);
+        if (node != null) {
+            removeSize(key, node);
+        }
+    }
+
+    /**
+     * Returns a copy of the keys, which is safe to iterate while modifying the cache.
+     */
+    ArrayList<ComponentKey> keys() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    void clear() {
+        mEntries.clear();
+        mBytes = 0;
+        mPinnedBytes = 0;
+    }
+
+    /**
+     * Replaces the set of pinned components.
+     */
+    void setPinned(Collection<ComponentKey> keys) {
+        mPinned.clear();
+        mPinned.addAll(keys);
+        mBytes = 0;
+        mPinnedBytes = 0;
+        for (Map.Entry<ComponentKey, Node> entry : mEntries.entrySet()) {
+            addSize(entry.getKey(), entry.getValue());
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    boolean isPinned(ComponentKey key) {
+        return mPinned.contains(key);
+    }
+
+    /**
+     * Evicts entries depending on {@param level}, one of the trim levels of
+     * {@link android.content.ComponentCallbacks2}.
+     */
+    void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(mMaxBytes / 4);
+        } else if (level == TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "Icon memory cache: entries=" + mEntries.size()
+                + " pinned=" + mPinned.size()
+                + " bytes=" + mBytes + "/" + mMaxBytes
+                + " pinnedBytes=" + mPinnedBytes
+                + " hits=" + mHitCount
+                + " misses=" + mMissCount
+                + " evictions=" + mEvictionCount);
+    }
+
+    private void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<ComponentKey, Node>> iterator = mEntries.entrySet().iterator();
+        while (mBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<ComponentKey, Node> entry = iterator.next();
+            if (mPinned.contains(entry.getKey())) {
+                continue;
+            }
+            iterator.remove();
+            mBytes -= entry.getValue().size;
+            mEvictionCount++;
+        }
+    }
+
+    private void addSize(ComponentKey key, Node node) {
+        if (mPinned.contains(key)) {
+            mPinnedBytes += node.size;
+        } else {
+            mBytes += node.size;
+        }
+    }
+
+    private void removeSize(ComponentKey key, Node node) {
+        if (mPinned.contains(key)) {
+            mPinnedBytes -= node.size;
+        } else {
+            mBytes -= node.size;
+        }
+    }
+
+    private static class Node {
+
+        final CacheEntry entry;
+        final long size;
+
+        Node(CacheEntry entry) {
+            this.entry = entry;
+            Bitmap icon = entry.icon;
+            // The low res icon is shared by all low res entries
+            if (icon == null || icon == BitmapInfo.LOW_RES_ICON) {
+                size = ENTRY_OVERHEAD_BYTES;
+            } else {
+                size = ENTRY_OVERHEAD_BYTES + icon.getAllocationByteCount();
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair
+
+import android.content.ContentValues
+import android.content.Context
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import android.os.Looper
+import ch.deletescape.lawnchair.util.extensions.e
+import com.android.launcher3.util.NoLocaleSQLiteHelper
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.FutureTask
+
+/**
+ * Stores the entries of the collection preferences of [LawnchairPreferences] with one row per
+ * entry, so that changing an entry only writes that entry rather than the whole collection.
+ *
+ * Entries are read synchronously, which is only done once per preference. Writes are applied in
+ * order on the ui worker thread, blocking writes wait for all writes before them.
+ */
+class CollectionPrefStore(context: Context, name: String)
+    : NoLocaleSQLiteHelper(context, name, VERSION) {
+
+    override fun onCreate(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS $TABLE_NAME (" +
+                "$COLUMN_PREF TEXT NOT NULL, " +
+                "$COLUMN_KEY TEXT NOT NULL, " +
+                "$COLUMN_VALUE TEXT NOT NULL, " +
+                "PRIMARY KEY ($COLUMN_PREF, $COLUMN_KEY)" +
+                ");")
+    }
+
+    override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+        // Nothing to migrate yet
+    }
+
+    /**
+     * Returns the entries of [pref].
+     */
+    fun getAll(pref: String): Map<String, String> {
+        val entries = LinkedHashMap<String, String>()
+        try {
+            readableDatabase.query(TABLE_NAME, arrayOf(COLUMN_KEY, COLUMN_VALUE),
+                    "$COLUMN_PREF = ?", arrayOf(pref), null, null, "rowid").use { c ->
+                while (c.moveToNext()) {
+                    entries[c.getString(0)] = c.getString(1)
+                }
+            }
+        } catch (ex: SQLiteException) {
+            e("Failed to read $pref", ex)
+        }
+        return entries
+    }
+
+    /**
+     * Writes [values] and deletes [removed] from the entries of [pref] in one transaction.
+     * @param replace if true, all other entries of [pref] are deleted
+     * @param blocking if true, waits until the changes were written
+     */
+    fun update(pref: String, values: Map<String, String>, removed: Collection<String> = emptyList(),
+               replace: Boolean = false, blocking: Boolean = false) {
+        val write = FutureTask<Unit> { write(pref, values, removed, replace) }
+        if (uiWorkerHandler.looper == Looper.myLooper()) {
+            write.run()
+            return
+        }
+        uiWorkerHandler.post(write)
+        if (blocking) {
+            try {
+                write.get()
+            } catch (ex: InterruptedException) {
+                Thread.currentThread().interrupt()
+            } catch (ex: ExecutionException) {
+                e("Failed to write $pref", ex)
+            }
+        }
+    }
+
+    private fun write(pref: String, values: Map<String, String>, removed: Collection<String>,
+                      replace: Boolean) {
+        try {
+            val db = writableDatabase
+            db.beginTransaction()
+            try {
+                if (replace) {
+                    db.delete(TABLE_NAME, "$COLUMN_PREF = ?", arrayOf(pref))
+                } else {
+                    removed.forEach {
+                        db.delete(TABLE_NAME, "$COLUMN_PREF = ? AND $COLUMN_KEY = ?",
+                                arrayOf(pref, it))
+                    }
+                }
+                values.forEach { (key, value) ->
+                    db.insertWithOnConflict(TABLE_NAME, null, ContentValues().apply {
+                        put(COLUMN_PREF, pref)
+                        put(COLUMN_KEY, key)
+                        put(COLUMN_VALUE, value)
+                    }, SQLiteDatabase.CONFLICT_REPLACE)
+                }
+                db.setTransactionSuccessful()
+            } finally {
+                db.endTransaction()
+            }
+        } catch (ex: SQLiteException) {
+            e("Failed to write $pref", ex)
+        }
+    }
+
+    companion object {
+
+        // Backed up with the settings
+        const val NAME = "lawnchair_collections.db"
+        // Not backed up, like the device prefs
+        const val DEVICE_NAME = "lawnchair_device_collections.db"
+
+        private const val VERSION = 1
+        private const val TABLE_NAME = "entries"
+        private const val COLUMN_PREF = "pref"
+        private const val COLUMN_KEY = "key"
+        private const val COLUMN_VALUE = "value"
+    }
+}
@@ -111,6 +111,10 @@ public class HiddenApiCompat {
         return desc.getIconResource();
     }
 
+    public static boolean hasIconOverride(TaskDescription desc) {
+        return desc.getIconResource() != 0 || desc.getIconFilename() != null;
+    }
+
     public static Bitmap loadTaskDescriptionIcon(TaskDescription desc, int userId) {
         return ActivityManager.TaskDescription.loadTaskDescriptionIcon(desc.getIconFilename(), userId);
     }
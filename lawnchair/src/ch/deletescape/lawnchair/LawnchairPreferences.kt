@@ -67,6 +67,8 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
     private val onChangeListeners: MutableMap<String, MutableSet<OnPreferenceChangeListener>> = HashMap()
     private var onChangeCallback: LawnchairPreferencesChangeCallback? = null
     val sharedPrefs = migratePrefs()
+    private val collectionStore = CollectionPrefStore(context, CollectionPrefStore.NAME)
+    private val deviceCollectionStore = CollectionPrefStore(context, CollectionPrefStore.DEVICE_NAME)
 
     private fun migratePrefs() : SharedPreferences {
         val dir = context.cacheDir.parent
@@ -311,7 +313,7 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         override fun unflattenValue(value: String) = IconPackManager.CustomIconEntry.fromString(value)
     }
     val recentBackups = object : MutableListPref<Uri>(
-            Utilities.getDevicePrefs(context), "pref_recentBackups") {
+            Utilities.getDevicePrefs(context), deviceCollectionStore, "pref_recentBackups") {
         override fun unflattenValue(value: String) = Uri.parse(value)
     }
 
@@ -391,25 +393,58 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         override fun flattenValue(value: String) = value
     }
 
+    /**
+     * A list preference stored with one entry per position in a [CollectionPrefStore], so that
+     * saving it only writes the positions which changed. The entries are loaded when the list is
+     * first accessed.
+     */
     abstract inner class MutableListPref<T>(private val prefs: SharedPreferences,
+                                            private val store: CollectionPrefStore,
                                             private val prefKey: String,
                                             onChange: () -> Unit = doNothing,
-                                            default: List<T> = emptyList()) {
+                                            private val default: List<T> = emptyList()) {
 
         constructor(prefKey: String, onChange: () -> Unit = doNothing, default: List<T> = emptyList())
-                : this(sharedPrefs, prefKey, onChange, default)
+                : this(sharedPrefs, collectionStore, prefKey, onChange, default)
 
-        private val valueList = ArrayList<T>()
+        private val valueList by lazy { loadValues() }
         private val listeners: MutableSet<MutableListPrefChangeListener> = Collections.newSetFromMap(WeakHashMap())
+        // The flattened values in the store, or null if nothing was stored yet
+        private var savedValues: List<String>? = null
 
         init {
-            val arr = JSONArray(prefs.getString(prefKey, getJsonString(default)))
-            (0 until arr.length()).mapTo(valueList) { unflattenValue(arr.getString(it)) }
             if (onChange != doNothing) {
                 onChangeMap[prefKey] = onChange
             }
         }
 
+        private fun loadValues(): ArrayList<T> {
+            val list = ArrayList<T>()
+            val json = prefs.getString(prefKey, null)
+            if (json != null) {
+                // Migrate from the JSON string which used to hold the whole list
+                val arr = JSONArray(json)
+                val values = (0 until arr.length()).map { arr.getString(it) }
+                values.mapTo(list) { unflattenValue(it) }
+                val entries = HashMap<String, String>()
+                values.forEachIndexed { i, value -> entries[i.toString()] = value }
+                entries[KEY_SIZE] = values.size.toString()
+                migrateCollection(prefs, store, prefKey, entries)
+                savedValues = values
+            } else {
+                val entries = store.getAll(prefKey)
+                val size = entries[KEY_SIZE]?.toIntOrNull()
+                if (size != null) {
+                    val values = (0 until size).mapNotNull { entries[it.toString()] }
+                    values.mapTo(list) { unflattenValue(it) }
+                    savedValues = values
+                } else {
+                    list.addAll(default)
+                }
+            }
+            return list
+        }
+
         fun toList() = ArrayList<T>(valueList)
 
         open fun flattenValue(value: T) = value.toString()
@@ -474,18 +509,30 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         }
 
         private fun saveChanges() {
-            @SuppressLint("CommitPrefEdits")
-            val editor = prefs.edit()
-            editor.putString(prefKey, getJsonString(valueList))
-            if (!bulkEditing)
-                commitOrApply(editor, blockingEditing)
+            if (!deferCollectionWrite(prefKey, ::writeChanges)) {
+                writeChanges()
+            }
+            onCollectionChanged(prefKey)
             listeners.forEach { it.onListPrefChanged(prefKey) }
         }
 
-        private fun getJsonString(list: List<T>): String {
-            val arr = JSONArray()
-            list.forEach { arr.put(flattenValue(it)) }
-            return arr.toString()
+        private fun writeChanges() {
+            val values = valueList.map { flattenValue(it) }
+            val saved = savedValues ?: emptyList()
+            val changed = HashMap<String, String>()
+            values.forEachIndexed { i, value ->
+                if (i >= saved.size || saved[i] != value) {
+                    changed[i.toString()] = value
+                }
+            }
+            if (savedValues == null || values.size != saved.size) {
+                changed[KEY_SIZE] = values.size.toString()
+            }
+            val removed = (values.size until saved.size).map { it.toString() }
+            savedValues = values
+            if (changed.isNotEmpty() || removed.isNotEmpty()) {
+                store.update(prefKey, changed, removed, blocking = blockingEditing)
+            }
         }
     }
 
@@ -494,20 +541,45 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         fun onListPrefChanged(key: String)
     }
 
+    /**
+     * A map preference stored with one entry per key in a [CollectionPrefStore], so that changing
+     * a key only writes that key. The entries are loaded when the map is first accessed, values
+     * are only unflattened once they are requested.
+     */
     abstract inner class MutableMapPref<K, V>(private val prefKey: String, onChange: () -> Unit = doNothing) {
-        private val valueMap = HashMap<K, V>()
+        // Guarded by itself
+        private val flatValues by lazy { loadValues() }
+        private val valueCache = HashMap<String, V>()
+        // Keys changed during a bulk edit, written when it ends
+        private val pendingKeys = HashSet<String>()
+        private var pendingClear = false
 
         init {
-            val obj = JSONObject(sharedPrefs.getString(prefKey, "{}"))
-            obj.keys().forEach {
-                valueMap[unflattenKey(it)] = unflattenValue(obj.getString(it))
-            }
             if (onChange !== doNothing) {
                 onChangeMap[prefKey] = onChange
             }
         }
 
-        fun toMap() = HashMap<K, V>(valueMap)
+        private fun loadValues(): HashMap<String, String> {
+            val values = HashMap<String, String>()
+            val json = sharedPrefs.getString(prefKey, null)
+            if (json != null) {
+                // Migrate from the JSON string which used to hold the whole map
+                val obj = JSONObject(json)
+                obj.keys().forEach { values[it] = obj.getString(it) }
+                migrateCollection(sharedPrefs, collectionStore, prefKey, values)
+            } else {
+                values.putAll(collectionStore.getAll(prefKey))
+            }
+            return values
+        }
+
+        fun toMap(): HashMap<K, V> {
+            val keys = synchronized(flatValues) { ArrayList(flatValues.keys) }
+            val map = HashMap<K, V>()
+            keys.forEach { key -> getFlat(key)?.let { map[unflattenKey(key)] = it } }
+            return map
+        }
 
         open fun flattenKey(key: K) = key.toString()
         abstract fun unflattenKey(key: String): K
@@ -516,32 +588,71 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         abstract fun unflattenValue(value: String): V
 
         operator fun set(key: K, value: V?) {
-            if (value != null) {
-                valueMap[key] = value
-            } else {
-                valueMap.remove(key)
+            val flatKey = flattenKey(key)
+            val flatValue = value?.let { flattenValue(it) }
+            synchronized(flatValues) {
+                if (flatValues[flatKey] == flatValue) return
+                if (flatValue != null) {
+                    flatValues[flatKey] = flatValue
+                    valueCache[flatKey] = value
+                } else {
+                    flatValues.remove(flatKey)
+                    valueCache.remove(flatKey)
+                }
+                pendingKeys.add(flatKey)
             }
             saveChanges()
         }
 
-        private fun saveChanges() {
-            val obj = JSONObject()
-            valueMap.entries.forEach { obj.put(flattenKey(it.key), flattenValue(it.value)) }
-            @SuppressLint("CommitPrefEdits")
-            val editor = if (bulkEditing) editor!! else sharedPrefs.edit()
-            editor.putString(prefKey, obj.toString())
-            if (!bulkEditing)
-                commitOrApply(editor, blockingEditing)
+        operator fun get(key: K): V? {
+            return getFlat(flattenKey(key))
         }
 
-        operator fun get(key: K): V? {
-            return valueMap[key]
+        private fun getFlat(flatKey: String): V? {
+            synchronized(flatValues) {
+                valueCache[flatKey]?.let { return it }
+                val flatValue = flatValues[flatKey] ?: return null
+                return unflattenValue(flatValue).also { valueCache[flatKey] = it }
+            }
         }
 
         fun clear() {
-            valueMap.clear()
+            synchronized(flatValues) {
+                if (flatValues.isEmpty()) return
+                flatValues.clear()
+                valueCache.clear()
+                pendingKeys.clear()
+                pendingClear = true
+            }
             saveChanges()
         }
+
+        private fun saveChanges() {
+            if (!deferCollectionWrite(prefKey, ::writeChanges)) {
+                writeChanges()
+            }
+            onCollectionChanged(prefKey)
+        }
+
+        private fun writeChanges() {
+            val values = HashMap<String, String>()
+            val removed = ArrayList<String>()
+            val replace: Boolean
+            synchronized(flatValues) {
+                replace = pendingClear
+                if (replace) {
+                    values.putAll(flatValues)
+                } else {
+                    pendingKeys.forEach { key ->
+                        val value = flatValues[key]
+                        if (value != null) values[key] = value else removed.add(key)
+                    }
+                }
+                pendingKeys.clear()
+                pendingClear = false
+            }
+            collectionStore.update(prefKey, values, removed, replace, blockingEditing)
+        }
     }
 
     open inner class IntSetPref(key: String, defaultValue: Set<Int>, onChange: () -> Unit = doNothing) :
@@ -708,6 +819,39 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         }
     }
 
+    /**
+     * Notifies the listeners of [key] like a change of the shared prefs would, for preferences
+     * which aren't stored there.
+     */
+    private fun onCollectionChanged(key: String) {
+        if (onChangeCallback != null) {
+            runOnMainThread { onSharedPreferenceChanged(sharedPrefs, key) }
+        }
+    }
+
+    /**
+     * Moves [entries] of [key] from the JSON string in [prefs] to [store] in the background. The
+     * JSON string is only removed after the entries were written, which happens in order on the
+     * ui worker thread.
+     */
+    private fun migrateCollection(prefs: SharedPreferences, store: CollectionPrefStore, key: String,
+                                  entries: Map<String, String>) {
+        store.update(key, HashMap(entries), replace = true)
+        uiWorkerHandler.post { prefs.edit().remove(key).apply() }
+    }
+
+    /**
+     * Defers [write] of the collection [key] until the current bulk edit ends, returns false if
+     * there is no bulk edit.
+     */
+    private fun deferCollectionWrite(key: String, write: () -> Unit): Boolean {
+        synchronized(bulkEditCount) {
+            if (!bulkEditing) return false
+            pendingCollectionWrites[key] = write
+            return true
+        }
+    }
+
     // ----------------
     // Helper functions and class
     // ----------------
@@ -726,6 +870,8 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
     var bulkEditing = false
     var editor: SharedPreferences.Editor? = null
     val bulkEditCount = AtomicInteger(0)
+    // Writes of collection prefs changed during the current bulk edit, by key
+    private val pendingCollectionWrites = LinkedHashMap<String, () -> Unit>()
 
     fun beginBlockingEdit() {
         blockingEditing = true
@@ -751,6 +897,8 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
                 bulkEditing = false
                 commitOrApply(editor!!, blockingEditing)
                 editor = null
+                pendingCollectionWrites.values.forEach { it() }
+                pendingCollectionWrites.clear()
             }
         }
     }
@@ -969,6 +1117,9 @@ class LawnchairPreferences(val context: Context) : SharedPreferences.OnSharedPre
         const val CURRENT_VERSION = 200
         const val VERSION_KEY = "config_version"
 
+        // Entry of a list pref in the collection store holding its size
+        private const val KEY_SIZE = "size"
+
         private val ICON_CUSTOMIZATIONS_PREFS = arrayOf(
                 "pref_iconShape",
                 "pref_iconPacks",
@@ -0,0 +1,128 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.adaptive
+
+import android.content.ContentValues
+import android.content.Context
+import android.content.pm.PackageManager
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import ch.deletescape.lawnchair.lawnchairPrefs
+import ch.deletescape.lawnchair.useApplicationContext
+import ch.deletescape.lawnchair.util.SingletonHolder
+import ch.deletescape.lawnchair.util.extensions.e
+import com.android.launcher3.Utilities
+import com.android.launcher3.util.SQLiteCacheHelper
+import java.util.concurrent.TimeUnit
+
+/**
+ * Persists the results of [AdaptiveIconGenerator], so that icons don't need to be analyzed again
+ * when they are regenerated, for example after switching icon packs.
+ *
+ * Entries are keyed by a string describing the source of the icon, which includes the version of
+ * the package providing it, and the generator settings. Entries which weren't written for a while
+ * are dropped, as changing packages or settings leaves stale entries behind.
+ */
+class AdaptiveIconCache(private val context: Context)
+    : SQLiteCacheHelper(context, DB_NAME, VERSION, TABLE_NAME) {
+
+    private var pruned = false
+
+    override fun onCreateTable(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS $TABLE_NAME (" +
+                "$COLUMN_KEY TEXT NOT NULL PRIMARY KEY, " +
+                "$COLUMN_BACKGROUND_COLOR INTEGER NOT NULL DEFAULT 0, " +
+                "$COLUMN_SCALE REAL NOT NULL DEFAULT 0, " +
+                "$COLUMN_FLAGS INTEGER NOT NULL DEFAULT 0, " +
+                "$COLUMN_LAST_UPDATED INTEGER NOT NULL DEFAULT 0" +
+                ");")
+    }
+
+    fun get(key: String): Entry? {
+        return try {
+            query(COLUMNS, "$COLUMN_KEY = ?", arrayOf(key)).use { c ->
+                if (c.moveToFirst()) Entry(c.getInt(0), c.getFloat(1), c.getInt(2)) else null
+            }
+        } catch (ex: SQLiteException) {
+            e("Failed to read adaptive icon cache", ex)
+            null
+        }
+    }
+
+    fun put(key: String, entry: Entry) {
+        val now = System.currentTimeMillis()
+        if (!pruned) {
+            pruned = true
+            delete("$COLUMN_LAST_UPDATED < ?", arrayOf((now - MAX_AGE_MS).toString()))
+        }
+        insertOrReplace(ContentValues().apply {
+            put(COLUMN_KEY, key)
+            put(COLUMN_BACKGROUND_COLOR, entry.backgroundColor)
+            put(COLUMN_SCALE, entry.scale)
+            put(COLUMN_FLAGS, entry.flags)
+            put(COLUMN_LAST_UPDATED, now)
+        })
+    }
+
+    /**
+     * Returns the key for icons of [packageName] described by [parts], or null if the icons won't
+     * be analyzed or the package isn't installed.
+     */
+    fun getKey(packageName: String, vararg parts: Any?): String? {
+        if (!Utilities.ATLEAST_OREO || !context.lawnchairPrefs.enableLegacyTreatment) return null
+        val version = getPackageVersion(packageName) ?: return null
+        return "$packageName/$version/${parts.joinToString("/")}"
+    }
+
+    /**
+     * Returns the version code of [packageName], or null if it isn't installed.
+     */
+    @Suppress("DEPRECATION")
+    fun getPackageVersion(packageName: String): Long? {
+        return try {
+            val info = context.packageManager.getPackageInfo(packageName, 0)
+            if (Utilities.ATLEAST_P) info.longVersionCode else info.versionCode.toLong()
+        } catch (ex: PackageManager.NameNotFoundException) {
+            null
+        }
+    }
+
+    class Entry(val backgroundColor: Int, val scale: Float, val flags: Int)
+
+    companion object : SingletonHolder<AdaptiveIconCache, Context>(
+            useApplicationContext(::AdaptiveIconCache)) {
+
+        private const val DB_NAME = "adaptive_icons.db"
+        private const val VERSION = 1
+        private const val TABLE_NAME = "results"
+
+        private const val COLUMN_KEY = "key"
+        private const val COLUMN_BACKGROUND_COLOR = "background_color"
+        private const val COLUMN_SCALE = "scale"
+        private const val COLUMN_FLAGS = "flags"
+        private const val COLUMN_LAST_UPDATED = "last_updated"
+        private val COLUMNS = arrayOf(COLUMN_BACKGROUND_COLOR, COLUMN_SCALE, COLUMN_FLAGS)
+
+        private val MAX_AGE_MS = TimeUnit.DAYS.toMillis(30)
+
+        const val FLAG_FULL_BLEED = 1
+        const val FLAG_MATCHES_MASK_SHAPE = 1 shl 1
+        const val FLAG_NO_MIXIN_NEEDED = 1 shl 2
+        const val FLAG_BACKGROUND_WHITE = 1 shl 3
+    }
+}
@@ -23,12 +23,12 @@ import static java.lang.Math.round;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.RectF;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
-import android.util.SparseIntArray;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.graphics.ColorUtils;
@@ -45,8 +45,11 @@ import com.android.launcher3.icons.LauncherIcons;
 // TODO: Make this thing async somehow (maybe using some drawable wrappers?)
 public class AdaptiveIconGenerator {
 
-    // Average number of derived colors (based on averages with ~100 icons and performance testing)
-    private static final int NUMBER_OF_COLORS_GUESSTIMATION = 45;
+    // Icons are analyzed at this size at most, as the colors barely change with more pixels
+    private static final int SAMPLE_SIZE = 64;
+    // Colors are posterized to steps of this size per channel, see ColorExtractor#posterize
+    private static final int POSTERIZE_STEP = 25;
+    private static final int POSTERIZE_LEVELS = 255 / POSTERIZE_STEP + 1;
 
     // Found after some experimenting, might be improved with some more testing
     private static final float FULL_BLEED_ICON_SCALE = 1.44f;
@@ -60,6 +63,7 @@ public class AdaptiveIconGenerator {
     private Context context;
     private Drawable icon;
     private Drawable roundIcon;
+    private final String cacheKey;
 
     private final boolean extractColor;
     private final boolean treatWhite;
@@ -77,11 +81,22 @@ public class AdaptiveIconGenerator {
     private float aHeight;
     private int width;
     private float aWidth;
+    private float foregroundScale;
     private Drawable result;
 
     private AdaptiveIconCompat tmp;
 
     public AdaptiveIconGenerator(Context context, @NonNull Drawable icon, @Nullable Drawable roundIcon) {
+        this(context, icon, roundIcon, null);
+    }
+
+    /**
+     * @param cacheKey identifies the icons, including the version of the package they come from,
+     *                 so that the results can be stored in {@link AdaptiveIconCache}. Null if
+     *                 the icons can't be identified, like the ones which change over time.
+     */
+    public AdaptiveIconGenerator(Context context, @NonNull Drawable icon, @Nullable Drawable roundIcon,
+            @Nullable String cacheKey) {
         this.context = context;
         this.icon = AdaptiveIconCompat.wrap(icon);
         this.roundIcon = AdaptiveIconCompat.wrapNullable(roundIcon);
@@ -89,6 +104,10 @@ public class AdaptiveIconGenerator {
         shouldWrap = prefs.getEnableLegacyTreatment();
         extractColor = shouldWrap && prefs.getColorizedLegacyTreatment();
         treatWhite = extractColor && prefs.getEnableWhiteOnlyTreatment();
+        // The results depend on the settings and on the shape the icon is tested against
+        IconShapeManager shapeManager = IconShapeManager.Companion.dangerousGetInstance();
+        this.cacheKey = cacheKey == null || shapeManager == null ? null : cacheKey + "/"
+                + extractColor + "/" + treatWhite + "/" + shapeManager.getIconShape().getHashString();
     }
 
     private void loop() {
@@ -96,183 +115,209 @@ public class AdaptiveIconGenerator {
             if (roundIcon != null && roundIcon instanceof AdaptiveIconCompat) {
                 icon = roundIcon;
             }
-            Drawable extractee = icon;
-            if (extractee instanceof AdaptiveIconCompat) {
-                if (!treatWhite) {
-                    onExitLoop();
-                    return;
-                }
-                AdaptiveIconCompat aid = (AdaptiveIconCompat) extractee;
-                // we still check this separately as this is the only information we need from the background
-                if (!ColorExtractor.isSingleColor(aid.getBackground(), Color.WHITE)) {
-                    onExitLoop();
-                    return;
+            AdaptiveIconCache cache = cacheKey == null
+                    ? null : AdaptiveIconCache.Companion.getInstance(context);
+            AdaptiveIconCache.Entry entry = cache == null ? null : cache.get(cacheKey);
+            if (entry != null) {
+                backgroundColor = entry.getBackgroundColor();
+                foregroundScale = entry.getScale();
+                isFullBleed = (entry.getFlags() & AdaptiveIconCache.FLAG_FULL_BLEED) != 0;
+                matchesMaskShape = (entry.getFlags() & AdaptiveIconCache.FLAG_MATCHES_MASK_SHAPE) != 0;
+                noMixinNeeded = (entry.getFlags() & AdaptiveIconCache.FLAG_NO_MIXIN_NEEDED) != 0;
+                isBackgroundWhite = (entry.getFlags() & AdaptiveIconCache.FLAG_BACKGROUND_WHITE) != 0;
+            } else {
+                analyze();
+                foregroundScale = getForegroundScale();
+                if (cache != null) {
+                    int flags = (isFullBleed ? AdaptiveIconCache.FLAG_FULL_BLEED : 0)
+                            | (matchesMaskShape ? AdaptiveIconCache.FLAG_MATCHES_MASK_SHAPE : 0)
+                            | (noMixinNeeded ? AdaptiveIconCache.FLAG_NO_MIXIN_NEEDED : 0)
+                            | (isBackgroundWhite ? AdaptiveIconCache.FLAG_BACKGROUND_WHITE : 0);
+                    cache.put(cacheKey, new AdaptiveIconCache.Entry(
+                            backgroundColor, foregroundScale, flags));
                 }
-                isBackgroundWhite = true;
-                extractee = aid.getForeground();
             }
+        }
+        onExitLoop();
+    }
 
-            if (extractee == null) {
-                Log.e("AdaptiveIconGenerator", "extractee is null, skipping.");
-                onExitLoop();
+    /**
+     * Computes the background color and the scale of the icon.
+     */
+    private void analyze() {
+        Drawable extractee = icon;
+        if (extractee instanceof AdaptiveIconCompat) {
+            if (!treatWhite) {
                 return;
             }
-
-            LauncherIcons li = LauncherIcons.obtain(context);
-            IconNormalizer normalizer = li.getNormalizer();
-            li.recycle();
-
-            boolean[] outShape = new boolean[1];
-            RectF bounds = new RectF();
-
-            initTmpIfNeeded();
-            scale = normalizer.getScale(extractee, bounds, tmp.getIconMask(), outShape, MIN_VISIBLE_ALPHA);
-            matchesMaskShape = outShape[0];
-
-            if (extractee instanceof ColorDrawable) {
-                isFullBleed = true;
-                fullBleedChecked = true;
+            AdaptiveIconCompat aid = (AdaptiveIconCompat) extractee;
+            // we still check this separately as this is the only information we need from the background
+            if (!ColorExtractor.isSingleColor(aid.getBackground(), Color.WHITE)) {
+                return;
             }
+            isBackgroundWhite = true;
+            extractee = aid.getForeground();
+        }
 
-            width = extractee.getIntrinsicWidth();
-            height = extractee.getIntrinsicHeight();
-            aWidth = width * (1 - (bounds.left + bounds.right));
-            aHeight = height * (1 - (bounds.top + bounds.bottom));
-
-            // Check if the icon is squareish
-            final float ratio = aHeight / aWidth;
-            boolean isSquareish = 0.999 < ratio && ratio < 1.0001;
-            boolean almostSquarish = isSquareish || (0.97 < ratio && ratio < 1.005);
-            if (!isSquareish) {
-                isFullBleed = false;
-                fullBleedChecked = true;
-            }
+        if (extractee == null) {
+            Log.e("AdaptiveIconGenerator", "extractee is null, skipping.");
+            return;
+        }
 
-            final Bitmap bitmap = Utilities.drawableToBitmap(extractee);
-            if (bitmap == null) {
-                onExitLoop();
-                return;
-            }
+        boolean[] outShape = new boolean[1];
+        RectF bounds = new RectF();
 
-            if (!bitmap.hasAlpha()) {
-                isFullBleed = true;
-                fullBleedChecked = true;
-            }
+        initTmpIfNeeded();
+        // Keep the normalizer until it's done, so that it isn't shared with another thread
+        LauncherIcons li = LauncherIcons.obtain(context);
+        IconNormalizer normalizer = li.getNormalizer();
+        scale = normalizer.getScale(extractee, bounds, tmp.getIconMask(), outShape, MIN_VISIBLE_ALPHA);
+        li.recycle();
+        matchesMaskShape = outShape[0];
+
+        if (extractee instanceof ColorDrawable) {
+            isFullBleed = true;
+            fullBleedChecked = true;
+        }
 
-            final int size = height * width;
-            SparseIntArray rgbScoreHistogram = new SparseIntArray(NUMBER_OF_COLORS_GUESSTIMATION);
-            final int[] pixels = new int[size];
-            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-            /*
-             *   Calculate the number of padding pixels around the actual icon (i)
-             *   +----------------+
-             *   |      top       |
-             *   +---+--------+---+
-             *   |   |        |   |
-             *   | l |    i   | r |
-             *   |   |        |   |
-             *   +---+--------+---+
-             *   |     bottom     |
-             *   +----------------+
-             */
-            float adjHeight = height - bounds.top - bounds.bottom;
-            float l = bounds.left * width * adjHeight;
-            float top = bounds.top * height * width;
-            float r = bounds.right * width * adjHeight;
-            float bottom = bounds.bottom * height * width;
-            int addPixels = Math.round(l + top + r + bottom);
-
-            // Any icon with less than 10% transparent pixels (padding excluded) is considered "full-bleed-ish"
-            final int maxTransparent = (int) (round(size * .10) + addPixels);
-            // Any icon with less than 27% transparent pixels (padding excluded) doesn't need a color mix-in
-            final int noMixinScore = (int) (round(size * .27) + addPixels);
-
-            int highScore = 0;
-            int bestRGB = 0;
-            int transparentScore = 0;
-            for (int pixel : pixels) {
-                int alpha = 0xFF & (pixel >> 24);
-                if (alpha < MIN_VISIBLE_ALPHA) {
-                    // Drop mostly-transparent pixels.
-                    transparentScore++;
-                    if (transparentScore > maxTransparent) {
-                        isFullBleed = false;
-                        fullBleedChecked = true;
-                        if (!extractColor && transparentScore > noMixinScore) {
-                            break;
-                        }
+        width = extractee.getIntrinsicWidth();
+        height = extractee.getIntrinsicHeight();
+        aWidth = width * (1 - (bounds.left + bounds.right));
+        aHeight = height * (1 - (bounds.top + bounds.bottom));
+
+        // Check if the icon is squareish
+        final float ratio = aHeight / aWidth;
+        boolean isSquareish = 0.999 < ratio && ratio < 1.0001;
+        boolean almostSquarish = isSquareish || (0.97 < ratio && ratio < 1.005);
+        if (!isSquareish) {
+            isFullBleed = false;
+            fullBleedChecked = true;
+        }
+
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        // Analyze a downsampled copy, the thresholds below are relative to its size
+        final float sampleScale = min(1f, (float) SAMPLE_SIZE / max(width, height));
+        final int sampleWidth = max(1, round(width * sampleScale));
+        final int sampleHeight = max(1, round(height * sampleScale));
+        final Bitmap bitmap = Bitmap.createBitmap(sampleWidth, sampleHeight, Bitmap.Config.ARGB_8888);
+        extractee.setBounds(0, 0, sampleWidth, sampleHeight);
+        extractee.draw(new Canvas(bitmap));
+
+        final int size = sampleHeight * sampleWidth;
+        // Number of opaque pixels per posterized color
+        final int[] rgbScoreHistogram = new int[POSTERIZE_LEVELS * POSTERIZE_LEVELS * POSTERIZE_LEVELS];
+        int numColors = 0;
+        final int[] pixels = new int[size];
+        bitmap.getPixels(pixels, 0, sampleWidth, 0, 0, sampleWidth, sampleHeight);
+        bitmap.recycle();
+
+        /*
+         *   Calculate the number of padding pixels around the actual icon (i)
+         *   +----------------+
+         *   |      top       |
+         *   +---+--------+---+
+         *   |   |        |   |
+         *   | l |    i   | r |
+         *   |   |        |   |
+         *   +---+--------+---+
+         *   |     bottom     |
+         *   +----------------+
+         */
+        float adjHeight = sampleHeight - bounds.top - bounds.bottom;
+        float l = bounds.left * sampleWidth * adjHeight;
+        float top = bounds.top * sampleHeight * sampleWidth;
+        float r = bounds.right * sampleWidth * adjHeight;
+        float bottom = bounds.bottom * sampleHeight * sampleWidth;
+        int addPixels = Math.round(l + top + r + bottom);
+
+        // Any icon with less than 10% transparent pixels (padding excluded) is considered "full-bleed-ish"
+        final int maxTransparent = (int) (round(size * .10) + addPixels);
+        // Any icon with less than 27% transparent pixels (padding excluded) doesn't need a color mix-in
+        final int noMixinScore = (int) (round(size * .27) + addPixels);
+
+        int highScore = 0;
+        int bestRGB = 0;
+        int transparentScore = 0;
+        for (int pixel : pixels) {
+            int alpha = 0xFF & (pixel >> 24);
+            if (alpha < MIN_VISIBLE_ALPHA) {
+                // Drop mostly-transparent pixels.
+                transparentScore++;
+                if (transparentScore > maxTransparent) {
+                    isFullBleed = false;
+                    fullBleedChecked = true;
+                    if (!extractColor && transparentScore > noMixinScore) {
+                        break;
                     }
-                    continue;
-                }
-                // Reduce color complexity.
-                int rgb = ColorExtractor.posterize(pixel);
-                if (rgb < 0) {
-                    // Defensively avoid array bounds violations.
-                    continue;
-                }
-                int currentScore = rgbScoreHistogram.get(rgb) + 1;
-                rgbScoreHistogram.append(rgb, currentScore);
-                if (currentScore > highScore) {
-                    highScore = currentScore;
-                    bestRGB = rgb;
                 }
+                continue;
+            }
+            // Reduce color complexity.
+            int red = (0xff & (pixel >> 16)) / POSTERIZE_STEP;
+            int green = (0xff & (pixel >> 8)) / POSTERIZE_STEP;
+            int blue = (0xff & pixel) / POSTERIZE_STEP;
+            int bucket = (red * POSTERIZE_LEVELS + green) * POSTERIZE_LEVELS + blue;
+            int currentScore = ++rgbScoreHistogram[bucket];
+            if (currentScore == 1) {
+                numColors++;
             }
+            if (currentScore > highScore) {
+                highScore = currentScore;
+                bestRGB = (red * POSTERIZE_STEP) << 16 | (green * POSTERIZE_STEP) << 8
+                        | blue * POSTERIZE_STEP;
+            }
+        }
 
-            // add back the alpha channel
-            bestRGB |= 0xff << 24;
+        // add back the alpha channel
+        bestRGB |= 0xff << 24;
 
-            // not yet checked = not set to false = has to be full bleed, isBackgroundWhite = true = is adaptive
-            isFullBleed |= !fullBleedChecked && !isBackgroundWhite;
+        // not yet checked = not set to false = has to be full bleed, isBackgroundWhite = true = is adaptive
+        isFullBleed |= !fullBleedChecked && !isBackgroundWhite;
 
-            // return early if a mix-in isnt needed
-            noMixinNeeded = !isFullBleed && !isBackgroundWhite && almostSquarish && transparentScore <= noMixinScore;
-            if (isFullBleed || noMixinNeeded) {
-                backgroundColor = bestRGB;
-                onExitLoop();
-                return;
-            }
+        // return early if a mix-in isnt needed
+        noMixinNeeded = !isFullBleed && !isBackgroundWhite && almostSquarish && transparentScore <= noMixinScore;
+        if (isFullBleed || noMixinNeeded) {
+            backgroundColor = bestRGB;
+            return;
+        }
 
-            if (!extractColor) {
-                backgroundColor = Color.WHITE;
-                onExitLoop();
-                return;
-            }
+        if (!extractColor) {
+            backgroundColor = Color.WHITE;
+            return;
+        }
 
-            // "single color"
-            final int numColors = rgbScoreHistogram.size();
-            boolean singleColor = numColors <= SINGLE_COLOR_LIMIT;
-
-            // Convert to HSL to get the lightness and adjust the color
-            final float[] hsl = new float[3];
-            ColorUtils.colorToHSL(bestRGB, hsl);
-            float lightness = hsl[2];
-
-            boolean light = lightness > .5;
-            // Apply dark background to mostly white icons
-            boolean veryLight = lightness > .75 && singleColor;
-            // Apply light background to mostly dark icons
-            boolean veryDark = lightness < .35 && singleColor;
-
-            // Generate pleasant pastel colors for saturated icons
-            if (hsl[1] > .5f && lightness > .2) {
-                hsl[1] = 1f;
-                hsl[2] = .875f;
-                backgroundColor = ColorUtils.HSLToColor(hsl);
-                onExitLoop();
-                return;
-            }
+        // "single color"
+        boolean singleColor = numColors <= SINGLE_COLOR_LIMIT;
+
+        // Convert to HSL to get the lightness and adjust the color
+        final float[] hsl = new float[3];
+        ColorUtils.colorToHSL(bestRGB, hsl);
+        float lightness = hsl[2];
+
+        boolean light = lightness > .5;
+        // Apply dark background to mostly white icons
+        boolean veryLight = lightness > .75 && singleColor;
+        // Apply light background to mostly dark icons
+        boolean veryDark = lightness < .35 && singleColor;
+
+        // Generate pleasant pastel colors for saturated icons
+        if (hsl[1] > .5f && lightness > .2) {
+            hsl[1] = 1f;
+            hsl[2] = .875f;
+            backgroundColor = ColorUtils.HSLToColor(hsl);
+            return;
+        }
 
-            // Adjust color to reach suitable contrast depending on the relationship between the colors
-            final int opaqueSize = size - transparentScore;
-            final float pxPerColor = opaqueSize / (float) numColors;
-            float mixRatio = min(max(pxPerColor / highScore, .15f), .7f);
+        // Adjust color to reach suitable contrast depending on the relationship between the colors
+        final int opaqueSize = size - transparentScore;
+        final float pxPerColor = opaqueSize / (float) numColors;
+        float mixRatio = min(max(pxPerColor / highScore, .15f), .7f);
 
-            // Vary color mix-in based on lightness and amount of colors
-            int fill = (light && !veryLight) || veryDark ? 0xFFFFFFFF : 0xFF333333;
-            backgroundColor = ColorUtils.blendARGB(bestRGB, fill, mixRatio);
-        }
-        onExitLoop();
+        // Vary color mix-in based on lightness and amount of colors
+        int fill = (light && !veryLight) || veryDark ? 0xFFFFFFFF : 0xFF333333;
+        backgroundColor = ColorUtils.blendARGB(bestRGB, fill, mixRatio);
     }
 
     private void onExitLoop() {
@@ -304,21 +349,22 @@ public class AdaptiveIconGenerator {
         }
         initTmpIfNeeded();
         ((FixedScaleDrawable) tmp.getForeground()).setDrawable(icon);
+        ((FixedScaleDrawable) tmp.getForeground()).setScale(foregroundScale);
+        ((ColorDrawable) tmp.getBackground()).setColor(backgroundColor);
+        return tmp;
+    }
+
+    private float getForegroundScale() {
         if (matchesMaskShape || isFullBleed || noMixinNeeded) {
-            float scale;
             if (noMixinNeeded) {
                 float upScale = min(width / aWidth, height / aHeight);
-                scale = NO_MIXIN_ICON_SCALE * upScale;
+                return NO_MIXIN_ICON_SCALE * upScale;
             } else {
                 float upScale = max(width / aWidth, height / aHeight);
-                scale = FULL_BLEED_ICON_SCALE * upScale;
+                return FULL_BLEED_ICON_SCALE * upScale;
             }
-            ((FixedScaleDrawable) tmp.getForeground()).setScale(scale);
-        } else {
-            ((FixedScaleDrawable) tmp.getForeground()).setScale(scale);
         }
-        ((ColorDrawable) tmp.getBackground()).setColor(backgroundColor);
-        return tmp;
+        return scale;
     }
 
     private void initTmpIfNeeded() {
@@ -42,30 +42,30 @@ class AllAppsTabs(private val context: Context) : Iterable<AllAppsTabs.Tab> {
             }
         }
 
-    private val addedApps = ArrayList<ComponentKey>()
+    // The apps of the flowerpot tabs, which aren't part of the compiled membership
+    private val flowerpotApps = HashSet<ComponentKey>()
 
     init {
         reloadTabs()
     }
 
     fun reloadTabs() {
-        addedApps.clear()
+        flowerpotApps.clear()
         tabs.clear()
-        context.lawnchairPrefs.currentTabsModel.getGroups().mapNotNullTo(tabs) {
+        val model = context.lawnchairPrefs.currentTabsModel
+        val membership = model.getMembership()
+        model.getGroups().mapNotNullTo(tabs) {
             when {
                 it is DrawerTabs.ProfileTab -> {
                     if (hasWorkApps != it.profile.matchesAll) {
-                        ProfileTab(createMatcher(addedApps, it.profile.matcher), it)
+                        ProfileTab(createMatcher(membership.hiddenComponents, it.profile.matcher), it)
                     } else null
                 }
                 it is DrawerTabs.CustomTab -> {
-                    if (it.hideFromAllApps.value()) {
-                        addedApps.addAll(it.contents.value())
-                    }
-                    Tab(it.getTitle(), it.getFilter(context).matcher, drawerTab = it)
+                    Tab(it.getTitle(), membership.getMatcher(it), drawerTab = it)
                 }
                 it is FlowerpotTabs.FlowerpotTab && !it.getMatches().isEmpty() -> {
-                    addedApps.addAll(it.getMatches())
+                    flowerpotApps.addAll(it.getMatches())
                     Tab(it.getTitle(), it.getFilter(context).matcher, drawerTab = it)
                 }
                 else -> null
@@ -73,19 +73,12 @@ class AllAppsTabs(private val context: Context) : Iterable<AllAppsTabs.Tab> {
         }
     }
 
-    private fun createTabMatcher(components: Set<ComponentKey>): ItemInfoMatcher {
-        return object : ItemInfoMatcher {
-            override fun matches(info: ItemInfo, cn: ComponentName?): Boolean {
-                return components.contains(ComponentKey(info.targetComponent, info.user))
-            }
-        }
-    }
-
-    private fun createMatcher(components: List<ComponentKey>, base: ItemInfoMatcher? = null): ItemInfoMatcher {
+    private fun createMatcher(hiddenApps: Set<ComponentKey>, base: ItemInfoMatcher? = null): ItemInfoMatcher {
         return object : ItemInfoMatcher {
             override fun matches(info: ItemInfo, cn: ComponentName?): Boolean {
                 if (base?.matches(info, cn) == false) return false
-                return !components.contains(ComponentKey(info.targetComponent, info.user))
+                val key = ComponentKey(info.targetComponent, info.user)
+                return !hiddenApps.contains(key) && !flowerpotApps.contains(key)
             }
         }
     }
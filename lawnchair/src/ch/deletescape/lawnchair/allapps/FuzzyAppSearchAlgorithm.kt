@@ -19,81 +19,94 @@
 
 package ch.deletescape.lawnchair.allapps
 
-import android.content.ComponentName
 import android.content.Context
-import android.os.Handler
-import ch.deletescape.lawnchair.LawnchairAppFilter
-import ch.deletescape.lawnchair.globalsearch.SearchProviderController
-import ch.deletescape.lawnchair.globalsearch.providers.web.WebSearchProvider
 import ch.deletescape.lawnchair.lawnchairPrefs
-import com.android.launcher3.AppFilter
 import com.android.launcher3.AppInfo
 import com.android.launcher3.LauncherAppState
-import com.android.launcher3.allapps.search.AllAppsSearchBarController
-import com.android.launcher3.allapps.search.SearchAlgorithm
-import com.android.launcher3.compat.LauncherAppsCompat
-import com.android.launcher3.compat.UserManagerCompat
+import com.android.launcher3.allapps.search.AppSearchIndex
+import com.android.launcher3.allapps.search.StagedSearchAlgorithm
+import com.android.launcher3.allapps.search.StagedSearchAlgorithm.SearchRequest
+import com.android.launcher3.util.ComponentKey
 import me.xdrop.fuzzywuzzy.FuzzySearch
 import me.xdrop.fuzzywuzzy.ToStringFunction
 
-class FuzzyAppSearchAlgorithm(private val context: Context, private val apps: List<AppInfo>) :
-        SearchAlgorithm {
+/**
+ * Shows exact and prefix title matches first, followed by fuzzy matches once typing pauses.
+ */
+class FuzzyAppSearchAlgorithm(context: Context) : StagedSearchAlgorithm(context) {
 
-    private var resultHandler: Handler = Handler()
-    private var baseFilter: AppFilter = LawnchairAppFilter(context)
+    private val model = LauncherAppState.getInstance(context).model
 
-    override fun doSearch(query: String, callback: AllAppsSearchBarController.Callbacks) {
-        val res = query(context, query, apps, baseFilter).map { it.toComponentKey() }
-        val suggestions = getSuggestions(query)
-        resultHandler.post {
-            callback.onSearchResult(query, ArrayList(res), suggestions)
-        }
+    override fun getAppMatches(request: SearchRequest): ArrayList<ComponentKey> {
+        val query = request.query.toLowerCase()
+        return getIndexes(mContext, model.searchIndex, model.hiddenApps)
+                .flatMap { it.findTitleMatches(request.query) }
+                .sortedBy { getMatchRank(it, query) }
+                .mapTo(ArrayList<ComponentKey>()) { it.toComponentKey() }
     }
 
-    override fun cancel(interruptActiveRequests: Boolean) {
-        if (interruptActiveRequests) {
-            resultHandler.removeCallbacksAndMessages(null)
-        }
-    }
-
-    private fun getSuggestions(query: String): List<String> {
-        val provider = SearchProviderController
-                .getInstance(context).searchProvider
-        return (provider as? WebSearchProvider)?.getSuggestions(query) ?: emptyList()
+    override fun getExtendedAppMatches(
+            request: SearchRequest, appMatches: ArrayList<ComponentKey>): ArrayList<ComponentKey>? {
+        val fuzzyMatches = query(mContext, request.query, model.searchIndex, model.hiddenApps,
+                                 request)
+        if (request.isCancelled) return null
+        val allMatches = ArrayList(appMatches)
+        val appMatchSet = appMatches.toHashSet()
+        fuzzyMatches.map { it.toComponentKey() }.filterTo(allMatches) { it !in appMatchSet }
+        return if (allMatches.size > appMatches.size) allMatches else null
     }
 
     companion object {
         const val MIN_SCORE = 65
 
+        private const val SCORE_BATCH_SIZE = 64
+
         @JvmStatic
-        fun getApps(context: Context, defaultApps: List<AppInfo>,
-                    filter: AppFilter): List<AppInfo> {
-            if (!context.lawnchairPrefs.searchHiddenApps) {
-                return defaultApps
+        @JvmOverloads
+        fun query(context: Context, query: String, searchIndex: AppSearchIndex,
+                  hiddenApps: AppSearchIndex, request: SearchRequest? = null): List<AppInfo> {
+            val indexes = getIndexes(context, searchIndex, hiddenApps)
+            // Only score the apps sharing a trigram or a word start with the query, and fall back
+            // to all of them when none of the candidates is close enough
+            val candidates = indexes.flatMap { it.getFuzzyCandidates(query) }
+            val results = score(query, candidates, request)
+            if (results.isEmpty() && candidates.size < indexes.sumBy { it.size() }) {
+                return score(query, indexes.flatMap { it.apps }, request)
             }
-            val iconCache = LauncherAppState.getInstance(context).iconCache
-            val lac = LauncherAppsCompat.getInstance(context)
-            return UserManagerCompat.getInstance(context).userProfiles.flatMap { user ->
-                val duplicatePreventionCache = mutableListOf<ComponentName>()
-                lac.getActivityList(null, user).filter { info ->
-                    filter.shouldShowApp(info.componentName, user) &&
-                    !duplicatePreventionCache.contains(info.componentName)
-                }.map { info ->
-                    duplicatePreventionCache.add(info.componentName)
-                    AppInfo(context, info, user).apply {
-                        iconCache.getTitleAndIcon(this, false)
-                    }
-                }
+            return results
+        }
+
+        private fun getIndexes(context: Context, searchIndex: AppSearchIndex,
+                               hiddenApps: AppSearchIndex): List<AppSearchIndex> {
+            return if (context.lawnchairPrefs.searchHiddenApps) {
+                listOf(searchIndex, hiddenApps)
+            } else {
+                listOf(searchIndex)
             }
         }
 
-        @JvmStatic
-        fun query(context: Context, query: String, defaultApps: List<AppInfo>,
-                  filter: AppFilter): List<AppInfo> {
-            return FuzzySearch.extractAll(query, getApps(context, defaultApps, filter),
-                                          ToStringFunction<AppInfo> { item ->
-                                              item?.title.toString()
-                                          }, WinklerWeightedRatio(), MIN_SCORE)
+        /**
+         * Ranks exact title matches before title prefix matches, and those before word prefix
+         * matches.
+         */
+        private fun getMatchRank(app: AppInfo, query: String): Int {
+            val title = app.title.toString().toLowerCase()
+            return when {
+                title == query -> 0
+                title.startsWith(query) -> 1
+                else -> 2
+            }
+        }
+
+        private fun score(query: String, apps: List<AppInfo>,
+                          request: SearchRequest?): List<AppInfo> {
+            val toString = ToStringFunction<AppInfo> { item -> item?.title.toString() }
+            val ratio = WinklerWeightedRatio()
+            // Score in batches so that a superseded request can stop early
+            return apps.chunked(SCORE_BATCH_SIZE).flatMap { batch ->
+                if (request?.isCancelled == true) return emptyList()
+                FuzzySearch.extractAll(query, batch, toString, ratio, MIN_SCORE)
+            }
                     .sortedBy { it.referent.title.toString() }
                     .sortedByDescending { it.score }
                     .map { it.referent }
@@ -28,6 +28,7 @@ import android.os.AsyncTask
 import android.os.Environment
 import android.util.Log
 import androidx.core.content.FileProvider
+import ch.deletescape.lawnchair.CollectionPrefStore
 import ch.deletescape.lawnchair.LawnchairLauncher
 import com.android.launcher3.BuildConfig
 import com.android.launcher3.LauncherFiles
@@ -105,6 +106,8 @@ class LawnchairBackup(val context: Context, val uri: Uri) {
             val dbFile = contextWrapper.getDatabasePath(LauncherFiles.LAUNCHER_DB)
             val dir = contextWrapper.cacheDir.parent
             val settingsFile = File(dir, "shared_prefs/" + LauncherFiles.SHARED_PREFERENCES_KEY + ".xml")
+            val collectionsFile = contextWrapper.getDatabasePath(CollectionPrefStore.NAME)
+            var restoredCollections = false
 
             val pfd = context.contentResolver.openFileDescriptor(uri, "r")!!
             val inStream = FileInputStream(pfd.fileDescriptor)
@@ -124,6 +127,11 @@ class LawnchairBackup(val context: Context, val uri: Uri) {
                     } else if (entry.name.endsWith("_preferences.xml")) {
                         if (contents and INCLUDE_SETTINGS == 0) continue
                         settingsFile
+                    } else if (entry.name == collectionsFile.name) {
+                        if (contents and INCLUDE_SETTINGS == 0) continue
+                        context.deleteDatabase(collectionsFile.path)
+                        restoredCollections = true
+                        collectionsFile
                     } else if (entry.name == WALLPAPER_FILE_NAME) {
                         if (contents and INCLUDE_WALLPAPER == 0) continue
                         val wallpaperManager = WallpaperManager.getInstance(context)
@@ -142,6 +150,11 @@ class LawnchairBackup(val context: Context, val uri: Uri) {
                     }
                     out.close()
                 }
+                if (contents and INCLUDE_SETTINGS != 0 && !restoredCollections) {
+                    // Older backups keep the collections in the settings, which are migrated
+                    // again once they are loaded
+                    context.deleteDatabase(collectionsFile.path)
+                }
                 success = true
             } catch (t: Throwable) {
                 Log.e(TAG, "Failed to restore $uri", t)
@@ -305,6 +318,10 @@ class LawnchairBackup(val context: Context, val uri: Uri) {
             if (contents and INCLUDE_SETTINGS != 0) {
                 val dir = contextWrapper.cacheDir.parent
                 files.add(File(dir, "shared_prefs/" + LauncherFiles.SHARED_PREFERENCES_KEY + ".xml"))
+                val collectionsFile = contextWrapper.getDatabasePath(CollectionPrefStore.NAME)
+                if (collectionsFile.exists()) {
+                    files.add(collectionsFile)
+                }
             }
 
             val prefs = Utilities.getLawnchairPrefs(context)
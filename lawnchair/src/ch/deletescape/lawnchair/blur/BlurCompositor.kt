@@ -0,0 +1,81 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.blur
+
+import android.graphics.Bitmap
+import android.graphics.BitmapShader
+import android.graphics.Matrix
+import android.graphics.Shader
+
+/**
+ * Holds the shader of the blurred wallpaper shared by all [ShaderBlurDrawable]s.
+ *
+ * The shader is only created once per wallpaper, which is counted by [generation]. Changes of the
+ * wallpaper offset only update the translation of its matrix. Must only be used on the main thread.
+ */
+class BlurCompositor {
+
+    var generation = 0
+        private set
+    var bitmap: Bitmap? = null
+        private set
+    /**
+     * The shader of [bitmap] for drawables without an offset or scale of their own
+     */
+    var shader: BitmapShader? = null
+        private set
+    private var scale = 1f
+    private var offset = 0f
+    private val matrix = Matrix()
+
+    fun setWallpaper(bitmap: Bitmap?, scale: Float) {
+        if (this.bitmap === bitmap && this.scale == scale) return
+        this.bitmap = bitmap
+        this.scale = scale
+        generation++
+        shader = bitmap?.let { createShader() }
+        updateMatrix()
+    }
+
+    fun setOffset(offset: Float) {
+        if (this.offset == offset) return
+        this.offset = offset
+        updateMatrix()
+    }
+
+    /**
+     * Creates a new shader of [bitmap], for drawables which need their own matrix.
+     */
+    fun createShader(): BitmapShader? {
+        return bitmap?.let { BitmapShader(it, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) }
+    }
+
+    /**
+     * Sets [out] to map [bitmap] to the screen, with the wallpaper scrolled by [offset].
+     */
+    fun getMatrix(offset: Float, out: Matrix) {
+        out.setScale(scale, scale)
+        out.postTranslate(-offset, 0f)
+    }
+
+    private fun updateMatrix() {
+        val shader = shader ?: return
+        getMatrix(offset, matrix)
+        shader.setLocalMatrix(matrix)
+    }
+}
@@ -20,6 +20,7 @@ package ch.deletescape.lawnchair.blur
 import android.app.WallpaperManager
 import android.content.Context
 import android.graphics.*
+import android.graphics.drawable.Drawable
 import android.os.Build
 import android.util.DisplayMetrics
 import android.util.Log
@@ -29,6 +30,7 @@ import ch.deletescape.lawnchair.*
 import ch.deletescape.lawnchair.util.SingletonHolder
 import com.android.launcher3.R
 import com.android.launcher3.Utilities
+import java.io.*
 
 class BlurWallpaperProvider(val context: Context) {
 
@@ -36,11 +38,15 @@ class BlurWallpaperProvider(val context: Context) {
     private val mWallpaperManager: WallpaperManager = WallpaperManager.getInstance(context)
     private val mListeners = ArrayList<Listener>()
     private val mDisplayMetrics = DisplayMetrics()
+    val compositor = BlurCompositor()
     var wallpaper: Bitmap? = null
         private set(value) {
             if (field != value) {
-                field?.recycle()
+                // Synchronized with writing it to the cache
+                field?.let { synchronized(it) { it.recycle() } }
                 field = value
+                val scale = wallpaperScale
+                runOnMainThread { compositor.setWallpaper(value, scale) }
             }
         }
     var placeholder: Bitmap? = null
@@ -59,15 +65,21 @@ class BlurWallpaperProvider(val context: Context) {
         }
     }
 
-    private val mVibrancyPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
     private val mColorPaint = Paint(Paint.ANTI_ALIAS_FLAG)
 
     private val mPath = Path()
 
     private var mWallpaperWidth: Int = 0
+    private var mWallpaperHeight: Int = 0
     private var mDisplayHeight: Int = 0
     var wallpaperYOffset: Float = 0f
         private set
+    /**
+     * The factor [wallpaper] has to be scaled by to cover the screen, as it's only kept at a
+     * fraction of the size it's shown at
+     */
+    var wallpaperScale: Float = DOWNSAMPLE_FACTOR.toFloat()
+        private set
     private val sCanvas = Canvas()
 
     private val mUpdateRunnable = Runnable { updateWallpaper() }
@@ -79,6 +91,7 @@ class BlurWallpaperProvider(val context: Context) {
 
     init {
         isEnabled = getEnabledStatus()
+        compositor.setOffset(mOffset)
 
         wallpaperFilter.applyPrefs(prefs)
         updateAsync()
@@ -110,9 +123,17 @@ class BlurWallpaperProvider(val context: Context) {
         }
 
         wallpaperFilter.applyPrefs(prefs)
+        updateDisplayMetrics()
+
+        val cacheKey = getCacheKey()
+        if (cacheKey != null && loadFromCache(cacheKey)) {
+            Log.d("BWP", "loaded blur from cache")
+            runOnMainThread(::notifyWallpaperChanged)
+            return
+        }
 
-        var wallpaper = try {
-            Utilities.drawableToBitmap(mWallpaperManager.drawable, true) as Bitmap
+        val wallpaper = try {
+            createDownsampledWallpaper(mWallpaperManager.drawable)
         } catch (e: Exception) {
             prefs.enableBlur = false
             runOnMainThread {
@@ -122,18 +143,7 @@ class BlurWallpaperProvider(val context: Context) {
             }
             return
         }
-        wallpaper = scaleToScreenSize(wallpaper)
-        val wallpaperHeight = wallpaper.height
-        wallpaperYOffset = if (wallpaperHeight > mDisplayHeight) {
-            (wallpaperHeight - mDisplayHeight) * 0.5f
-        } else {
-            0f
-        }
-
-        mWallpaperWidth = wallpaper.width
-
         placeholder = createPlaceholder(wallpaper.width, wallpaper.height)
-        wallpaper = applyVibrancy(wallpaper)
         Log.d("BWP", "starting blur")
 
         applyTask = wallpaperFilter.apply(wallpaper).setCallback { result, error ->
@@ -141,7 +151,17 @@ class BlurWallpaperProvider(val context: Context) {
                 this@BlurWallpaperProvider.wallpaper = result
                 Log.d("BWP", "blur done")
                 runOnMainThread(::notifyWallpaperChanged)
-                wallpaper.recycle()
+                // The filter may have blurred the wallpaper in place
+                if (result !== wallpaper) {
+                    wallpaper.recycle()
+                }
+                if (cacheKey != null && result != null) {
+                    val width = mWallpaperWidth
+                    val height = mWallpaperHeight
+                    Utilities.THREAD_POOL_EXECUTOR.execute {
+                        saveToCache(cacheKey, result, width, height)
+                    }
+                }
             } else {
                 if (error is OutOfMemoryError) {
                     prefs.enableBlur = false
@@ -164,28 +184,114 @@ class BlurWallpaperProvider(val context: Context) {
         mListeners.forEach(Listener::onWallpaperChanged)
     }
 
-    private fun scaleToScreenSize(bitmap: Bitmap): Bitmap {
+    private fun updateDisplayMetrics() {
         val wm = context.getSystemService(Context.WINDOW_SERVICE) as WindowManager
-        val display = wm.defaultDisplay
-        display.getRealMetrics(mDisplayMetrics)
+        wm.defaultDisplay.getRealMetrics(mDisplayMetrics)
+        mDisplayHeight = mDisplayMetrics.heightPixels
+    }
 
+    /**
+     * Draws [drawable] with vibrancy applied at 1/[DOWNSAMPLE_FACTOR] of the size it covers the
+     * screen at, so that no screen sized bitmap is allocated before blurring.
+     */
+    private fun createDownsampledWallpaper(drawable: Drawable): Bitmap {
         val width = mDisplayMetrics.widthPixels
         val height = mDisplayMetrics.heightPixels
-        mDisplayHeight = height
-
-        val widthFactor = width.toFloat() / bitmap.width
-        val heightFactor = height.toFloat() / bitmap.height
+        val intrinsicWidth = if (drawable.intrinsicWidth > 0) drawable.intrinsicWidth else width
+        val intrinsicHeight = if (drawable.intrinsicHeight > 0) drawable.intrinsicHeight else height
 
+        val widthFactor = width.toFloat() / intrinsicWidth
+        val heightFactor = height.toFloat() / intrinsicHeight
         val upscaleFactor = Math.max(widthFactor, heightFactor)
-        if (upscaleFactor <= 0) {
-            return bitmap
+
+        val scaledWidth = Math.max(width, (intrinsicWidth * upscaleFactor).ceilToInt())
+        val scaledHeight = Math.max(height, (intrinsicHeight * upscaleFactor).ceilToInt())
+        setWallpaperSize(scaledWidth, scaledHeight)
+
+        val bitmap = Bitmap.createBitmap(
+                Math.max(1, scaledWidth / DOWNSAMPLE_FACTOR),
+                Math.max(1, scaledHeight / DOWNSAMPLE_FACTOR),
+                Bitmap.Config.ARGB_8888)
+        val colorMatrix = ColorMatrix()
+        colorMatrix.setSaturation(VIBRANCY_SATURATION)
+        drawable.colorFilter = ColorMatrixColorFilter(colorMatrix)
+        drawable.setBounds(0, 0, bitmap.width, bitmap.height)
+        drawable.draw(Canvas(bitmap))
+        drawable.colorFilter = null
+        wallpaperScale = scaledWidth.toFloat() / bitmap.width
+        return bitmap
+    }
+
+    private fun setWallpaperSize(width: Int, height: Int) {
+        mWallpaperWidth = width
+        mWallpaperHeight = height
+        wallpaperYOffset = if (height > mDisplayHeight) {
+            (height - mDisplayHeight) * 0.5f
+        } else {
+            0f
+        }
+    }
+
+    /**
+     * Returns the key of the blurred wallpaper for the current wallpaper, display and settings,
+     * or null if the wallpaper can't be identified.
+     */
+    private fun getCacheKey(): String? {
+        val wallpaperId = mWallpaperManager.getWallpaperId(WallpaperManager.FLAG_SYSTEM)
+        if (wallpaperId < 0) return null
+        return "$CACHE_VERSION/$wallpaperId/${mDisplayMetrics.widthPixels}x" +
+                "${mDisplayMetrics.heightPixels}/${prefs.blurRadius}/$DOWNSAMPLE_FACTOR"
+    }
+
+    /**
+     * Restores the blurred wallpaper stored for [key], returns false if there is none.
+     */
+    private fun loadFromCache(key: String): Boolean {
+        val file = getCacheFile()
+        if (!file.exists()) return false
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readUTF() != key) return false
+                val width = input.readInt()
+                val height = input.readInt()
+                val bitmap = BitmapFactory.decodeStream(input) ?: return false
+                setWallpaperSize(width, height)
+                wallpaperScale = width.toFloat() / bitmap.width
+                placeholder = createPlaceholder(bitmap.width, bitmap.height)
+                wallpaper = bitmap
+                return true
+            }
+        } catch (e: IOException) {
+            Log.e("BWP", "Failed to read cached blur", e)
+            return false
         }
+    }
 
-        val scaledWidth = Math.max(width, (bitmap.width * upscaleFactor).ceilToInt())
-        val scaledHeight = Math.max(height, (bitmap.height * upscaleFactor).ceilToInt())
-        return Bitmap.createScaledBitmap(bitmap, scaledWidth, scaledHeight, false)
+    private fun saveToCache(key: String, bitmap: Bitmap, width: Int, height: Int) {
+        val file = getCacheFile()
+        val temp = File(file.path + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+                output.writeUTF(key)
+                output.writeInt(width)
+                output.writeInt(height)
+                synchronized(bitmap) {
+                    // The blur might have been replaced in the meantime
+                    if (bitmap.isRecycled) throw IOException("Bitmap was recycled")
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, output)
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw IOException("Failed to replace $file")
+            }
+        } catch (e: IOException) {
+            Log.e("BWP", "Failed to cache blur", e)
+            temp.delete()
+        }
     }
 
+    private fun getCacheFile() = File(context.cacheDir, CACHE_FILE_NAME)
+
     private fun createPlaceholder(width: Int, height: Int): Bitmap {
         val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
         sCanvas.setBitmap(bitmap)
@@ -209,25 +315,6 @@ class BlurWallpaperProvider(val context: Context) {
         Utilities.THREAD_POOL_EXECUTOR.execute(mUpdateRunnable)
     }
 
-    private fun applyVibrancy(wallpaper: Bitmap): Bitmap {
-        val width = wallpaper.width
-        val height = wallpaper.height
-
-        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
-        val canvas = Canvas()
-        canvas.setBitmap(bitmap)
-
-        val colorMatrix = ColorMatrix()
-        colorMatrix.setSaturation(1.25f)
-        val filter = ColorMatrixColorFilter(colorMatrix)
-        mVibrancyPaint.colorFilter = filter
-        canvas.drawBitmap(wallpaper, 0f, 0f, mVibrancyPaint)
-
-        wallpaper.recycle()
-
-        return bitmap
-    }
-
     fun addListener(listener: Listener) {
         mListeners.add(listener)
         listener.onOffsetChanged(mOffset)
@@ -263,6 +350,7 @@ class BlurWallpaperProvider(val context: Context) {
 
         mOffset = Utilities.boundToRange((-xPixels).toFloat(),
                 0f, (mWallpaperWidth - mDisplayMetrics.widthPixels).toFloat())
+        compositor.setOffset(mOffset)
 
         for (listener in ArrayList(mListeners)) {
             listener.onOffsetChanged(mOffset)
@@ -290,6 +378,10 @@ class BlurWallpaperProvider(val context: Context) {
         const val BLUR_ALLAPPS = 4
         const val DOWNSAMPLE_FACTOR = 8
 
+        private const val VIBRANCY_SATURATION = 1.25f
+        private const val CACHE_FILE_NAME = "blurred_wallpaper"
+        private const val CACHE_VERSION = 1
+
         var isEnabled: Boolean = false
         private var sEnabledFlag: Int = 0
 
@@ -24,24 +24,19 @@ import android.graphics.*
 class ShaderBlurDrawable internal constructor(
         private val blurProvider: BlurWallpaperProvider) : BlurDrawable() {
 
+    private val compositor = blurProvider.compositor
     private var blurAlpha = 255
     private val blurPaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
-    private val shaderMatrix = Matrix()
-    private var blurShader: Shader? = null
-    private var blurBitmap: Bitmap? = null
-        set(value) {
-            if (field != value) {
-                field = value
-                blurShader = value?.let { BitmapShader(it, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP) }
-                blurPaint.shader = blurShader
-            }
-        }
+    // Only used while this drawable is offset or scaled on its own
+    private var ownShader: BitmapShader? = null
+    private val ownMatrix = Matrix()
+    private val tmpMatrix = Matrix()
+    private var generation = -1
     private var blurOffset = 0f
         set(value) {
             if (field != value) {
                 field = value
                 invalidateSelf()
-                blurPathValid = false
             }
         }
     private var wallpaperOffsetX = 0f
@@ -71,6 +66,7 @@ class ShaderBlurDrawable internal constructor(
             }
         }
     private val blurBounds = RectF()
+    // In screen space, so that it only depends on the bounds and the radii
     private val blurPath = Path()
     private var blurPathValid = false
         set(value) {
@@ -84,36 +80,56 @@ class ShaderBlurDrawable internal constructor(
 
     override fun draw(canvas: Canvas, noRadius: Boolean) {
         if (blurAlpha == 0) return
-        blurBitmap = blurProvider.wallpaper
-        setupBlurPath()
-
-        canvas.save()
-        if (blurScaleX != 0f || blurScaleY != 0f) {
-            shaderMatrix.setScale(
-                    blurScaleX, blurScaleY,
-                    blurPivotX + blurBounds.left, blurPivotY + blurBounds.top)
-            blurShader?.setLocalMatrix(shaderMatrix)
-        } else {
-            blurShader?.setLocalMatrix(null)
-        }
-        canvas.translate(-blurOffset, 0f)
+        if (!setupShader()) return
+
         if (noRadius) {
-            canvas.drawRect(blurBounds.left + blurOffset, blurBounds.top,
-                            blurBounds.right + blurOffset, blurBounds.bottom,
-                            blurPaint)
+            canvas.drawRect(blurBounds, blurPaint)
         } else {
+            setupBlurPath()
             canvas.drawPath(blurPath, blurPaint)
         }
-        canvas.restore()
+    }
+
+    /**
+     * Points the paint to the shared shader if possible, returns false if there is nothing to draw.
+     */
+    private fun setupShader(): Boolean {
+        if (generation != compositor.generation) {
+            generation = compositor.generation
+            ownShader = null
+        }
+        val bitmap = compositor.bitmap
+        if (bitmap == null || bitmap.isRecycled) return false
+
+        val shader = if (viewOffsetX == 0f && blurScaleX == 0f && blurScaleY == 0f) {
+            compositor.shader
+        } else {
+            compositor.getMatrix(0f, tmpMatrix)
+            if (blurScaleX != 0f || blurScaleY != 0f) {
+                tmpMatrix.postScale(
+                        blurScaleX, blurScaleY,
+                        blurPivotX + blurBounds.left, blurPivotY + blurBounds.top)
+            }
+            tmpMatrix.postTranslate(-blurOffset, 0f)
+            val shader = ownShader ?: compositor.createShader().also { ownShader = it }
+            if (tmpMatrix != ownMatrix || shader !== blurPaint.shader) {
+                ownMatrix.set(tmpMatrix)
+                shader?.setLocalMatrix(ownMatrix)
+            }
+            shader
+        }
+        if (blurPaint.shader !== shader) {
+            blurPaint.shader = shader
+        }
+        return true
     }
 
     private fun setupBlurPath() {
         if (blurPathValid) return
 
         blurPath.reset()
-        blurPath.addRoundRect(blurBounds.left + blurOffset, blurBounds.top,
-                              blurBounds.right + blurOffset, blurBounds.bottom,
-                              radii, Path.Direction.CW)
+        blurPath.addRoundRect(blurBounds, radii, Path.Direction.CW)
+        blurPathValid = true
     }
 
     override fun setBounds(left: Int, top: Int, right: Int, bottom: Int) {
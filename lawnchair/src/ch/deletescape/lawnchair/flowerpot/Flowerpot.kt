@@ -42,20 +42,16 @@ class Flowerpot(private val context: Context, val name: String, private val load
     private var loaded = false
     val rules: MutableSet<Rule> = mutableSetOf()
     val size get() = rules.size
-    lateinit var apps: FlowerpotApps
+    val apps = FlowerpotApps()
 
+    @Synchronized
     fun ensureLoaded() {
         if (!loaded) {
-            load()
+            loader(this)
             loaded = true
         }
     }
 
-    private fun load() {
-        loader(this)
-        apps = FlowerpotApps(context, this)
-    }
-
     /**
      * Load all data from
      */
@@ -110,6 +106,7 @@ class Flowerpot(private val context: Context, val name: String, private val load
     class Manager private constructor(private val context: Context) {
 
         private val pots = mutableMapOf<String, Flowerpot>()
+        private val categorizer by lazy { FlowerpotCategorizer(context, pots.values) }
 
         init {
             loadAssets()
@@ -130,12 +127,13 @@ class Flowerpot(private val context: Context, val name: String, private val load
          * Get a pot by its name, returns null if no pot with this name has been loaded
          *
          * @param name (code) name of the flowerpot, usually the filename of a flowerpot file
-         * @param forceLoad Whether or not the pot should be loaded if it hasn't already been
+         * @param forceLoad Whether or not the pots should be loaded and their apps categorised if
+         * that hasn't already been done
          * @return the pot or null if none exists with this name
          */
         fun getPot(name: String, forceLoad: Boolean = true) = pots[name]?.apply {
             if (forceLoad) {
-                ensureLoaded()
+                categorizer.ensureCategorized()
             }
         }
 
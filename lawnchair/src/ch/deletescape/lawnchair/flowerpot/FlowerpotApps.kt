@@ -17,80 +17,24 @@
 
 package ch.deletescape.lawnchair.flowerpot
 
-import android.content.Context
-import android.content.Intent
-import android.content.pm.ShortcutInfo
 import android.os.UserHandle
-import ch.deletescape.lawnchair.flowerpot.rules.CodeRule
-import ch.deletescape.lawnchair.flowerpot.rules.Rule
-import com.android.launcher3.compat.LauncherAppsCompat
-import com.android.launcher3.compat.UserManagerCompat
 import com.android.launcher3.util.ComponentKey
 import com.android.launcher3.util.PackageUserKey
 
-class FlowerpotApps(private val context: Context, private val pot: Flowerpot) : LauncherAppsCompat.OnAppsChangedCallbackCompat {
+/**
+ * The apps matching a pot, which are filled in by [FlowerpotCategorizer] for all pots at once
+ */
+class FlowerpotApps {
 
-    private val launcherApps = LauncherAppsCompat.getInstance(context)
-    private val intentMatches = mutableSetOf<String>()
     val matches = mutableSetOf<ComponentKey>()
     val packageMatches = mutableSetOf<PackageUserKey>()
 
-    init {
-        filterApps()
-        launcherApps.addOnAppsChangedCallback(this)
-    }
-
-    private fun filterApps() {
-        queryIntentMatches()
-        matches.clear()
-        packageMatches.clear()
-        UserManagerCompat.getInstance(context).userProfiles.forEach {
-            addFromPackage(null, it)
-        }
-    }
-
-    private fun addFromPackage(packageName: String?, user: UserHandle) {
-        launcherApps.getActivityList(packageName, user).forEach {
-            if (intentMatches.contains(it.componentName.packageName)
-                    || pot.rules.contains(Rule.Package(it.componentName.packageName))) {
-                matches.add(ComponentKey(it.componentName, it.user))
-                packageMatches.add(PackageUserKey(it.componentName.packageName, it.user))
-            } else {
-                for (rule in pot.rules.filterIsInstance<Rule.CodeRule>()) {
-                    if (CodeRule.get(rule.rule, *rule.args).matches(it.applicationInfo)) {
-                        matches.add(ComponentKey(it.componentName, it.user))
-                        packageMatches.add(PackageUserKey(it.componentName.packageName, it.user))
-                        break
-                    }
-                }
-            }
-        }
-    }
-
-    private fun queryIntentMatches() {
-        intentMatches.clear()
-        for (rule in pot.rules.filterIsInstance<Rule.IntentCategory>()) {
-            context.packageManager.queryIntentActivities(Intent(Intent.ACTION_MAIN).addCategory(rule.category), 0).forEach {
-                intentMatches.add(it.activityInfo.packageName)
-            }
-        }
-        for (rule in pot.rules.filterIsInstance<Rule.IntentAction>()) {
-            context.packageManager.queryIntentActivities(Intent(rule.action), 0).forEach {
-                intentMatches.add(it.activityInfo.packageName)
-            }
-        }
-    }
-
-    override fun onPackageAdded(packageName: String, user: UserHandle) {
-        queryIntentMatches()
-        addFromPackage(packageName, user)
-    }
-
-    override fun onPackageChanged(packageName: String, user: UserHandle) {
-        onPackageAdded(packageName, user)
+    internal fun add(key: ComponentKey) {
+        matches.add(key)
+        packageMatches.add(PackageUserKey(key.componentName.packageName, key.user))
     }
 
-    override fun onPackageRemoved(packageName: String, user: UserHandle) {
+    internal fun removePackage(packageName: String, user: UserHandle) {
         matches.removeAll {
             it.componentName.packageName == packageName && it.user == user
         }
@@ -99,23 +43,8 @@ class FlowerpotApps(private val context: Context, private val pot: Flowerpot) :
         }
     }
 
-    override fun onPackagesAvailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
-        packageNames.forEach { onPackageAdded(it, user) }
-    }
-
-    override fun onPackagesUnavailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
-        packageNames.forEach { onPackageRemoved(it, user) }
-    }
-
-    override fun onPackagesSuspended(packageNames: Array<out String>, user: UserHandle) {
-        packageNames.forEach { onPackageRemoved(it, user) }
-    }
-
-    override fun onPackagesUnsuspended(packageNames: Array<out String>, user: UserHandle) {
-        packageNames.forEach { onPackageAdded(it, user) }
-    }
-
-    override fun onShortcutsChanged(packageName: String?, shortcuts: MutableList<ShortcutInfo>?, user: UserHandle?) {
-
+    internal fun clear() {
+        matches.clear()
+        packageMatches.clear()
     }
 }
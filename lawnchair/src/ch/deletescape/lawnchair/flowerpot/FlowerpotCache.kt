@@ -0,0 +1,123 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.flowerpot
+
+import android.content.ContentValues
+import android.content.Context
+import android.content.pm.PackageInfo
+import android.database.sqlite.SQLiteDatabase
+import android.database.sqlite.SQLiteException
+import ch.deletescape.lawnchair.util.extensions.e
+import com.android.launcher3.Utilities
+import com.android.launcher3.util.SQLiteCacheHelper
+
+/**
+ * Persists which intent rules each package matched, as querying the package manager is by far
+ * the most expensive part of categorising apps.
+ *
+ * Entries are only valid for the version of the package and the [FlowerpotIndex.fingerprint] they
+ * were written for.
+ */
+class FlowerpotCache(context: Context) : SQLiteCacheHelper(context, DB_NAME, VERSION, TABLE_NAME) {
+
+    override fun onCreateTable(db: SQLiteDatabase) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS $TABLE_NAME (" +
+                "$COLUMN_PACKAGE TEXT NOT NULL PRIMARY KEY, " +
+                "$COLUMN_VERSION_CODE INTEGER NOT NULL DEFAULT 0, " +
+                "$COLUMN_LAST_UPDATED INTEGER NOT NULL DEFAULT 0, " +
+                "$COLUMN_FINGERPRINT INTEGER NOT NULL DEFAULT 0, " +
+                "$COLUMN_MASK INTEGER NOT NULL DEFAULT 0" +
+                ");")
+    }
+
+    /**
+     * Returns all entries written for [fingerprint], by package name.
+     */
+    fun getAll(fingerprint: Int): Map<String, Entry> {
+        val entries = HashMap<String, Entry>()
+        try {
+            query(COLUMNS, "$COLUMN_FINGERPRINT = ?", arrayOf(fingerprint.toString())).use { c ->
+                while (c.moveToNext()) {
+                    entries[c.getString(0)] = Entry(c.getLong(1), c.getLong(2), c.getLong(3))
+                }
+            }
+        } catch (ex: SQLiteException) {
+            e("Failed to read flowerpot cache", ex)
+        }
+        return entries
+    }
+
+    fun get(packageName: String, fingerprint: Int): Entry? {
+        return try {
+            query(COLUMNS, "$COLUMN_PACKAGE = ? AND $COLUMN_FINGERPRINT = ?",
+                    arrayOf(packageName, fingerprint.toString())).use { c ->
+                if (c.moveToFirst()) Entry(c.getLong(1), c.getLong(2), c.getLong(3)) else null
+            }
+        } catch (ex: SQLiteException) {
+            e("Failed to read flowerpot cache", ex)
+            null
+        }
+    }
+
+    /**
+     * Writes all of [entries] in a single transaction.
+     */
+    fun putAll(entries: Map<String, Entry>, fingerprint: Int) {
+        insertOrReplaceAll(entries.map { (packageName, entry) ->
+            ContentValues().apply {
+                put(COLUMN_PACKAGE, packageName)
+                put(COLUMN_VERSION_CODE, entry.versionCode)
+                put(COLUMN_LAST_UPDATED, entry.lastUpdateTime)
+                put(COLUMN_FINGERPRINT, fingerprint)
+                put(COLUMN_MASK, entry.mask)
+            }
+        })
+    }
+
+    fun remove(packageName: String) {
+        delete("$COLUMN_PACKAGE = ?", arrayOf(packageName))
+    }
+
+    class Entry(val versionCode: Long, val lastUpdateTime: Long, val mask: Long) {
+
+        constructor(info: PackageInfo, mask: Long) : this(getVersionCode(info), info.lastUpdateTime, mask)
+
+        fun isCurrent(info: PackageInfo) =
+                versionCode == getVersionCode(info) && lastUpdateTime == info.lastUpdateTime
+    }
+
+    companion object {
+
+        private const val DB_NAME = "flowerpot.db"
+        private const val VERSION = 1
+        private const val TABLE_NAME = "packages"
+
+        private const val COLUMN_PACKAGE = "package"
+        private const val COLUMN_VERSION_CODE = "version_code"
+        private const val COLUMN_LAST_UPDATED = "last_updated"
+        private const val COLUMN_FINGERPRINT = "fingerprint"
+        private const val COLUMN_MASK = "mask"
+        private val COLUMNS = arrayOf(COLUMN_PACKAGE, COLUMN_VERSION_CODE, COLUMN_LAST_UPDATED,
+                COLUMN_MASK)
+
+        @Suppress("DEPRECATION")
+        private fun getVersionCode(info: PackageInfo): Long {
+            return if (Utilities.ATLEAST_P) info.longVersionCode else info.versionCode.toLong()
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.flowerpot
+
+import android.content.Context
+import android.content.pm.LauncherActivityInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.content.pm.ShortcutInfo
+import android.os.Process
+import android.os.UserHandle
+import ch.deletescape.lawnchair.runOnMainThread
+import com.android.launcher3.compat.LauncherAppsCompat
+import com.android.launcher3.compat.UserManagerCompat
+import com.android.launcher3.util.ComponentKey
+
+/**
+ * Sorts the apps of all profiles into all pots in a single pass over the installed apps, and keeps
+ * the pots up to date as packages change.
+ *
+ * Package and code rules are looked up in the [FlowerpotIndex] for every app, while the results of
+ * the intent rules are stored per package version in the [FlowerpotCache], so that the package
+ * manager only needs to be queried for packages which changed since they were last categorised.
+ */
+class FlowerpotCategorizer(private val context: Context, pots: Collection<Flowerpot>)
+    : LauncherAppsCompat.OnAppsChangedCallbackCompat {
+
+    private val launcherApps = LauncherAppsCompat.getInstance(context)
+    private val packageManager = context.packageManager
+    private val cache = FlowerpotCache(context)
+    private val index: FlowerpotIndex
+    private var categorized = false
+
+    init {
+        pots.forEach { it.ensureLoaded() }
+        index = FlowerpotIndex(pots.toList())
+    }
+
+    /**
+     * Categorises all apps if that hasn't been done yet, and starts listening for changes.
+     */
+    @Synchronized
+    fun ensureCategorized() {
+        if (categorized) return
+        categorized = true
+        categorizeAll()
+        // Deliver package events on the main thread, no matter which thread got here first
+        runOnMainThread { launcherApps.addOnAppsChangedCallback(this) }
+    }
+
+    private fun categorizeAll() {
+        val activities = UserManagerCompat.getInstance(context).userProfiles.flatMap {
+            launcherApps.getActivityList(null, it)
+        }
+
+        // Intent rules are matched by the package manager of this user only
+        val installed = packageManager.getInstalledPackages(0).associateBy { it.packageName }
+        val cached = cache.getAll(index.fingerprint)
+        val intentMasks = HashMap<String, Long>()
+        val missing = LinkedHashMap<String, PackageInfo>()
+        activities.forEach {
+            val packageName = it.componentName.packageName
+            if (intentMasks.containsKey(packageName) || missing.containsKey(packageName)) return@forEach
+            val info = installed[packageName]
+            val entry = cached[packageName]
+            when {
+                info == null -> intentMasks[packageName] = 0L
+                entry != null && entry.isCurrent(info) -> intentMasks[packageName] = entry.mask
+                else -> missing[packageName] = info
+            }
+        }
+        if (missing.isNotEmpty()) {
+            // Querying every intent once for all packages is cheaper than querying them for each
+            // package once more than a few packages are missing
+            val queried = if (missing.size > MAX_PACKAGE_QUERIES) {
+                index.queryIntentMasks(packageManager)
+            } else {
+                missing.keys.flatMap { index.queryIntentMasks(packageManager, it).entries }
+                        .associate { it.key to it.value }
+            }
+            val entries = missing.mapValues { (packageName, info) ->
+                FlowerpotCache.Entry(info, queried[packageName] ?: 0L)
+            }
+            entries.forEach { (packageName, entry) -> intentMasks[packageName] = entry.mask }
+            cache.putAll(entries, index.fingerprint)
+        }
+
+        index.pots.forEach { it.apps.clear() }
+        activities.forEach { addActivity(it, intentMasks[it.componentName.packageName] ?: 0L) }
+    }
+
+    @Synchronized
+    private fun updatePackage(packageName: String, user: UserHandle, refresh: Boolean) {
+        removePackage(packageName, user)
+        val activities = launcherApps.getActivityList(packageName, user)
+        if (activities.isEmpty()) return
+        val intentMask = getIntentMask(packageName, refresh)
+        activities.forEach { addActivity(it, intentMask) }
+    }
+
+    @Synchronized
+    private fun removePackage(packageName: String, user: UserHandle) {
+        index.pots.forEach { it.apps.removePackage(packageName, user) }
+    }
+
+    private fun getIntentMask(packageName: String, refresh: Boolean): Long {
+        val info = try {
+            packageManager.getPackageInfo(packageName, 0)
+        } catch (ex: PackageManager.NameNotFoundException) {
+            return 0L
+        }
+        if (!refresh) {
+            val entry = cache.get(packageName, index.fingerprint)
+            if (entry != null && entry.isCurrent(info)) {
+                return entry.mask
+            }
+        }
+        val mask = index.queryIntentMasks(packageManager, packageName)[packageName] ?: 0L
+        cache.putAll(mapOf(packageName to FlowerpotCache.Entry(info, mask)), index.fingerprint)
+        return mask
+    }
+
+    private fun addActivity(info: LauncherActivityInfo, intentMask: Long) {
+        val packageName = info.componentName.packageName
+        val mask = intentMask or index.getPackageMask(packageName) or
+                index.getCodeRuleMask(info.applicationInfo)
+        if (mask == 0L) return
+        val key = ComponentKey(info.componentName, info.user)
+        index.forEachPot(mask) { it.apps.add(key) }
+    }
+
+    override fun onPackageAdded(packageName: String, user: UserHandle) {
+        updatePackage(packageName, user, false)
+    }
+
+    override fun onPackageChanged(packageName: String, user: UserHandle) {
+        // Components may have been enabled or disabled without the version changing
+        updatePackage(packageName, user, true)
+    }
+
+    override fun onPackageRemoved(packageName: String, user: UserHandle) {
+        removePackage(packageName, user)
+        if (user == Process.myUserHandle()) {
+            cache.remove(packageName)
+        }
+    }
+
+    override fun onPackagesAvailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
+        packageNames.forEach { updatePackage(it, user, false) }
+    }
+
+    override fun onPackagesUnavailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
+        packageNames.forEach { removePackage(it, user) }
+    }
+
+    override fun onPackagesSuspended(packageNames: Array<out String>, user: UserHandle) {
+        packageNames.forEach { removePackage(it, user) }
+    }
+
+    override fun onPackagesUnsuspended(packageNames: Array<out String>, user: UserHandle) {
+        packageNames.forEach { updatePackage(it, user, false) }
+    }
+
+    override fun onShortcutsChanged(packageName: String?, shortcuts: MutableList<ShortcutInfo>?, user: UserHandle?) {
+
+    }
+
+    companion object {
+
+        // Above this many uncached packages, every intent is queried once for all packages instead
+        private const val MAX_PACKAGE_QUERIES = 8
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.flowerpot
+
+import android.content.Intent
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import ch.deletescape.lawnchair.flowerpot.rules.CodeRule
+import ch.deletescape.lawnchair.flowerpot.rules.Rule
+
+/**
+ * The rules of all pots compiled into lookup tables, so that an app can be matched against all
+ * pots at once. Each pot is assigned one bit, and every lookup returns the mask of the pots which
+ * matched.
+ */
+class FlowerpotIndex(val pots: List<Flowerpot>) {
+
+    private val packages = HashMap<String, Long>()
+    private val intentCategories = LinkedHashMap<String, Long>()
+    private val intentActions = LinkedHashMap<String, Long>()
+    private val codeRules = LinkedHashMap<String, CodeRuleMatch>()
+
+    /**
+     * Changes whenever the pots or their rules change, so that stored masks can be invalidated
+     */
+    val fingerprint: Int
+
+    init {
+        if (pots.size > MAX_POTS) {
+            throw FlowerpotFormatException("At most $MAX_POTS pots are supported, got ${pots.size}")
+        }
+        var fingerprint = 1
+        pots.forEachIndexed { i, pot ->
+            val bit = 1L shl i
+            fingerprint = 31 * fingerprint + pot.name.hashCode()
+            pot.rules.forEach { rule ->
+                val key = when (rule) {
+                    is Rule.Package -> rule.filter.also { packages.addBit(it, bit) }
+                    is Rule.IntentCategory -> ";${rule.category}".also {
+                        intentCategories.addBit(rule.category, bit)
+                    }
+                    is Rule.IntentAction -> ":${rule.action}".also {
+                        intentActions.addBit(rule.action, bit)
+                    }
+                    is Rule.CodeRule -> "&${rule.rule}|${rule.args.joinToString("|")}".also {
+                        codeRules.getOrPut(it) {
+                            CodeRuleMatch(CodeRule.get(rule.rule, *rule.args))
+                        }.apply { mask = mask or bit }
+                    }
+                    else -> return@forEach
+                }
+                fingerprint = 31 * fingerprint + key.hashCode()
+            }
+        }
+        this.fingerprint = fingerprint
+    }
+
+    /**
+     * Returns the mask of the pots listing [packageName] explicitly.
+     */
+    fun getPackageMask(packageName: String) = packages[packageName] ?: 0L
+
+    /**
+     * Returns the mask of the pots with a code rule matching [info].
+     */
+    fun getCodeRuleMask(info: ApplicationInfo): Long {
+        var mask = 0L
+        codeRules.values.forEach {
+            if ((mask or it.mask) != mask && it.rule.matches(info)) {
+                mask = mask or it.mask
+            }
+        }
+        return mask
+    }
+
+    /**
+     * Returns the masks of the pots with an intent rule matching each package, limited to
+     * [packageName] if it isn't null. Every intent is only queried once, no matter how many pots
+     * contain it.
+     */
+    fun queryIntentMasks(pm: PackageManager, packageName: String? = null): Map<String, Long> {
+        val masks = HashMap<String, Long>()
+        intentCategories.forEach { (category, mask) ->
+            queryIntent(pm, Intent(Intent.ACTION_MAIN).addCategory(category), packageName, mask, masks)
+        }
+        intentActions.forEach { (action, mask) ->
+            queryIntent(pm, Intent(action), packageName, mask, masks)
+        }
+        return masks
+    }
+
+    inline fun forEachPot(mask: Long, action: (Flowerpot) -> Unit) {
+        var remaining = mask
+        while (remaining != 0L) {
+            val i = java.lang.Long.numberOfTrailingZeros(remaining)
+            action(pots[i])
+            remaining = remaining and (remaining - 1)
+        }
+    }
+
+    private fun queryIntent(pm: PackageManager, intent: Intent, packageName: String?, mask: Long,
+                            masks: MutableMap<String, Long>) {
+        intent.setPackage(packageName)
+        pm.queryIntentActivities(intent, 0).forEach {
+            masks.addBit(it.activityInfo.packageName, mask)
+        }
+    }
+
+    private class CodeRuleMatch(val rule: CodeRule) {
+        var mask = 0L
+    }
+
+    companion object {
+
+        // One bit per pot
+        const val MAX_POTS = 64
+
+        private fun MutableMap<String, Long>.addBit(key: String, mask: Long) {
+            this[key] = (this[key] ?: 0L) or mask
+        }
+    }
+}
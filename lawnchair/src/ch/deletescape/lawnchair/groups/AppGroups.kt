@@ -58,6 +58,7 @@ abstract class AppGroups<T : AppGroups.Group>(private val manager: AppGroupsMana
         onGroupsChanged(it)
     })
     private val groups = ArrayList<T>()
+    private var membership: GroupMembership<T>? = null
 
     var isEnabled = manager.categorizationEnabled && manager.categorizationType == type
         private set
@@ -113,12 +114,14 @@ abstract class AppGroups<T : AppGroups.Group>(private val manager: AppGroupsMana
                 creator.createGroup(context)?.let { groups.add(0, it) }
             }
         }
+        invalidateMembership()
     }
 
     fun checkIsEnabled(changeCallback: LawnchairPreferencesChangeCallback) {
         val enabled = manager.categorizationEnabled && manager.categorizationType == type
         if (isEnabled != enabled) {
             isEnabled = enabled
+            invalidateMembership()
             onGroupsChanged(changeCallback)
         }
     }
@@ -153,6 +156,7 @@ abstract class AppGroups<T : AppGroups.Group>(private val manager: AppGroupsMana
                 creator.createGroup(context)?.let { this.groups.add(0, it) }
             }
         }
+        invalidateMembership()
     }
 
     fun saveToJson() {
@@ -164,9 +168,37 @@ abstract class AppGroups<T : AppGroups.Group>(private val manager: AppGroupsMana
         val obj = JSONObject()
         obj.put(KEY_VERSION, currentVersion)
         obj.put(KEY_GROUPS, arr)
+        // The apps of the groups may have been customized
+        invalidateMembership()
         groupsDataJson = obj.toString()
     }
 
+    /**
+     * Returns the apps of the current groups compiled by group, which is only rebuilt after the
+     * groups changed.
+     */
+    @Synchronized
+    fun getMembership(): GroupMembership<T> {
+        return membership ?: GroupMembership(getGroups(), ::getCompiledApps, ::isHiddenFromAllApps)
+                .also { membership = it }
+    }
+
+    @Synchronized
+    private fun invalidateMembership() {
+        membership = null
+    }
+
+    /**
+     * Returns the apps of [group] to compile into the membership, or null if its apps can change
+     * without the groups changing.
+     */
+    protected open fun getCompiledApps(group: T): Collection<ComponentKey>? = null
+
+    /**
+     * Returns whether the compiled apps of [group] are hidden from the main list of apps.
+     */
+    protected open fun isHiddenFromAllApps(group: T) = false
+
     companion object {
 
         const val currentVersion = 2
@@ -22,7 +22,6 @@ import ch.deletescape.lawnchair.*
 import com.android.launcher3.AppInfo
 import com.android.launcher3.R
 import com.android.launcher3.allapps.AlphabeticalAppsList
-import com.android.launcher3.util.ComponentKey
 
 class DrawerFolders(private val manager: AppGroupsManager) : AppGroups<DrawerFolders.Folder>(manager, AppGroupsManager.CategorizationType.Folders) {
 
@@ -46,25 +45,26 @@ class DrawerFolders(private val manager: AppGroupsManager) : AppGroups<DrawerFol
         changeCallback.reloadDrawer()
     }
 
-    fun getFolderInfos(apps: AlphabeticalAppsList) = getFolderInfos(buildAppsMap(apps)::get)
+    override fun getCompiledApps(group: Folder) = (group as? CustomFolder)?.contents?.value
 
-    private fun buildAppsMap(apps: AlphabeticalAppsList): Map<ComponentKey, AppInfo> {
+    override fun isHiddenFromAllApps(group: Folder) = (group as? CustomFolder)?.hideFromAllApps?.value() == true
+
+    fun getFolderInfos(apps: AlphabeticalAppsList): List<DrawerFolderInfo> {
+        val membership = getMembership()
+        // Sort the apps into their folders in a single pass
+        val folderApps = Array(membership.groupCount) { ArrayList<AppInfo>() }
         // Copy the list before accessing it to prevent concurrent list access
-        return apps.apps.toList().associateBy { it.toComponentKey() }
+        apps.apps.toList().forEach { app ->
+            membership.forEachGroup(app.toComponentKey()) { folderApps[it].add(app) }
+        }
+        return getGroups()
+                .asSequence()
+                .filter { !it.isEmpty }
+                .map { it.toFolderInfo(folderApps.getOrNull(membership.getIndex(it)).orEmpty()) }
+                .toList()
     }
 
-    private fun getFolderInfos(getAppInfo: (ComponentKey) -> AppInfo?): List<DrawerFolderInfo> = getGroups()
-            .asSequence()
-            .filter { !it.isEmpty }
-            .map { it.toFolderInfo(getAppInfo) }
-            .toList()
-
-    fun getHiddenComponents() = getGroups()
-            .asSequence()
-            .filterIsInstance<CustomFolder>()
-            .filter { it.hideFromAllApps.value() }
-            .mapNotNull { it.contents.value }
-            .flatMapTo(mutableSetOf()) { it.asSequence() }
+    fun getHiddenComponents() = getMembership().hiddenComponents
 
     abstract class Folder(val context: Context, type: String, titleRes: Int) : Group(type, context, context.getString(titleRes)) {
         // Ensure icon customization sticks across group changes
@@ -76,7 +76,7 @@ class DrawerFolders(private val manager: AppGroupsManager) : AppGroups<DrawerFol
             addCustomization(id)
         }
 
-        open fun toFolderInfo(getAppInfo: (ComponentKey) -> AppInfo?) = DrawerFolderInfo(this).apply {
+        open fun toFolderInfo(apps: List<AppInfo>) = DrawerFolderInfo(this).apply {
             setTitle(this@Folder.getTitle())
             id = this@Folder.id.value().toInt()
             contents = ArrayList()
@@ -106,11 +106,9 @@ class DrawerFolders(private val manager: AppGroupsManager) : AppGroups<DrawerFol
 
         fun getFilter(context: Context): Filter<*> = CustomFilter(context, contents.value())
 
-        override fun toFolderInfo(getAppInfo: (ComponentKey) -> AppInfo?) = super.toFolderInfo(getAppInfo).apply {
+        override fun toFolderInfo(apps: List<AppInfo>) = super.toFolderInfo(apps).apply {
             // ✨
-            this@CustomFolder.contents.value?.mapNotNullTo(contents) { key ->
-                getAppInfo(key)?.makeWorkspaceItem()
-            }?.sortWith(comparator)
+            apps.mapTo(contents) { it.makeWorkspaceItem() }.sortWith(comparator)
         }
     }
 
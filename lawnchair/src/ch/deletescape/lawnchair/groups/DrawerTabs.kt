@@ -83,6 +83,11 @@ abstract class DrawerTabs(manager: AppGroupsManager, type: AppGroupsManager.Cate
         changeCallback.launcher.allAppsController.appsView.reloadTabs()
     }
 
+    // The apps of flowerpot tabs change with the installed apps, so they aren't compiled
+    override fun getCompiledApps(group: Tab) = (group as? CustomTab)?.contents?.value()
+
+    override fun isHiddenFromAllApps(group: Tab) = (group as? CustomTab)?.hideFromAllApps?.value() == true
+
     abstract class Tab(context: Context, type: String, title: String) : Group(type, context, title) {
 
         val colorResolver = ColorRow(KEY_COLOR, AppGroupsUtils.getInstance(context).defaultColorResolver)
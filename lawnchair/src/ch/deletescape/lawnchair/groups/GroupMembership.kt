@@ -0,0 +1,91 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+
+package ch.deletescape.lawnchair.groups
+
+import com.android.launcher3.util.ComponentKey
+import com.android.launcher3.util.ItemInfoMatcher
+import java.util.*
+
+/**
+ * The groups of an [AppGroups] model compiled into a table from each app to the bitmask of the
+ * groups it is part of, so that filtering apps by their groups is one lookup per app however many
+ * groups there are.
+ *
+ * Only groups with a fixed set of apps are compiled. The table is immutable, [AppGroups] rebuilds
+ * it when its groups change.
+ */
+class GroupMembership<T : AppGroups.Group>(groups: List<T>,
+                                           getApps: (T) -> Collection<ComponentKey>?,
+                                           isHidden: (T) -> Boolean) {
+
+    private val groupIndexes = HashMap<T, Int>()
+    private val masks = HashMap<ComponentKey, BitSet>()
+
+    /**
+     * The apps of all groups which hide their apps from the main list.
+     */
+    val hiddenComponents: Set<ComponentKey>
+
+    val groupCount get() = groupIndexes.size
+
+    init {
+        val hiddenMask = BitSet()
+        groups.forEach { group ->
+            val apps = getApps(group) ?: return@forEach
+            val index = groupIndexes.size
+            groupIndexes[group] = index
+            if (isHidden(group)) {
+                hiddenMask.set(index)
+            }
+            apps.forEach { masks.getOrPut(it) { BitSet() }.set(index) }
+        }
+        hiddenComponents = masks.filterTo(HashMap()) { it.value.intersects(hiddenMask) }.keys
+    }
+
+    /**
+     * Returns the index of [group] in the masks, or -1 if it was not compiled.
+     */
+    fun getIndex(group: T) = groupIndexes[group] ?: -1
+
+    /**
+     * Calls [action] with the index of each group [key] is part of.
+     */
+    inline fun forEachGroup(key: ComponentKey, action: (Int) -> Unit) {
+        val mask = getMask(key) ?: return
+        var index = mask.nextSetBit(0)
+        while (index >= 0) {
+            action(index)
+            index = mask.nextSetBit(index + 1)
+        }
+    }
+
+    /**
+     * Returns a matcher for the apps of [group], or null if it was not compiled.
+     */
+    fun getMatcher(group: T): ItemInfoMatcher? {
+        val index = getIndex(group)
+        if (index < 0) return null
+        return ItemInfoMatcher { info, _ ->
+            masks[ComponentKey(info.targetComponent, info.user)]?.get(index) == true
+        }
+    }
+
+    @PublishedApi
+    internal fun getMask(key: ComponentKey): BitSet? = masks[key]
+}
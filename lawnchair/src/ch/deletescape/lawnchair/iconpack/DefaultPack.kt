@@ -28,6 +28,7 @@ import android.graphics.drawable.Drawable
 import android.os.Build
 import android.text.TextUtils
 import android.util.Log
+import ch.deletescape.lawnchair.adaptive.AdaptiveIconCache
 import ch.deletescape.lawnchair.adaptive.AdaptiveIconGenerator
 import ch.deletescape.lawnchair.getLauncherActivityInfo
 import ch.deletescape.lawnchair.lawnchairPrefs
@@ -105,7 +106,8 @@ class DefaultPack(context: Context) : IconPack(context, "") {
                 roundIcon = it.apply { mutate() }
             }
         }
-        val gen = AdaptiveIconGenerator(context, originalIcon, roundIcon)
+        val gen = AdaptiveIconGenerator(context, originalIcon, roundIcon,
+                getAdaptiveCacheKey(component, iconDpi))
         return gen.result
     }
 
@@ -137,12 +139,18 @@ class DefaultPack(context: Context) : IconPack(context, "") {
                     roundIcon = it.apply { mutate() }
                 }
             }
-            val gen = AdaptiveIconGenerator(context, originalIcon, roundIcon)
+            val gen = AdaptiveIconGenerator(context, originalIcon, roundIcon,
+                    getAdaptiveCacheKey(component, iconDpi))
             return gen.result
         }
         return iconProvider.getDynamicIcon(info, iconDpi, flattenDrawable)
     }
 
+    private fun getAdaptiveCacheKey(component: ComponentName, iconDpi: Int): String? {
+        return AdaptiveIconCache.getInstance(context).getKey(component.packageName,
+                component.flattenToString(), iconDpi, prefs.forceShapeless)
+    }
+
     override fun getIcon(shortcutInfo: ShortcutInfo, iconDpi: Int): Drawable? {
         ensureInitialLoadComplete()
 
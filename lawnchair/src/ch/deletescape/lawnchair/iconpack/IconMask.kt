@@ -30,8 +30,6 @@ class IconMask {
     val hasMask by lazy { validBacks.isNotEmpty() || validMasks.isNotEmpty() || validUpons.isNotEmpty() }
     var onlyMaskLegacy: Boolean = false
     var iconScale = 1f
-    val matrix = Matrix()
-    val paint = Paint()
 
     val iconBackEntries = ArrayList<IconPackImpl.Entry>()
     val iconMaskEntries = ArrayList<IconPackImpl.Entry>()
@@ -55,6 +53,9 @@ class IconMask {
         }
         val bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888)
         val canvas = Canvas(bitmap)
+        // Icons of a pack can be rendered on several threads at once
+        val matrix = Matrix()
+        val paint = Paint()
 
         // Draw the app icon
         val iconBitmapSize = LauncherAppState.getIDP(context).iconBitmapSize
@@ -31,6 +31,7 @@ import android.os.Looper
 import android.text.TextUtils
 import android.util.Xml
 import android.widget.Toast
+import ch.deletescape.lawnchair.adaptive.AdaptiveIconCache
 import ch.deletescape.lawnchair.adaptive.AdaptiveIconGenerator
 import ch.deletescape.lawnchair.get
 import ch.deletescape.lawnchair.toTitleCase
@@ -52,15 +53,17 @@ import kotlin.collections.ArrayList
 
 class IconPackImpl(context: Context, packPackageName: String) : IconPack(context, packPackageName) {
 
-    private val packComponents: MutableMap<ComponentName, Entry> = HashMap()
-    private val packCalendars: MutableMap<ComponentName, String> = HashMap()
+    @Volatile private var packIndex: IconPackIndex? = null
+    // Entries of the components looked up in the index so far, null if the pack has none
+    private val packComponents: MutableMap<ComponentName, Entry?> = HashMap()
+    private var packCalendars: Map<ComponentName, String> = emptyMap()
     private val packClocks: MutableMap<Int, CustomClock.Metadata> = HashMap()
     private val packDynamicDrawables: MutableMap<Int, DynamicDrawable.Metadata> = HashMap()
     private var packMask: IconMask = IconMask()
     private val defaultPack = DefaultPack(context)
     private val packResources = context.packageManager.getResourcesForApplication(packPackageName)
     private val prefs by lazy { Utilities.getLawnchairPrefs(context) }
-    override val entries get() = packComponents.values.toList()
+    override val entries get() = packIndex?.getComponentDrawables()?.map { Entry(it) } ?: emptyList()
 
     init {
         if (prefs.showDebugInfo) {
@@ -86,8 +89,46 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
     }
 
     override fun loadPack() {
+        val startTime = System.currentTimeMillis()
+        var index = IconPackIndex.load(context, packPackageName)
+        if (index == null) {
+            val builder = parsePack()
+            if (builder == null) {
+                Toast.makeText(context, "Failed to parse AppFilter", Toast.LENGTH_SHORT).show()
+                return
+            }
+            index = IconPackIndex.create(context, packPackageName, builder)
+        }
+
+        val scale = index.iconScale
+        if (scale > 0x7f070000) {
+            packMask.iconScale = packResources.getDimension(scale.toInt())
+        } else {
+            packMask.iconScale = scale
+        }
+        packMask.onlyMaskLegacy = index.onlyMaskLegacy
+        index.iconBacks.mapTo(packMask.iconBackEntries) { Entry(it) }
+        index.iconMasks.mapTo(packMask.iconMaskEntries) { Entry(it) }
+        index.iconUpons.mapTo(packMask.iconUponEntries) { Entry(it) }
+        packCalendars = index.calendars
+        index.clocks.forEach { (drawableId, values) ->
+            packClocks[drawableId] = CustomClock.Metadata(
+                    values[0], values[1], values[2], values[3], values[4], values[5])
+        }
+        index.dynamicDrawables.forEach { (drawableId, xml) ->
+            packDynamicDrawables[drawableId] = DynamicDrawable.Metadata(xml, packPackageName)
+        }
+        packIndex = index
+        d("completed loading pack $packPackageName in ${System.currentTimeMillis() - startTime}ms")
+    }
+
+    /**
+     * Parses the appfilter and drawable XML of the pack, returns null if they can't be parsed.
+     */
+    private fun parsePack(): IconPackIndex.Builder? {
         try {
             val startTime = System.currentTimeMillis()
+            val builder = IconPackIndex.Builder()
             val res = packResources
             val compStart = "ComponentInfo{"
             val compStartlength = compStart.length
@@ -110,9 +151,9 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                                 val parsed = ComponentName.unflattenFromString(componentName)
                                 if (parsed != null) {
                                     if (isCalendar) {
-                                        packCalendars[parsed] = drawableName
+                                        builder.calendars[parsed] = drawableName
                                     } else {
-                                        packComponents[parsed] = Entry(drawableName)
+                                        builder.components[parsed] = drawableName
                                     }
                                 }
                             }
@@ -122,7 +163,7 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                             if (drawableName != null) {
                                 val drawableId = getDrawableId(drawableName)
                                 if (parseXml is XmlResourceParser && drawableId != 0) {
-                                    packClocks[drawableId] = CustomClock.Metadata(
+                                    builder.addClock(drawableId,
                                             parseXml.getAttributeIntValue(null, "hourLayerIndex", -1),
                                             parseXml.getAttributeIntValue(null, "minuteLayerIndex", -1),
                                             parseXml.getAttributeIntValue(null, "secondLayerIndex", -1),
@@ -133,27 +174,23 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                             }
                         }
                         name == "scale" -> {
-                            val scale = parseXml["factor"]!!.toFloat()
-                            if (scale > 0x7f070000) {
-                                packMask.iconScale = packResources.getDimension(scale.toInt())
-                            } else {
-                                packMask.iconScale = scale
-                            }
+                            // Dimension references are resolved when loading, as they depend on the display
+                            builder.iconScale = parseXml["factor"]!!.toFloat()
                         }
                         name == "iconback" -> {
                             // TODO: handle packs with multiple masks
-                            addImgsTo(parseXml, packMask.iconBackEntries)
+                            addImgsTo(parseXml, builder.iconBacks)
                         }
                         name == "iconmask" -> {
-                            addImgsTo(parseXml, packMask.iconMaskEntries)
+                            addImgsTo(parseXml, builder.iconMasks)
                         }
                         name == "iconupon" -> {
-                            addImgsTo(parseXml, packMask.iconUponEntries)
+                            addImgsTo(parseXml, builder.iconUpons)
                         }
                         name == "config" -> {
                             val onlyMaskLegacy = parseXml["onlyMaskLegacy"]
                             if (!TextUtils.isEmpty(onlyMaskLegacy)) {
-                                packMask.onlyMaskLegacy = onlyMaskLegacy!!.toBoolean()
+                                builder.onlyMaskLegacy = onlyMaskLegacy!!.toBoolean()
                             }
                         }
                     }
@@ -171,9 +208,7 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                                 val drawableId = res.getIdentifier(dynamicDrawable, "drawable",
                                         packPackageName)
                                 if (drawableId != 0) {
-                                    packDynamicDrawables[drawableId] = DynamicDrawable.Metadata(
-                                            parseDrawableXml["xml"]!!,
-                                            packPackageName)
+                                    builder.dynamicDrawables[drawableId] = parseDrawableXml["xml"]!!
                                 }
                             }
                         }
@@ -182,7 +217,7 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
             }
             val endTime = System.currentTimeMillis()
             d("completed parsing pack $packPackageName in ${endTime - startTime}ms")
-            return
+            return builder
         } catch (e: PackageManager.NameNotFoundException) {
             e.printStackTrace()
         } catch (e: XmlPullParserException) {
@@ -192,26 +227,40 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
         } catch (e: IllegalStateException) {
             e.printStackTrace()
         }
-        Toast.makeText(context, "Failed to parse AppFilter", Toast.LENGTH_SHORT).show()
+        return null
     }
 
-    private fun addImgsTo(parseXml: XmlPullParser, collection: MutableCollection<Entry>) {
+    private fun addImgsTo(parseXml: XmlPullParser, collection: MutableCollection<String>) {
         for (i in (0 until parseXml.attributeCount)) {
             if (parseXml.getAttributeName(i).startsWith("img")) {
                 val drawableName = parseXml.getAttributeValue(i)
                 if (!TextUtils.isEmpty(drawableName)) {
-                    collection.add(Entry(drawableName))
+                    collection.add(drawableName)
                 }
             }
         }
     }
 
     override fun getEntryForComponent(key: ComponentKey): Entry? {
-        val entry = packComponents[key.componentName]
+        val entry = getComponentEntry(key.componentName)
         if (entry?.isAvailable != true) return null
         return entry
     }
 
+    private fun getComponentEntry(component: ComponentName): Entry? {
+        val index = packIndex ?: return null
+        synchronized(packComponents) {
+            if (packComponents.containsKey(component)) {
+                return packComponents[component]
+            }
+        }
+        val entry = index.getComponentDrawable(component)?.let { Entry(it) }
+        synchronized(packComponents) {
+            packComponents[component] = entry
+        }
+        return entry
+    }
+
     override fun getMaskEntryForComponent(key: ComponentKey): IconPack.Entry? {
         if (!supportsMasking()) return null
         return MaskEntry(key)
@@ -228,7 +277,8 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                     drawable = DynamicDrawable.getIcon(context, drawable, packDynamicDrawables[drawableId]!!, iconDpi)
                 }
                 if (prefs.adaptifyIconPacks) {
-                    val gen = AdaptiveIconGenerator(context, drawable.mutate(), null)
+                    val gen = AdaptiveIconGenerator(context, drawable.mutate(), null,
+                            getAdaptiveCacheKey(drawableId, 0))
                     return gen.result
                 }
                 return drawable.mutate()
@@ -249,8 +299,7 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
         val drawableId = when {
             customIconEntry?.icon != null -> getDrawableId(customIconEntry.icon)
             packCalendars.containsKey(component) -> getDrawableId(packCalendars[component] + Calendar.getInstance().get(Calendar.DAY_OF_MONTH))
-            packComponents.containsKey(component) -> packComponents[component]!!.drawableId
-            else -> 0
+            else -> getComponentEntry(component)?.drawableId ?: 0
         }
 
         if (drawableId != 0) {
@@ -264,7 +313,8 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                     drawable = DynamicDrawable.getIcon(context, drawable, packDynamicDrawables[drawableId]!!, iconDpi)
                 }
                 if (prefs.adaptifyIconPacks) {
-                    val gen = AdaptiveIconGenerator(context, drawable.mutate(), null)
+                    val gen = AdaptiveIconGenerator(context, drawable.mutate(), null,
+                            getAdaptiveCacheKey(drawableId, iconDpi))
                     return gen.result
                 }
                 return drawable.mutate()
@@ -279,7 +329,14 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
                     customIconEntry, iconProvider)
             val icon = packMask.getIcon(context, baseIcon, launcherActivityInfo.componentName)
             if (prefs.adaptifyIconPacks) {
-                val gen = AdaptiveIconGenerator(context, icon, null)
+                // The masked icon depends on both the app and the pack
+                val cacheKey = if (customIconEntry?.icon == null) {
+                    val cache = AdaptiveIconCache.getInstance(context)
+                    cache.getKey(component.packageName, component.flattenToString(), iconDpi,
+                            prefs.forceShapeless, packPackageName,
+                            cache.getPackageVersion(packPackageName))
+                } else null
+                val gen = AdaptiveIconGenerator(context, icon, null, cacheKey)
                 return gen.result
             }
             return icon
@@ -288,6 +345,14 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
         return null
     }
 
+    private fun getAdaptiveCacheKey(drawableId: Int, iconDpi: Int): String? {
+        // Clocks and dynamic drawables change over time
+        if (packClocks.containsKey(drawableId) || packDynamicDrawables.containsKey(drawableId)) {
+            return null
+        }
+        return AdaptiveIconCache.getInstance(context).getKey(packPackageName, drawableId, iconDpi)
+    }
+
     override fun getIcon(shortcutInfo: ShortcutInfo, iconDpi: Int): Drawable? {
         ensureInitialLoadComplete()
 
@@ -315,7 +380,7 @@ class IconPackImpl(context: Context, packPackageName: String) : IconPack(context
             val component = itemInfo.targetComponent
             val drawableId = when {
                 customIconEntry?.icon != null -> getDrawableId(customIconEntry.icon)
-                packComponents.containsKey(component) -> packComponents[component]!!.drawableId
+                component != null -> getComponentEntry(component)?.drawableId ?: 0
                 else -> 0
             }
             if (packClocks.containsKey(drawableId)) {
@@ -0,0 +1,328 @@
+/*
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.iconpack
+
+import android.content.ComponentName
+import android.content.Context
+import android.content.pm.PackageManager
+import ch.deletescape.lawnchair.util.extensions.e
+import com.android.launcher3.Utilities
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * The compiled form of an icon pack's appfilter.xml and drawable.xml, so that loading a pack
+ * doesn't need to parse its XML again.
+ *
+ * The index is written once per version of a pack to the files dir, and memory mapped when the
+ * pack is loaded. The small sections (mask, calendars, clocks and dynamic drawables) are read
+ * upfront, while the component drawables stay in an open addressing hash table on disk which is
+ * only probed for the components that are actually looked up.
+ *
+ * Resource ids are stored as they were resolved when the index was built, which is safe as the
+ * index is rebuilt whenever the version code or the update time of the pack changes.
+ */
+class IconPackIndex private constructor(private val buffer: ByteBuffer) {
+
+    val iconScale: Float
+    val onlyMaskLegacy: Boolean
+    val iconBacks: List<String>
+    val iconMasks: List<String>
+    val iconUpons: List<String>
+    val calendars: Map<ComponentName, String>
+    // Drawable id to the hour, minute and second layer indices and the default time
+    val clocks: Map<Int, IntArray>
+    // Drawable id to the name of the dynamic drawable xml
+    val dynamicDrawables: Map<Int, String>
+
+    val componentCount: Int
+    private val tableSize: Int
+    private val tableStart: Int
+    private val recordsStart: Int
+
+    init {
+        val input = buffer.duplicate()
+        iconScale = input.float
+        onlyMaskLegacy = input.get().toInt() != 0
+        iconBacks = readStrings(input)
+        iconMasks = readStrings(input)
+        iconUpons = readStrings(input)
+
+        val calendars = HashMap<ComponentName, String>()
+        repeat(input.int) {
+            val component = ComponentName.unflattenFromString(readString(input))
+            val prefix = readString(input)
+            if (component != null) {
+                calendars[component] = prefix
+            }
+        }
+        this.calendars = calendars
+
+        val clocks = HashMap<Int, IntArray>()
+        repeat(input.int) {
+            val drawableId = input.int
+            clocks[drawableId] = IntArray(CLOCK_VALUES) { input.int }
+        }
+        this.clocks = clocks
+
+        val dynamicDrawables = HashMap<Int, String>()
+        repeat(input.int) {
+            val drawableId = input.int
+            dynamicDrawables[drawableId] = readString(input)
+        }
+        this.dynamicDrawables = dynamicDrawables
+
+        componentCount = input.int
+        tableSize = input.int
+        tableStart = input.position()
+        recordsStart = tableStart + tableSize * 4
+    }
+
+    /**
+     * Returns the name of the drawable for [component], or null if the pack doesn't theme it.
+     */
+    fun getComponentDrawable(component: ComponentName): String? {
+        if (tableSize == 0) return null
+        val key = component.flattenToString()
+        val keyBytes = key.toByteArray(Charsets.UTF_8)
+        var slot = hash(key) and (tableSize - 1)
+        while (true) {
+            val offset = buffer.getInt(tableStart + slot * 4)
+            if (offset < 0) return null
+            val record = recordsStart + offset
+            if (keyMatches(record, keyBytes)) {
+                return readStringAt(record + 2 + keyBytes.size)
+            }
+            slot = (slot + 1) and (tableSize - 1)
+        }
+    }
+
+    /**
+     * Returns the names of the drawables of all components, in the order they were declared.
+     */
+    fun getComponentDrawables(): List<String> {
+        val input = buffer.duplicate()
+        input.position(recordsStart)
+        val drawables = ArrayList<String>(componentCount)
+        repeat(componentCount) {
+            input.position(input.position() + (input.short.toInt() and 0xffff))
+            drawables.add(readString(input))
+        }
+        return drawables
+    }
+
+    private fun keyMatches(record: Int, keyBytes: ByteArray): Boolean {
+        if (buffer.getShort(record).toInt() and 0xffff != keyBytes.size) return false
+        for (i in keyBytes.indices) {
+            if (buffer.get(record + 2 + i) != keyBytes[i]) return false
+        }
+        return true
+    }
+
+    // Uses absolute reads only, so that lookups can run concurrently
+    private fun readStringAt(position: Int): String {
+        val length = buffer.getShort(position).toInt() and 0xffff
+        val bytes = ByteArray(length) { buffer.get(position + 2 + it) }
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    /**
+     * Collects the contents of a pack while its XML is parsed.
+     */
+    class Builder {
+
+        var iconScale = 1f
+        var onlyMaskLegacy = false
+        val iconBacks = ArrayList<String>()
+        val iconMasks = ArrayList<String>()
+        val iconUpons = ArrayList<String>()
+        val calendars = LinkedHashMap<ComponentName, String>()
+        val components = LinkedHashMap<ComponentName, String>()
+        val clocks = LinkedHashMap<Int, IntArray>()
+        val dynamicDrawables = LinkedHashMap<Int, String>()
+
+        fun addClock(drawableId: Int, hourLayerIndex: Int, minuteLayerIndex: Int,
+                     secondLayerIndex: Int, defaultHour: Int, defaultMinute: Int,
+                     defaultSecond: Int) {
+            clocks[drawableId] = intArrayOf(hourLayerIndex, minuteLayerIndex, secondLayerIndex,
+                    defaultHour, defaultMinute, defaultSecond)
+        }
+
+        internal fun write(output: DataOutputStream) {
+            output.writeFloat(iconScale)
+            output.writeByte(if (onlyMaskLegacy) 1 else 0)
+            writeStrings(output, iconBacks)
+            writeStrings(output, iconMasks)
+            writeStrings(output, iconUpons)
+
+            output.writeInt(calendars.size)
+            calendars.forEach { (component, prefix) ->
+                writeString(output, component.flattenToString())
+                writeString(output, prefix)
+            }
+
+            output.writeInt(clocks.size)
+            clocks.forEach { (drawableId, values) ->
+                output.writeInt(drawableId)
+                values.forEach { output.writeInt(it) }
+            }
+
+            output.writeInt(dynamicDrawables.size)
+            dynamicDrawables.forEach { (drawableId, xml) ->
+                output.writeInt(drawableId)
+                writeString(output, xml)
+            }
+
+            // Records are written separately first, as the table needs their offsets
+            val records = ByteArrayOutputStream()
+            val recordOutput = DataOutputStream(records)
+            var tableSize = 0
+            if (components.isNotEmpty()) {
+                // Keep the table at most half full so that probes stay short
+                tableSize = Integer.highestOneBit(components.size * 2 - 1) shl 1
+            }
+            val table = IntArray(tableSize) { -1 }
+            components.forEach { (component, drawable) ->
+                val key = component.flattenToString()
+                var slot = hash(key) and (tableSize - 1)
+                while (table[slot] >= 0) {
+                    slot = (slot + 1) and (tableSize - 1)
+                }
+                table[slot] = recordOutput.size()
+                writeString(recordOutput, key)
+                writeString(recordOutput, drawable)
+            }
+
+            output.writeInt(components.size)
+            output.writeInt(tableSize)
+            table.forEach { output.writeInt(it) }
+            records.writeTo(output)
+        }
+    }
+
+    companion object {
+
+        private const val DIR_NAME = "icon_pack_index"
+        private const val MAGIC = 0x49504958 // "IPIX"
+        private const val VERSION = 1
+        // Magic, version, pack version code, pack update time and length of the data
+        private const val HEADER_SIZE = 4 + 4 + 8 + 8 + 4
+        private const val CLOCK_VALUES = 6
+
+        /**
+         * Returns the index of [packageName], or null if there is none for its current version.
+         */
+        fun load(context: Context, packageName: String): IconPackIndex? {
+            val file = getFile(context, packageName)
+            if (!file.exists()) return null
+            val version = getPackVersion(context, packageName) ?: return null
+            return try {
+                RandomAccessFile(file, "r").use { raf ->
+                    val channel = raf.channel
+                    if (channel.size() < HEADER_SIZE) return null
+                    val header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE.toLong())
+                    if (header.int != MAGIC || header.int != VERSION
+                            || header.long != version.first || header.long != version.second
+                            || header.int.toLong() != channel.size() - HEADER_SIZE) {
+                        return null
+                    }
+                    // The mapping stays valid after the channel is closed
+                    IconPackIndex(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE.toLong(),
+                            channel.size() - HEADER_SIZE))
+                }
+            } catch (ex: Exception) {
+                e("Failed to load icon pack index of $packageName", ex)
+                null
+            }
+        }
+
+        /**
+         * Writes the index built by [builder] for the current version of [packageName] and
+         * returns it. The index is still returned if it couldn't be written.
+         */
+        fun create(context: Context, packageName: String, builder: Builder): IconPackIndex {
+            val data = ByteArrayOutputStream()
+            builder.write(DataOutputStream(data))
+            val bytes = data.toByteArray()
+
+            val version = getPackVersion(context, packageName)
+            if (version != null) {
+                val file = getFile(context, packageName)
+                val temp = File(file.path + ".tmp")
+                try {
+                    DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+                        output.writeInt(MAGIC)
+                        output.writeInt(VERSION)
+                        output.writeLong(version.first)
+                        output.writeLong(version.second)
+                        output.writeInt(bytes.size)
+                        output.write(bytes)
+                    }
+                    if (!temp.renameTo(file)) {
+                        throw IOException("Failed to replace $file")
+                    }
+                } catch (ex: IOException) {
+                    e("Failed to write icon pack index of $packageName", ex)
+                    temp.delete()
+                }
+            }
+            return IconPackIndex(ByteBuffer.wrap(bytes))
+        }
+
+        private fun getFile(context: Context, packageName: String): File {
+            return File(File(context.filesDir, DIR_NAME).apply { mkdirs() }, packageName)
+        }
+
+        @Suppress("DEPRECATION")
+        private fun getPackVersion(context: Context, packageName: String): Pair<Long, Long>? {
+            return try {
+                val info = context.packageManager.getPackageInfo(packageName, 0)
+                val versionCode = if (Utilities.ATLEAST_P) info.longVersionCode
+                        else info.versionCode.toLong()
+                Pair(versionCode, info.lastUpdateTime)
+            } catch (ex: PackageManager.NameNotFoundException) {
+                null
+            }
+        }
+
+        private fun hash(key: String): Int {
+            val h = key.hashCode()
+            return h xor (h ushr 16)
+        }
+
+        private fun readString(input: ByteBuffer): String {
+            val bytes = ByteArray(input.short.toInt() and 0xffff)
+            input.get(bytes)
+            return String(bytes, Charsets.UTF_8)
+        }
+
+        private fun readStrings(input: ByteBuffer) = List(input.int) { readString(input) }
+
+        private fun writeString(output: DataOutputStream, value: String) {
+            val bytes = value.toByteArray(Charsets.UTF_8)
+            output.writeShort(bytes.size)
+            output.write(bytes)
+        }
+
+        private fun writeStrings(output: DataOutputStream, values: List<String>) {
+            output.writeInt(values.size)
+            values.forEach { writeString(output, it) }
+        }
+    }
+}
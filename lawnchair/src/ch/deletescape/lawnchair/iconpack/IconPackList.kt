@@ -33,8 +33,12 @@ class IconPackList(private val context: Context, private val manager: IconPackMa
 
     private val prefs = Utilities.getLawnchairPrefs(context)
 
+    // Guarded by itself, packs are also resolved on the icon render threads
     private val loadedPacks = HashMap<String, LoadedPack>()
-    val appliedPacks = ArrayList<IconPack>()
+    // Replaced as a whole on every update, readers should only read it once
+    @Volatile
+    var appliedPacks: List<IconPack> = emptyList()
+        private set
 
     private val default by lazy { DefaultLoadedPack() }
 
@@ -44,28 +48,30 @@ class IconPackList(private val context: Context, private val manager: IconPackMa
 
     private fun onPackListUpdated(packs: List<String>) {
         LooperExecutor(LauncherModel.getIconPackLooper()).execute {
-            loadedPacks.values.forEach {
-                if (!packs.contains(it.packageName)) {
-                    it.unregister()
+            synchronized(loadedPacks) {
+                loadedPacks.values.forEach {
+                    if (!packs.contains(it.packageName)) {
+                        it.unregister()
+                    }
                 }
-            }
-
-            appliedPacks.clear()
 
-            val newPacks = HashMap<String, LoadedPack>()
-            packs.forEach { pack ->
-                val loadedPack = loadedPacks.getOrPut(pack) {
-                    loadPack(pack).apply {
-                        iconPack.ensureInitialLoadComplete()
-                        register()
+                val newAppliedPacks = ArrayList<IconPack>()
+                val newPacks = HashMap<String, LoadedPack>()
+                packs.forEach { pack ->
+                    val loadedPack = loadedPacks.getOrPut(pack) {
+                        loadPack(pack).apply {
+                            iconPack.ensureInitialLoadComplete()
+                            register()
+                        }
                     }
+                    newPacks[pack] = loadedPack
+                    newAppliedPacks.add(loadedPack.iconPack)
                 }
-                newPacks[pack] = loadedPack
-                appliedPacks.add(loadedPack.iconPack)
-            }
+                appliedPacks = newAppliedPacks
 
-            loadedPacks.clear()
-            loadedPacks.putAll(newPacks)
+                loadedPacks.clear()
+                loadedPacks.putAll(newPacks)
+            }
 
             manager.onPacksUpdated()
         }
@@ -75,17 +81,20 @@ class IconPackList(private val context: Context, private val manager: IconPackMa
         LoadedPackImpl(packageName) else default
 
     fun getPack(packageName: String, keep: Boolean): IconPack {
-        if (keep) {
-            return loadedPacks.getOrPut(packageName) {
-                loadPack(packageName).apply { register() }
-            }.iconPack
+        synchronized(loadedPacks) {
+            if (keep) {
+                return loadedPacks.getOrPut(packageName) {
+                    loadPack(packageName).apply { register() }
+                }.iconPack
+            }
+            loadedPacks[packageName]?.let { return it.iconPack }
         }
-        loadedPacks[packageName]?.let { return it.iconPack }
         return IconPackImpl(context, packageName)
     }
 
     fun onDateChanged() {
-        loadedPacks.values.forEach { it.iconPack.onDateChanged() }
+        synchronized(loadedPacks) { loadedPacks.values.toList() }
+                .forEach { it.iconPack.onDateChanged() }
     }
 
     fun reloadPacks() {
@@ -98,7 +107,7 @@ class IconPackList(private val context: Context, private val manager: IconPackMa
 
     fun iterator() = appliedPacks.iterator()
 
-    fun currentPack() = if (!appliedPacks.isEmpty()) appliedPacks[0] else default.iconPack
+    fun currentPack() = appliedPacks.firstOrNull() ?: default.iconPack
 
     fun getAvailablePacks(): MutableSet<PackInfo> {
         val pm = context.packageManager
@@ -0,0 +1,300 @@
+/*
+ *     Copyright (C) 2019 Lawnchair Team.
+ *
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.predictions
+
+import android.content.Context
+import android.os.Handler
+import ch.deletescape.lawnchair.util.extensions.e
+import java.io.*
+import java.util.*
+
+/**
+ * A [PredictionEngine] which scores apps by how often they were launched in a context similar
+ * to the current one.
+ *
+ * For each app it keeps a launch counter, a counter for each value of every context feature, and
+ * counters for the apps launched right before it. All counters decay with a half-life of
+ * [HALF_LIFE_MS]. Rather than decaying every counter over time, launches are weighted by a boost
+ * growing at the same rate, which keeps updates constant time; counters are scaled back down once
+ * the boost gets large. An app's score combines its launch frequency with the smoothed likelihood
+ * of each feature value of the current context. The ranking is cached until the context changes
+ * or a launch is recorded.
+ *
+ * Counters are kept in memory and written to a small binary file shortly after they change. The
+ * launch history of the previous count based predictor is used as a context free starting point.
+ */
+class ContextualPredictionEngine(context: Context, private val handler: Handler) : PredictionEngine {
+
+    private val file = File(context.getDir(LaunchEventStore.DIR_NAME, Context.MODE_PRIVATE), FILE_NAME)
+
+    private val apps = HashMap<String, AppStats>()
+    // Time at which the boost was 1
+    private var epoch = System.currentTimeMillis()
+
+    private var cachedContext: LaunchContext? = null
+    private var cachedRanking: List<String>? = null
+
+    private val saveRunnable = Runnable { save() }
+
+    init {
+        if (file.exists()) {
+            load()
+        } else {
+            migrate(context)
+        }
+    }
+
+    override fun onLaunch(key: String, context: LaunchContext) {
+        val weight = getBoost(true)
+        val stats = apps.getOrPut(key) { AppStats() }
+        stats.slots[SLOT_TOTAL] += weight
+        getFeatureSlots(context).forEach { stats.slots[it] += weight }
+        val lastLaunched = context.lastLaunched
+        if (lastLaunched != null && lastLaunched != key) {
+            stats.addPredecessor(lastLaunched, weight)
+        }
+        onChanged()
+    }
+
+    override fun getRanked(context: LaunchContext, limit: Int): List<String> {
+        var ranking = cachedRanking
+        if (ranking == null || context != cachedContext) {
+            ranking = rank(context)
+            cachedRanking = ranking
+            cachedContext = context
+        }
+        return ranking.take(limit)
+    }
+
+    override fun removeAll(filter: (String) -> Boolean): Boolean {
+        val removed = apps.keys.filterTo(HashSet(), filter)
+        if (removed.isEmpty()) return false
+        apps.keys.removeAll(removed)
+        apps.values.forEach { it.predecessors.keys.removeAll(removed) }
+        onChanged()
+        return true
+    }
+
+    override fun replace(key: String, replacement: String) {
+        if (key == replacement) return
+        val stats = apps.remove(key) ?: return
+        val target = apps.getOrPut(replacement) { AppStats() }
+        for (i in 0 until SLOT_COUNT) {
+            target.slots[i] += stats.slots[i]
+        }
+        stats.predecessors.forEach { (predecessor, count) ->
+            if (predecessor != replacement) {
+                target.addPredecessor(predecessor, count)
+            }
+        }
+        apps.forEach { (appKey, appStats) ->
+            val count = appStats.predecessors.remove(key)
+            if (count != null && appKey != replacement) {
+                appStats.addPredecessor(replacement, count)
+            }
+        }
+        onChanged()
+    }
+
+    private fun rank(context: LaunchContext): List<String> {
+        if (apps.isEmpty()) return emptyList()
+        val featureSlots = getFeatureSlots(context)
+        val prior = PRIOR_LAUNCHES * getBoost(false)
+        val transitionPrior = prior / apps.size
+        val lastLaunched = context.lastLaunched
+
+        val scores = HashMap<String, Double>(apps.size)
+        apps.forEach { (key, stats) ->
+            val total = stats.slots[SLOT_TOTAL]
+            var score = Math.log(total.toDouble())
+            for (i in featureSlots.indices) {
+                val count = stats.slots[featureSlots[i]]
+                score += Math.log(((count + prior / FEATURE_SIZES[i]) / (total + prior)).toDouble())
+            }
+            if (lastLaunched != null) {
+                val count = stats.predecessors[lastLaunched] ?: 0f
+                score += Math.log(((count + transitionPrior) / (total + prior)).toDouble())
+            }
+            scores[key] = score
+        }
+        return scores.keys.sortedByDescending { scores[it] }
+    }
+
+    /**
+     * Returns the weight of a launch happening now. If [allowRescale] is true and the weight got
+     * too large, all counters are scaled down first.
+     */
+    private fun getBoost(allowRescale: Boolean): Float {
+        val now = System.currentTimeMillis()
+        val boost = Math.pow(2.0, (now - epoch).toDouble() / HALF_LIFE_MS).toFloat()
+        if (!allowRescale || boost <= MAX_BOOST) {
+            return boost
+        }
+        rescale(1 / boost)
+        epoch = now
+        return 1f
+    }
+
+    private fun rescale(factor: Float) {
+        val iterator = apps.values.iterator()
+        while (iterator.hasNext()) {
+            val stats = iterator.next()
+            for (i in 0 until SLOT_COUNT) {
+                stats.slots[i] *= factor
+            }
+            if (stats.slots[SLOT_TOTAL] < MIN_LAUNCHES) {
+                iterator.remove()
+                continue
+            }
+            stats.predecessors.entries.forEach { it.setValue(it.value * factor) }
+            stats.predecessors.values.removeAll { it < MIN_LAUNCHES }
+        }
+    }
+
+    private fun onChanged() {
+        cachedRanking = null
+        handler.removeCallbacks(saveRunnable)
+        handler.postDelayed(saveRunnable, SAVE_DELAY_MS)
+    }
+
+    private fun load() {
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != VERSION) {
+                    throw IOException("Unknown prediction data version")
+                }
+                epoch = input.readLong()
+                repeat(input.readInt()) {
+                    val key = input.readUTF()
+                    val stats = AppStats()
+                    for (i in 0 until SLOT_COUNT) {
+                        stats.slots[i] = input.readFloat()
+                    }
+                    repeat(input.readInt()) {
+                        stats.predecessors[input.readUTF()] = input.readFloat()
+                    }
+                    apps[key] = stats
+                }
+            }
+        } catch (ex: IOException) {
+            e("Failed to read prediction data", ex)
+            apps.clear()
+            epoch = System.currentTimeMillis()
+        }
+    }
+
+    private fun migrate(context: Context) {
+        val legacy = LaunchEventStore(context, LEGACY_STORE_NAME, LEGACY_STORE_CAPACITY)
+        val history = legacy.getHistory()
+        if (history.isNotEmpty()) {
+            // The context of these launches is unknown, so spread them over all feature values
+            val weight = getBoost(true)
+            history.forEach { key ->
+                val stats = apps.getOrPut(key) { AppStats() }
+                stats.slots[SLOT_TOTAL] += weight
+                var offset = SLOT_TOTAL + 1
+                for (size in FEATURE_SIZES) {
+                    for (i in offset until offset + size) {
+                        stats.slots[i] += weight / size
+                    }
+                    offset += size
+                }
+            }
+        }
+        save()
+        legacy.delete()
+    }
+
+    private fun save() {
+        handler.removeCallbacks(saveRunnable)
+        val temp = File(file.path + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+                output.writeInt(VERSION)
+                output.writeLong(epoch)
+                output.writeInt(apps.size)
+                apps.forEach { (key, stats) ->
+                    output.writeUTF(key)
+                    stats.slots.forEach { output.writeFloat(it) }
+                    output.writeInt(stats.predecessors.size)
+                    stats.predecessors.forEach { (predecessor, count) ->
+                        output.writeUTF(predecessor)
+                        output.writeFloat(count)
+                    }
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw IOException("Failed to replace $file")
+            }
+        } catch (ex: IOException) {
+            e("Failed to write prediction data", ex)
+        }
+    }
+
+    private class AppStats {
+
+        val slots = FloatArray(SLOT_COUNT)
+        val predecessors = HashMap<String, Float>()
+
+        fun addPredecessor(key: String, weight: Float) {
+            predecessors[key] = (predecessors[key] ?: 0f) + weight
+            if (predecessors.size > MAX_PREDECESSORS) {
+                val weakest = predecessors.entries.minBy { it.value }!!.key
+                predecessors.remove(weakest)
+            }
+        }
+    }
+
+    companion object {
+
+        private const val FILE_NAME = "contextual_launches"
+        private const val VERSION = 1
+
+        private const val LEGACY_STORE_NAME = "recent_app_launches"
+        private const val LEGACY_STORE_CAPACITY = 250
+
+        const val HOUR_BUCKETS = 8
+        private const val DAYS = 7
+
+        // Counter layout, one slot per feature value after the total launch count
+        private const val SLOT_TOTAL = 0
+        private const val SLOT_HOUR = SLOT_TOTAL + 1
+        private const val SLOT_DAY = SLOT_HOUR + HOUR_BUCKETS
+        private const val SLOT_CHARGING = SLOT_DAY + DAYS
+        private const val SLOT_HEADPHONES = SLOT_CHARGING + 2
+        private const val SLOT_COUNT = SLOT_HEADPHONES + 2
+        private val FEATURE_SIZES = intArrayOf(HOUR_BUCKETS, DAYS, 2, 2)
+
+        private const val HALF_LIFE_MS = 14 * 24 * 60 * 60 * 1000L
+        private const val MAX_BOOST = 1 shl 20
+        // Launches assumed to be evenly spread over all feature values, to smooth new apps
+        private const val PRIOR_LAUNCHES = 2f
+        // Decayed counters below this are dropped when rescaling
+        private const val MIN_LAUNCHES = 0.05f
+        private const val MAX_PREDECESSORS = 8
+        private const val SAVE_DELAY_MS = 10_000L
+
+        private fun getFeatureSlots(context: LaunchContext) = intArrayOf(
+                SLOT_HOUR + context.hourBucket,
+                SLOT_DAY + context.dayOfWeek,
+                SLOT_CHARGING + if (context.charging) 1 else 0,
+                SLOT_HEADPHONES + if (context.headphones) 1 else 0)
+    }
+}
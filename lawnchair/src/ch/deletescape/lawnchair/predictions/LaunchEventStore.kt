@@ -0,0 +1,284 @@
+/*
+ *     Copyright (C) 2019 Lawnchair Team.
+ *
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.predictions
+
+import android.content.Context
+import android.text.TextUtils
+import ch.deletescape.lawnchair.uiWorkerHandler
+import ch.deletescape.lawnchair.util.extensions.e
+import com.android.launcher3.Utilities
+import java.io.*
+import java.util.*
+
+/**
+ * Keeps the last [capacity] launch events of a predictor along with how often each key occurs
+ * among them.
+ *
+ * Events live in a ring buffer and the per key counts are updated as events enter and leave it,
+ * so ranking never has to recount the history. Each launch is appended to a small binary log
+ * instead of rewriting the whole history, and the log is compacted once it grows past a few
+ * times the capacity. The log is written on the ui worker thread, in the order of the changes, so
+ * recording a launch never blocks on disk. The history previously stored in the device prefs
+ * under [name] is migrated on first use.
+ */
+class LaunchEventStore(context: Context, private val name: String, private val capacity: Int) : LaunchKeyStore {
+
+    private val file = File(context.getDir(DIR_NAME, Context.MODE_PRIVATE), name)
+
+    private val ids = HashMap<String, Int>()
+    private val keys = ArrayList<String?>()
+    private val freeIds = ArrayList<Int>()
+    private var counts = IntArray(INITIAL_KEYS)
+    private var lastLaunch = LongArray(INITIAL_KEYS)
+
+    // Ring buffer of key ids, oldest first starting at head
+    private val events = IntArray(capacity)
+    private var head = 0
+    private var size = 0
+
+    private var sequence = 0L
+    private var logRecords = 0
+
+    private val rankComparator = Comparator<Int> { a, b ->
+        val byCount = counts[a].compareTo(counts[b])
+        if (byCount != 0) byCount else lastLaunch[a].compareTo(lastLaunch[b])
+    }
+
+    init {
+        if (file.exists()) {
+            load()
+        } else {
+            migrate(context)
+        }
+    }
+
+    /**
+     * Records a launch of [key].
+     */
+    fun add(key: String) {
+        record(key)
+        if (logRecords >= capacity * MAX_LOG_FACTOR) {
+            compact()
+        } else {
+            append(key)
+        }
+    }
+
+    /**
+     * Returns up to [limit] distinct keys, the most launched first. Keys launched equally often
+     * are ordered by their last launch.
+     */
+    fun getRanked(limit: Int): List<String> {
+        if (limit <= 0 || ids.isEmpty()) return emptyList()
+        val heap = PriorityQueue<Int>(minOf(limit, ids.size) + 1, rankComparator)
+        for (id in ids.values) {
+            heap.add(id)
+            if (heap.size > limit) {
+                heap.poll()
+            }
+        }
+        val ranked = ArrayList<String>(heap.size)
+        while (heap.isNotEmpty()) {
+            ranked.add(keys[heap.poll()]!!)
+        }
+        ranked.reverse()
+        return ranked
+    }
+
+    /**
+     * Removes all events of the keys matching [filter].
+     */
+    override fun removeAll(filter: (String) -> Boolean): Boolean {
+        val removed = ids.keys.filterTo(HashSet(), filter)
+        if (removed.isEmpty()) return false
+        rewriteEvents { if (it in removed) null else it }
+        return true
+    }
+
+    /**
+     * Moves all events of [key] to [replacement].
+     */
+    override fun replace(key: String, replacement: String) {
+        if (key == replacement || !ids.containsKey(key)) return
+        rewriteEvents { if (it == key) replacement else it }
+    }
+
+    fun clear() {
+        resetEvents()
+        compact()
+    }
+
+    /**
+     * Clears the history and deletes its file.
+     */
+    fun delete() {
+        resetEvents()
+        uiWorkerHandler.post { file.delete() }
+    }
+
+    private fun record(key: String) {
+        if (size == capacity) {
+            release(events[head])
+            head = (head + 1) % capacity
+            size--
+        }
+        val id = obtain(key)
+        events[(head + size) % capacity] = id
+        size++
+        counts[id]++
+        lastLaunch[id] = ++sequence
+    }
+
+    private fun obtain(key: String): Int {
+        ids[key]?.let { return it }
+        val id = if (freeIds.isNotEmpty()) {
+            freeIds.removeAt(freeIds.size - 1)
+        } else {
+            keys.add(null)
+            keys.size - 1
+        }
+        if (id >= counts.size) {
+            counts = counts.copyOf(counts.size * 2)
+            lastLaunch = lastLaunch.copyOf(lastLaunch.size * 2)
+        }
+        keys[id] = key
+        ids[key] = id
+        counts[id] = 0
+        lastLaunch[id] = 0
+        return id
+    }
+
+    private fun release(id: Int) {
+        if (--counts[id] == 0) {
+            ids.remove(keys[id])
+            keys[id] = null
+            freeIds.add(id)
+        }
+    }
+
+    private fun rewriteEvents(transform: (String) -> String?) {
+        val history = getHistory()
+        resetEvents()
+        history.mapNotNull(transform).forEach(this::record)
+        compact()
+    }
+
+    private fun resetEvents() {
+        ids.clear()
+        keys.clear()
+        freeIds.clear()
+        head = 0
+        size = 0
+    }
+
+    /**
+     * Returns the keys of all events, oldest first.
+     */
+    fun getHistory(): List<String> = (0 until size).map { keys[events[(head + it) % capacity]]!! }
+
+    private fun load() {
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != VERSION) {
+                    throw IOException("Unknown launch history version")
+                }
+                while (true) {
+                    val op = try {
+                        input.readByte().toInt()
+                    } catch (ignored: EOFException) {
+                        break
+                    }
+                    if (op != OP_LAUNCH) {
+                        throw IOException("Unknown launch history record $op")
+                    }
+                    record(input.readUTF())
+                    logRecords++
+                }
+            }
+        } catch (ex: IOException) {
+            // Keep whatever could be read, the log is rewritten below
+            e("Failed to read launch history $name", ex)
+            compact()
+        }
+    }
+
+    private fun migrate(context: Context) {
+        val prefs = Utilities.getDevicePrefs(context)
+        val legacy = prefs.getString(name, null)
+        if (legacy != null) {
+            // The legacy list is stored most recent first
+            legacy.split(LEGACY_DELIMITER)
+                    .filterNot { TextUtils.isEmpty(it) }
+                    .take(capacity)
+                    .asReversed()
+                    .forEach(this::record)
+            prefs.edit().remove(name).apply()
+        }
+        compact()
+    }
+
+    private fun append(key: String) {
+        logRecords++
+        uiWorkerHandler.post {
+            try {
+                DataOutputStream(FileOutputStream(file, true)).use { output ->
+                    output.writeByte(OP_LAUNCH)
+                    output.writeUTF(key)
+                }
+            } catch (ex: IOException) {
+                e("Failed to write launch history $name", ex)
+            }
+        }
+    }
+
+    private fun compact() {
+        val history = getHistory()
+        logRecords = size
+        uiWorkerHandler.post {
+            val temp = File(file.path + ".tmp")
+            try {
+                DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { output ->
+                    output.writeInt(VERSION)
+                    history.forEach {
+                        output.writeByte(OP_LAUNCH)
+                        output.writeUTF(it)
+                    }
+                }
+                if (!temp.renameTo(file)) {
+                    throw IOException("Failed to replace $file")
+                }
+            } catch (ex: IOException) {
+                e("Failed to write launch history $name", ex)
+            }
+        }
+    }
+
+    companion object {
+
+        const val DIR_NAME = "predictions"
+        private const val VERSION = 1
+        private const val OP_LAUNCH = 1
+        private const val LEGACY_DELIMITER = ";"
+
+        private const val INITIAL_KEYS = 32
+        // Number of records, relative to the capacity, after which the log is compacted
+        private const val MAX_LOG_FACTOR = 4
+    }
+}
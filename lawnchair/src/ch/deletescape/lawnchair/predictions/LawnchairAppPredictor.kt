@@ -23,10 +23,13 @@ import android.bluetooth.BluetoothHeadset
 import android.bluetooth.BluetoothProfile
 import android.content.*
 import android.content.pm.PackageManager
+import android.content.pm.ShortcutInfo
+import android.os.BatteryManager
 import android.os.Bundle
 import android.os.Handler
 import android.os.Process
 import android.os.SystemClock
+import android.os.UserHandle
 import android.text.TextUtils
 import ch.deletescape.lawnchair.predictions.AppTargetEventCompat.ACTION_LAUNCH
 import ch.deletescape.lawnchair.runOnMainThread
@@ -34,8 +37,11 @@ import com.android.launcher3.AppFilter
 import com.android.launcher3.Utilities
 import com.android.launcher3.Utilities.makeComponentKey
 import com.android.launcher3.appprediction.PredictionUiStateManager
+import com.android.launcher3.compat.LauncherAppsCompat
 import com.android.launcher3.model.AppLaunchTracker.CONTAINER_ALL_APPS
 import com.android.launcher3.util.ComponentKey
+import com.android.launcher3.util.PackageUserKey
+import java.util.Calendar
 import java.util.concurrent.TimeUnit
 
 import com.android.launcher3.appprediction.PredictionUiStateManager.Client.HOME
@@ -54,9 +60,51 @@ open class LawnchairAppPredictor(
     private val packageManager = context.packageManager
     private val appFilter = AppFilter.newInstance(context)
 
-    private val devicePrefs = Utilities.getDevicePrefs(context)
-    private val appsList = CountRankedArrayPreference(devicePrefs, "recent_app_launches", 250)
-    private val phonesList = CountRankedArrayPreference(devicePrefs, "plugged_app_launches", 20)
+    private val engine by lazy { createEngine() }
+    private val phonesList = LaunchEventStore(context, "plugged_app_launches", 20)
+
+    /**
+     * Stored keys which are known to point to an existing activity, mapped to their package. Keys
+     * are dropped from here when their package changes, and only those are validated again.
+     */
+    private val validatedKeys = HashMap<String, PackageUserKey>()
+    /**
+     * Whether a package has changed since the stored keys were last validated
+     */
+    @Volatile
+    private var validationNeeded = true
+    /**
+     * Incremented on each package change, so that a validation racing with it isn't cached
+     */
+    private var packageGeneration = 0
+    private val packageChangeCallback = object : LauncherAppsCompat.OnAppsChangedCallbackCompat {
+
+        override fun onPackageRemoved(packageName: String, user: UserHandle) {
+            invalidatePackage(packageName, user)
+        }
+
+        override fun onPackageAdded(packageName: String, user: UserHandle) {
+            invalidatePackage(packageName, user)
+        }
+
+        override fun onPackageChanged(packageName: String, user: UserHandle) {
+            invalidatePackage(packageName, user)
+        }
+
+        override fun onPackagesAvailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
+            packageNames.forEach { invalidatePackage(it, user) }
+        }
+
+        override fun onPackagesUnavailable(packageNames: Array<out String>, user: UserHandle, replacing: Boolean) {
+            packageNames.forEach { invalidatePackage(it, user) }
+        }
+
+        override fun onPackagesSuspended(packageNames: Array<out String>, user: UserHandle) {}
+
+        override fun onPackagesUnsuspended(packageNames: Array<out String>, user: UserHandle) {}
+
+        override fun onShortcutsChanged(packageName: String?, shortcuts: MutableList<ShortcutInfo>?, user: UserHandle?) {}
+    }
 
     /**
      * Time at which headphones have been plugged in / connected. 0 if disconnected, -1 before initialized
@@ -86,27 +134,44 @@ open class LawnchairAppPredictor(
      * Number of launches recorded since headphones were connected
      */
     private var phonesLaunches = 0
+    /**
+     * Whether headphones are currently plugged in / connected
+     */
+    private var phonesConnected = false
+    private var charging = false
+    private val chargingStateReceiver by lazy {
+        object : BroadcastReceiver() {
+
+            override fun onReceive(context: Context, intent: Intent) {
+                charging = intent.action == Intent.ACTION_POWER_CONNECTED
+            }
+        }
+    }
+    private var lastLaunched: String? = null
+    private var lastLaunchedAt = 0L
     private val phonesStateChangeReceiver by lazy {
         object : BroadcastReceiver() {
             private var firstReceive = true
 
             override fun onReceive(context: Context, intent: Intent) {
-                if (!firstReceive) {
-                    phonesConnectedAt = when (intent.action) {
-                        Intent.ACTION_HEADSET_PLUG -> {
-                            when (intent.getIntExtra("state", -1)) {
-                                1 -> SystemClock.currentThreadTimeMillis()
-                                else -> 0
-                            }
+                val connectedAt: Long = when (intent.action) {
+                    Intent.ACTION_HEADSET_PLUG -> {
+                        when (intent.getIntExtra("state", -1)) {
+                            1 -> SystemClock.currentThreadTimeMillis()
+                            else -> 0
                         }
-                        BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED -> {
-                            when (intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1)) {
-                                2 -> SystemClock.currentThreadTimeMillis()
-                                else -> 0
-                            }
+                    }
+                    BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED -> {
+                        when (intent.getIntExtra(BluetoothProfile.EXTRA_STATE, -1)) {
+                            2 -> SystemClock.currentThreadTimeMillis()
+                            else -> 0
                         }
-                        else -> 0
                     }
+                    else -> 0
+                }
+                phonesConnected = connectedAt != 0L
+                if (!firstReceive) {
+                    phonesConnectedAt = connectedAt
                 }
                 firstReceive = false
             }
@@ -120,6 +185,14 @@ open class LawnchairAppPredictor(
                 IntentFilter(Intent.ACTION_HEADSET_PLUG).apply {
                     addAction(BluetoothHeadset.ACTION_CONNECTION_STATE_CHANGED)
                 }, null, handler)
+        val batteryStatus = context.registerReceiver(null, IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+        charging = (batteryStatus?.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) ?: 0) != 0
+        context.registerReceiver(
+                chargingStateReceiver,
+                IntentFilter(Intent.ACTION_POWER_CONNECTED).apply {
+                    addAction(Intent.ACTION_POWER_DISCONNECTED)
+                }, null, handler)
+        LauncherAppsCompat.getInstance(context).addOnAppsChangedCallback(packageChangeCallback)
     }
 
     override fun notifyAppTargetEvent(event: AppTargetEventCompat) {
@@ -131,9 +204,14 @@ open class LawnchairAppPredictor(
                 if (appFilter.shouldShowApp(component, target.user)) {
                     clearRemovedComponents()
 
+                    // The component was just launched, so it doesn't need validation
+                    synchronized(validatedKeys) {
+                        validatedKeys[key] = PackageUserKey(component.packageName, target.user)
+                    }
+
                     var changed = false
                     if (event.launchLocation == CONTAINER_ALL_APPS) {
-                        appsList.add(key)
+                        engine.onLaunch(key, getLaunchContext())
                         changed = true
                     }
                     if (relevantForPhones) {
@@ -142,6 +220,9 @@ open class LawnchairAppPredictor(
                         changed = true
                     }
 
+                    lastLaunched = key
+                    lastLaunchedAt = SystemClock.uptimeMillis()
+
                     if (changed) {
                         updatePredictions()
                     }
@@ -155,15 +236,15 @@ open class LawnchairAppPredictor(
     }
 
     override fun destroy() {
-
+        LauncherAppsCompat.getInstance(context).removeOnAppsChangedCallback(packageChangeCallback)
     }
 
     private fun updatePredictions() {
         clearRemovedComponents()
 
         val user = Process.myUserHandle()
-        val appList = if (phonesJustConnected) phonesList.getRanked().take(MAX_HEADPHONE_SUGGESTIONS).toMutableList() else mutableListOf()
-        appList.addAll(appsList.getRanked().filterNot { appList.contains(it) }.take(maxPredictions - appList.size))
+        val appList = if (phonesJustConnected) phonesList.getRanked(MAX_HEADPHONE_SUGGESTIONS).toMutableList() else mutableListOf()
+        appList.addAll(engine.getRanked(getLaunchContext(), maxPredictions).filterNot { appList.contains(it) }.take(maxPredictions - appList.size))
         val fullList = appList.map { makeComponentKey(context, it) }
                 .filterNot { isHiddenApp(context, it) }.toMutableList()
         if (fullList.size < maxPredictions) {
@@ -185,82 +266,70 @@ open class LawnchairAppPredictor(
         }
     }
 
+    /**
+     * Creates the engine ranking the apps launched from all apps
+     */
+    protected open fun createEngine(): PredictionEngine = ContextualPredictionEngine(context, handler)
+
+    private fun getLaunchContext(): LaunchContext {
+        val calendar = Calendar.getInstance()
+        val hourBucket = calendar.get(Calendar.HOUR_OF_DAY) * ContextualPredictionEngine.HOUR_BUCKETS / 24
+        val dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY
+        val recentLaunch = lastLaunched.takeIf {
+            SystemClock.uptimeMillis() - lastLaunchedAt < DURATION_RECENTLY
+        }
+        return LaunchContext(hourBucket, dayOfWeek, charging, phonesConnected, recentLaunch)
+    }
+
+    private fun invalidatePackage(packageName: String, user: UserHandle) {
+        val packageKey = PackageUserKey(packageName, user)
+        synchronized(validatedKeys) {
+            validatedKeys.values.removeAll { it == packageKey }
+            packageGeneration++
+            validationNeeded = true
+        }
+    }
+
     private fun clearRemovedComponents() {
-        appsList.removeAll {
+        if (!validationNeeded) return
+        validationNeeded = false
+        clearRemovedComponents(engine)
+        clearRemovedComponents(phonesList)
+    }
+
+    private fun clearRemovedComponents(store: LaunchKeyStore) {
+        val generation = synchronized(validatedKeys) { packageGeneration }
+        val replacements = HashMap<String, String>()
+        store.removeAll {
             if (TextUtils.isEmpty(it)) {
                 return@removeAll true
             }
+            if (synchronized(validatedKeys) { validatedKeys.containsKey(it) }) {
+                return@removeAll false
+            }
             val key = makeComponentKey(context, it)
             val component = key.componentName
             try {
                 packageManager.getActivityInfo(component, 0)
-                false
-            } catch (ignored: PackageManager.NameNotFoundException) {
-                val intent = packageManager.getLaunchIntentForPackage(component.packageName)
-                if (intent != null) {
-                    val componentInfo = intent.component
-                    if (componentInfo != null) {
-                        appsList.replace(it, key.toString())
-                        return@removeAll false
+                synchronized(validatedKeys) {
+                    if (packageGeneration == generation) {
+                        validatedKeys[it] = PackageUserKey(component.packageName, key.user)
                     }
                 }
-                true
-            }
-        }
-        phonesList.removeAll {
-            if (TextUtils.isEmpty(it)) {
-                return@removeAll true
-            }
-            val key = makeComponentKey(context, it)
-            val component = key.componentName
-            try {
-                packageManager.getActivityInfo(component, 0)
                 false
             } catch (ignored: PackageManager.NameNotFoundException) {
                 val intent = packageManager.getLaunchIntentForPackage(component.packageName)
                 if (intent != null) {
                     val componentInfo = intent.component
                     if (componentInfo != null) {
-                        phonesList.replace(it, key.toString())
+                        replacements[it] = ComponentKey(componentInfo, key.user).toString()
                         return@removeAll false
                     }
                 }
                 true
             }
         }
-    }
-
-    /**
-     * A ranked list with roll over to get/store currently relevant events and rank them by occurence
-     */
-    inner class CountRankedArrayPreference(private val prefs: SharedPreferences, private val key: String, private val maxSize: Int = -1, private val delimiter: String = ";") {
-        private var list = load()
-
-        fun getRanked() : Set<String> = list.distinct().sortedBy { value -> list.count { it == value } }.reversed().toSet()
-
-        fun add(string: String) {
-            list.add(0, string)
-            if (maxSize >= 0 && list.size > maxSize) {
-                list = list.drop(maxSize).toMutableList()
-            }
-            save()
-        }
-
-        fun clear() {
-            list.clear()
-            prefs.edit().remove(key).apply()
-        }
-        fun removeAll(filter: (String) -> Boolean) = list.removeAll(filter)
-        fun replace(filter: String, replacement: String) {
-            list = list.map { if (it == filter) replacement else it }.toMutableList()
-        }
-        fun contains(element: String) = list.contains(element)
-
-        private fun load() = (prefs.getString(key, "")?: "").split(delimiter).toMutableList()
-        private fun save() {
-            val strValue = list.joinToString(delimiter)
-            prefs.edit().putString(key, strValue).apply()
-        }
+        replacements.forEach { (key, replacement) -> store.replace(key, replacement) }
     }
 
     companion object {
@@ -0,0 +1,64 @@
+/*
+ *     Copyright (C) 2019 Lawnchair Team.
+ *
+ *     This file is part of Lawnchair Launcher.
+ *
+ *     Lawnchair Launcher is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Lawnchair Launcher is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Lawnchair Launcher.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.deletescape.lawnchair.predictions
+
+/**
+ * A store of launch data keyed by flattened [com.android.launcher3.util.ComponentKey]s.
+ */
+interface LaunchKeyStore {
+
+    /**
+     * Removes all data of the keys matching [filter], returns whether anything was removed.
+     */
+    fun removeAll(filter: (String) -> Boolean): Boolean
+
+    /**
+     * Moves all data of [key] to [replacement].
+     */
+    fun replace(key: String, replacement: String)
+}
+
+/**
+ * Ranks apps for the context in which a prediction is shown, learning from the launches it is
+ * notified of.
+ */
+interface PredictionEngine : LaunchKeyStore {
+
+    fun onLaunch(key: String, context: LaunchContext)
+
+    /**
+     * Returns up to [limit] keys, the most likely to be launched in [context] first.
+     */
+    fun getRanked(context: LaunchContext, limit: Int): List<String>
+}
+
+/**
+ * The state of the device at the time of a launch or prediction.
+ *
+ * @param hourBucket the part of the day, see [ContextualPredictionEngine.HOUR_BUCKETS]
+ * @param dayOfWeek the day of the week, starting at 0
+ * @param lastLaunched the key of the app launched just before, if any
+ */
+data class LaunchContext(
+        val hourBucket: Int,
+        val dayOfWeek: Int,
+        val charging: Boolean,
+        val headphones: Boolean,
+        val lastLaunched: String?)
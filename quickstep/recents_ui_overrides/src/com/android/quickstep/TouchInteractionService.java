@@ -938,6 +938,9 @@ public class TouchInteractionService extends Service implements
             pw.println("  ENABLE_QUICKSTEP_LIVE_TILE=" + ENABLE_QUICKSTEP_LIVE_TILE.get());
             pw.println("  ENABLE_HINTS_IN_OVERVIEW=" + ENABLE_HINTS_IN_OVERVIEW.get());
             pw.println("  FAKE_LANDSCAPE_UI=" + FAKE_LANDSCAPE_UI.get());
+            if (mRecentsModel != null) {
+                mRecentsModel.getThumbnailCache().dump("", pw);
+            }
             TOUCH_INTERACTION_LOG.dump("", pw);
 
         }
@@ -171,6 +171,7 @@ public abstract class RecentsView<T extends BaseActivity> extends PagedView impl
     protected final T mActivity;
     private final float mFastFlingVelocity;
     private final RecentsModel mModel;
+    private final ArrayList<Task> mTmpPrefetchTasks = new ArrayList<>();
     private final int mTaskTopMargin;
     private final ClearAllButton mClearAllButton;
     private final Rect mClearAllButtonDeadZoneRect = new Rect();
@@ -721,6 +722,8 @@ public abstract class RecentsView<T extends BaseActivity> extends PagedView impl
         int numChildren = getTaskViewCount();
         int lower = Math.max(0, centerPageIndex - 2);
         int upper = Math.min(centerPageIndex + 2, numChildren - 1);
+        int prefetchCount = mModel.getThumbnailCache().getPrefetchCount();
+        mTmpPrefetchTasks.clear();
 
         // Update the task data for the in/visible children
         for (int i = 0; i < numChildren; i++) {
@@ -741,8 +744,14 @@ public abstract class RecentsView<T extends BaseActivity> extends PagedView impl
                     taskView.onTaskListVisibilityChanged(false /* visible */);
                 }
                 mHasVisibleTaskData.delete(task.key.id);
+                if (lower - prefetchCount <= i && i <= upper + prefetchCount
+                        && task != mTmpRunningTask) {
+                    mTmpPrefetchTasks.add(task);
+                }
             }
         }
+        // Warm up the thumbnails of the tasks which are scrolled into view next
+        mModel.getThumbnailCache().prefetchThumbnails(mTmpPrefetchTasks);
     }
 
     /**
@@ -17,22 +17,31 @@ package com.android.quickstep;
 
 import static com.android.launcher3.uioverrides.RecentsUiFactory.GO_LOW_RAM_RECENTS_ENABLED;
 
+import android.app.ActivityManager.TaskDescription;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.LauncherActivityInfo;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.UserHandle;
+import android.text.TextUtils;
 import android.util.LruCache;
 import android.view.accessibility.AccessibilityManager;
 
+import ch.deletescape.lawnchair.HiddenApiCompat;
 import ch.deletescape.lawnchair.LawnchairIconLoader;
+import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.MainThreadExecutor;
 import com.android.launcher3.R;
 import com.android.launcher3.Utilities;
+import com.android.launcher3.WorkspaceItemInfo;
+import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.graphics.DrawableFactory;
 import com.android.launcher3.icons.cache.HandlerRunnable;
-import com.android.launcher3.uioverrides.RecentsUiFactory;
 import com.android.launcher3.util.Preconditions;
 import com.android.systemui.shared.recents.model.Task;
 import com.android.systemui.shared.recents.model.TaskKeyLruCache;
@@ -42,41 +51,38 @@ import java.util.function.Consumer;
 
 /**
  * Manages the caching of task icons and related data.
- * TODO: This class should later be merged into IconCache.
+ *
+ * Icons and labels of tasks of launcher activities are served from the launcher icon cache, which
+ * persists them, so they don't need to be rendered again after a restart. The icons of other
+ * activities and of tasks which override their icon in their {@link TaskDescription} are rendered
+ * here and kept in memory.
  */
 public class TaskIconCache {
 
+    private final Context mContext;
     private final Handler mBackgroundHandler;
     private final MainThreadExecutor mMainThreadExecutor;
     private final AccessibilityManager mAccessibilityManager;
+    private final LauncherAppState mLauncherAppState;
+    private final DrawableFactory mDrawableFactory;
 
     private final NormalizedIconLoader mIconLoader;
 
-    private final TaskKeyLruCache<Drawable> mIconCache;
-    private final TaskKeyLruCache<String> mContentDescriptionCache;
-    private final LruCache<ComponentName, ActivityInfo> mActivityInfoCache;
-
-    private TaskKeyLruCache.EvictionCallback mClearActivityInfoOnEviction =
-            new TaskKeyLruCache.EvictionCallback() {
-        @Override
-        public void onEntryEvicted(Task.TaskKey key) {
-            if (key != null) {
-                mActivityInfoCache.remove(key.getComponent());
-            }
-        }
-    };
+    private final TaskKeyLruCache<Drawable> mRenderedIconCache;
 
     public TaskIconCache(Context context, Looper backgroundLooper) {
+        mContext = context;
         mBackgroundHandler = new Handler(backgroundLooper);
         mMainThreadExecutor = new MainThreadExecutor();
         mAccessibilityManager = context.getSystemService(AccessibilityManager.class);
+        mLauncherAppState = LauncherAppState.getInstance(context);
+        mDrawableFactory = DrawableFactory.INSTANCE.get(context);
 
         Resources res = context.getResources();
         int cacheSize = res.getInteger(R.integer.recentsIconCacheSize);
-        mIconCache = new TaskKeyLruCache<>(cacheSize, mClearActivityInfoOnEviction);
-        mContentDescriptionCache = new TaskKeyLruCache<>(cacheSize, mClearActivityInfoOnEviction);
-        mActivityInfoCache = new LruCache<>(cacheSize);
-        mIconLoader = new LawnchairIconLoader(context, mIconCache, mActivityInfoCache,
+        mRenderedIconCache = new TaskKeyLruCache<>(cacheSize);
+        mIconLoader = new LawnchairIconLoader(context, mRenderedIconCache,
+                new LruCache<ComponentName, ActivityInfo>(cacheSize),
                 true /* disableColorExtraction */);
     }
 
@@ -98,8 +104,18 @@ public class TaskIconCache {
         IconLoadRequest request = new IconLoadRequest(mBackgroundHandler) {
             @Override
             public void run() {
-                Drawable icon = mIconLoader.getIcon(task);
-                String contentDescription = loadContentDescriptionInBackground(task);
+                LauncherActivityInfo activityInfo = hasIconOverride(task)
+                        ? null : resolveLauncherActivity(task);
+                Drawable icon;
+                String contentDescription;
+                if (activityInfo != null) {
+                    WorkspaceItemInfo info = getItemInfo(task, activityInfo);
+                    icon = mDrawableFactory.newIcon(mContext, info);
+                    contentDescription = getContentDescription(task, info);
+                } else {
+                    icon = mIconLoader.getIcon(task);
+                    contentDescription = loadContentDescription(task);
+                }
                 if (isCanceled()) {
                     // We don't call back to the provided callback in this case
                     return;
@@ -117,37 +133,74 @@ public class TaskIconCache {
     }
 
     public void clear() {
-        mIconCache.evictAll();
-        mContentDescriptionCache.evictAll();
+        mRenderedIconCache.evictAll();
+    }
+
+    private boolean hasIconOverride(Task task) {
+        return task.taskDescription != null
+                && HiddenApiCompat.hasIconOverride(task.taskDescription);
     }
 
     /**
-     * Loads the content description for the given {@param task}.
+     * Returns the launcher activity of the component of {@param task}, or null if it isn't one,
+     * in which case the launcher icon cache would only have the icon of its package.
      */
-    private String loadContentDescriptionInBackground(Task task) {
-        // Return the cached content description if it exists
-        String label = mContentDescriptionCache.getAndInvalidateIfModified(task.key);
-        if (label != null) {
-            return label;
-        }
+    private LauncherActivityInfo resolveLauncherActivity(Task task) {
+        Intent intent = new Intent(Intent.ACTION_MAIN).setComponent(task.key.getComponent());
+        return LauncherAppsCompat.getInstance(mContext)
+                .resolveActivity(intent, UserHandle.of(task.key.userId));
+    }
 
-        // Skip loading content descriptions if accessibility is disabled unless low RAM recents
-        // is enabled.
-        if (!GO_LOW_RAM_RECENTS_ENABLED && !mAccessibilityManager.isEnabled()) {
+    /**
+     * Returns an item filled with the icon and label of {@param activityInfo} from the launcher
+     * icon cache.
+     */
+    private WorkspaceItemInfo getItemInfo(Task task, LauncherActivityInfo activityInfo) {
+        WorkspaceItemInfo info = new WorkspaceItemInfo();
+        info.intent = new Intent(Intent.ACTION_MAIN).setComponent(task.key.getComponent());
+        info.user = UserHandle.of(task.key.userId);
+        mLauncherAppState.getIconCache().getTitleAndIcon(info, activityInfo,
+                false /* useLowResIcon */);
+        return info;
+    }
+
+    /**
+     * Returns the content description for the given {@param task} from the label of {@param info}.
+     */
+    private String getContentDescription(Task task, WorkspaceItemInfo info) {
+        if (!isContentDescriptionNeeded()) {
             return "";
         }
 
+        String description = info.contentDescription != null
+                ? info.contentDescription.toString() : "";
+        String label = task.taskDescription != null ? task.taskDescription.getLabel() : null;
+        if (TextUtils.isEmpty(label) || TextUtils.equals(label, info.title)) {
+            return description;
+        }
+        return description + " " + label;
+    }
+
+    /**
+     * Loads the content description for the given {@param task} from its activity.
+     */
+    private String loadContentDescription(Task task) {
+        if (!isContentDescriptionNeeded()) {
+            return "";
+        }
         // Skip loading the content description if the activity no longer exists
         ActivityInfo activityInfo = mIconLoader.getAndUpdateActivityInfo(task.key);
         if (activityInfo == null) {
             return "";
         }
-
-        // Load the label otherwise
-        label = ActivityManagerWrapper.getInstance().getBadgedContentDescription(activityInfo,
+        return ActivityManagerWrapper.getInstance().getBadgedContentDescription(activityInfo,
                 task.key.userId, task.taskDescription);
-        mContentDescriptionCache.put(task.key, label);
-        return label;
+    }
+
+    private boolean isContentDescriptionNeeded() {
+        // Skip loading content descriptions if accessibility is disabled unless low RAM recents
+        // is enabled.
+        return GO_LOW_RAM_RECENTS_ENABLED || mAccessibilityManager.isEnabled();
     }
 
     public static abstract class IconLoadRequest extends HandlerRunnable {
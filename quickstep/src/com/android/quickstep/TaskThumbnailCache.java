@@ -20,6 +20,8 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
 import com.android.launcher3.MainThreadExecutor;
 import com.android.launcher3.R;
 import com.android.launcher3.Utilities;
@@ -30,7 +32,9 @@ import com.android.systemui.shared.recents.model.Task.TaskKey;
 import com.android.systemui.shared.recents.model.TaskKeyLruCache;
 import com.android.systemui.shared.recents.model.ThumbnailData;
 import com.android.systemui.shared.system.ActivityManagerWrapper;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Consumer;
 
 public class TaskThumbnailCache {
@@ -39,9 +43,22 @@ public class TaskThumbnailCache {
     private final MainThreadExecutor mMainThreadExecutor;
 
     private final int mCacheSize;
+    private final int mPrefetchCount;
     private final ThumbnailCache mCache;
     private final HighResLoadingState mHighResLoadingState;
 
+    // Pending prefetches by task id, only accessed on the UI thread
+    private final SparseArray<ThumbnailLoadRequest> mPrefetchRequests = new SparseArray<>();
+
+    // Stats, only written on the UI thread
+    private int mHitCount;
+    private int mMissCount;
+    private int mPrefetchLoadCount;
+    private int mPrefetchAttachCount;
+    private int mLoadCount;
+    private long mTotalLoadTimeMs;
+    private long mMaxLoadTimeMs;
+
     public static class HighResLoadingState {
         private boolean mIsLowRamDevice;
         private boolean mVisible;
@@ -99,7 +116,9 @@ public class TaskThumbnailCache {
 
         Resources res = context.getResources();
         mCacheSize = res.getInteger(R.integer.recentsThumbnailCacheSize);
-        mCache = new ThumbnailCache(mCacheSize);
+        mPrefetchCount = res.getInteger(R.integer.recentsThumbnailPrefetchCount);
+        // Leave room for the prefetched thumbnails on both sides of the visible tasks
+        mCache = new ThumbnailCache(mCacheSize + 2 * mPrefetchCount);
     }
 
     /**
@@ -136,6 +155,7 @@ public class TaskThumbnailCache {
         if (task.thumbnail != null && (!task.thumbnail.reducedResolution || reducedResolution)) {
             // Nothing to load, the thumbnail is already high-resolution or matches what the
             // request, so just callback
+            mHitCount++;
             callback.accept(task.thumbnail);
             return null;
         }
@@ -154,10 +174,100 @@ public class TaskThumbnailCache {
         ThumbnailData cachedThumbnail = mCache.getAndInvalidateIfModified(key);
         if (cachedThumbnail != null && (!cachedThumbnail.reducedResolution || reducedResolution)) {
             // Already cached, lets use that thumbnail
+            mHitCount++;
             callback.accept(cachedThumbnail);
             return null;
         }
 
+        ThumbnailLoadRequest prefetch = mPrefetchRequests.get(key.id);
+        if (prefetch != null && (!prefetch.reducedResolution || reducedResolution)) {
+            // The thumbnail is already being prefetched, wait for that load instead of starting
+            // a second one
+            mPrefetchAttachCount++;
+            return attachToPrefetch(prefetch, callback);
+        }
+
+        mMissCount++;
+        return loadThumbnail(key, reducedResolution, callback);
+    }
+
+    private ThumbnailLoadRequest attachToPrefetch(ThumbnailLoadRequest prefetch,
+            Consumer<ThumbnailData> callback) {
+        prefetch.mAttachedCallbacks.add(callback);
+        return new ThumbnailLoadRequest(mBackgroundHandler, prefetch.reducedResolution) {
+            @Override
+            public void run() { }
+
+            @Override
+            public void cancel() {
+                super.cancel();
+                // Only detach from the prefetch, it is canceled once it leaves the prefetch window
+                prefetch.mAttachedCallbacks.remove(callback);
+            }
+        };
+    }
+
+    /**
+     * Loads the thumbnails of {@param tasks}, the tasks next to the visible ones, into the cache
+     * so that they are ready once they are scrolled into view. Pending prefetches of tasks which
+     * are not in the list anymore are canceled, unless a visible task is still waiting on them.
+     */
+    public void prefetchThumbnails(List<Task> tasks) {
+        Preconditions.assertUIThread();
+
+        for (int i = mPrefetchRequests.size() - 1; i >= 0; i--) {
+            int taskId = mPrefetchRequests.keyAt(i);
+            boolean keep = false;
+            for (Task task : tasks) {
+                if (task.key.id == taskId) {
+                    keep = true;
+                    break;
+                }
+            }
+            ThumbnailLoadRequest request = mPrefetchRequests.valueAt(i);
+            if (!keep && request.mAttachedCallbacks.isEmpty()) {
+                request.cancel();
+                mPrefetchRequests.removeAt(i);
+            }
+        }
+        if (!isPreloadingEnabled()) {
+            return;
+        }
+
+        boolean reducedResolution = !mHighResLoadingState.isEnabled();
+        for (Task task : tasks) {
+            TaskKey key = task.key;
+            ThumbnailLoadRequest pending = mPrefetchRequests.get(key.id);
+            if (pending != null && (!pending.reducedResolution || reducedResolution
+                    || !pending.mAttachedCallbacks.isEmpty())) {
+                continue;
+            }
+            ThumbnailData cachedThumbnail = mCache.getAndInvalidateIfModified(key);
+            if (cachedThumbnail != null
+                    && (!cachedThumbnail.reducedResolution || reducedResolution)) {
+                continue;
+            }
+            if (pending != null) {
+                pending.cancel();
+            }
+            mPrefetchLoadCount++;
+            mPrefetchRequests.put(key.id, loadThumbnail(key, reducedResolution, t -> {
+                // Only remove the request if it wasn't replaced in the meantime
+                ThumbnailLoadRequest current = mPrefetchRequests.get(key.id);
+                if (current != null && current.reducedResolution == reducedResolution) {
+                    mPrefetchRequests.remove(key.id);
+                    for (Consumer<ThumbnailData> callback : current.mAttachedCallbacks) {
+                        callback.accept(t);
+                    }
+                    current.mAttachedCallbacks.clear();
+                }
+            }));
+        }
+    }
+
+    private ThumbnailLoadRequest loadThumbnail(TaskKey key, boolean reducedResolution,
+            Consumer<ThumbnailData> callback) {
+        long startTime = SystemClock.uptimeMillis();
         ThumbnailLoadRequest request = new ThumbnailLoadRequest(mBackgroundHandler,
                 reducedResolution) {
             @Override
@@ -169,6 +279,10 @@ public class TaskThumbnailCache {
                     return;
                 }
                 mMainThreadExecutor.execute(() -> {
+                    long loadTime = SystemClock.uptimeMillis() - startTime;
+                    mLoadCount++;
+                    mTotalLoadTimeMs += loadTime;
+                    mMaxLoadTimeMs = Math.max(mMaxLoadTimeMs, loadTime);
                     mCache.put(key, thumbnail);
                     callback.accept(thumbnail);
                     onEnd();
@@ -186,6 +300,23 @@ public class TaskThumbnailCache {
         mCache.evictAll();
     }
 
+    /**
+     * @return The number of tasks on each side of the visible tasks to prefetch thumbnails for.
+     */
+    public int getPrefetchCount() {
+        return mPrefetchCount;
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "TaskThumbnailCache:");
+        writer.println(prefix + "  hits=" + mHitCount + " misses=" + mMissCount
+                + " prefetches=" + mPrefetchLoadCount + " attachedToPrefetch="
+                + mPrefetchAttachCount + " pendingPrefetches=" + mPrefetchRequests.size());
+        writer.println(prefix + "  loads=" + mLoadCount + " avgLoadTimeMs="
+                + (mLoadCount > 0 ? mTotalLoadTimeMs / mLoadCount : 0)
+                + " maxLoadTimeMs=" + mMaxLoadTimeMs);
+    }
+
     /**
      * Removes the cached thumbnail for the given task.
      */
@@ -217,6 +348,9 @@ public class TaskThumbnailCache {
     public static abstract class ThumbnailLoadRequest extends HandlerRunnable {
         public final boolean reducedResolution;
 
+        // Callbacks of the visible tasks waiting on this prefetch, only accessed on the UI thread
+        private final ArrayList<Consumer<ThumbnailData>> mAttachedCallbacks = new ArrayList<>();
+
         ThumbnailLoadRequest(Handler handler, boolean reducedResolution) {
             super(handler, null);
             this.reducedResolution = reducedResolution;
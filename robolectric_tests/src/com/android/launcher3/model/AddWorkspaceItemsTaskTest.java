@@ -146,7 +146,7 @@ public class AddWorkspaceItemsTaskTest extends BaseModelUpdateTaskTestCase {
         ExecutorService executor = Executors.newSingleThreadExecutor();
         for (int x = 0; x < idp.numColumns; x++) {
             for (int y = 0; y < idp.numRows; y++) {
-                if (!occupancy.cells[x][y]) {
+                if (!occupancy.isOccupied(x, y)) {
                     continue;
                 }
 
@@ -52,13 +52,70 @@ public class GridOccupancyTest {
         assertFalse(grid.isRegionVacant(0, 0, 2, 1));
     }
 
+    @Test
+    public void testIsRegionVacantWithBlock() {
+        GridOccupancy grid = initGrid(3,
+                1, 0, 0, 0,
+                0, 0, 0, 0,
+                0, 0, 0, 1
+        );
+        GridOccupancy block = initGrid(2,
+                0, 1,
+                1, 1
+        );
+
+        // Only the occupied cells of the block need to be vacant
+        assertTrue(grid.isRegionVacant(0, 0, 2, 2, block));
+        assertFalse(grid.isRegionVacant(0, 0, 2, 2));
+        assertFalse(grid.isRegionVacant(2, 1, 2, 2, block));
+        assertFalse(grid.isRegionVacant(3, 1, 2, 2, block));
+    }
+
+    @Test
+    public void testGetVacantMask() {
+        GridOccupancy grid = initGrid(2,
+                0, 0, 1, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 1, 0, 0
+        );
+
+        assertEquals(0b11011011L, grid.getVacantMask(0, 1, 2));
+        assertEquals(0b01001001L, grid.getVacantMask(0, 2, 2));
+        assertEquals(0L, grid.getVacantMask(0, 3, 2));
+        assertEquals(0b00000111L, grid.getVacantMask(1, 3, 1));
+        assertEquals(0L, grid.getVacantMask(1, 1, 2));
+    }
+
+    @Test
+    public void testSnapshotRestore() {
+        GridOccupancy grid = new GridOccupancy(8, 10);
+        grid.markCells(2, 3, 4, 5, true);
+        long[] snapshot = grid.snapshot();
+
+        grid.markCells(3, 4, 1, 1, false);
+        grid.markCells(0, 0, 8, 1, true);
+        grid.restore(snapshot);
+
+        int[] vacant = new int[2];
+        assertTrue(grid.findVacantCell(vacant, 8, 3));
+        assertEquals(0, vacant[0]);
+        assertEquals(0, vacant[1]);
+        assertTrue(grid.isOccupied(3, 4));
+        assertFalse(grid.isRegionVacant(0, 0, 8, 4));
+        assertTrue(grid.isRegionVacant(6, 0, 2, 10));
+
+        GridOccupancy copy = new GridOccupancy(8, 10);
+        grid.copyTo(copy);
+        assertTrue(copy.isOccupied(5, 7));
+        assertFalse(copy.isOccupied(5, 8));
+    }
+
     private GridOccupancy initGrid(int rows, int... cells) {
         int cols = cells.length / rows;
         int i = 0;
         GridOccupancy grid = new GridOccupancy(cols, rows);
         for (int y = 0; y < rows; y++) {
             for (int x = 0; x < cols; x++) {
-                grid.cells[x][y] = cells[i] != 0;
+                grid.markCells(x, y, 1, 1, cells[i] != 0);
                 i++;
             }
         }
@@ -24,6 +24,7 @@ import android.os.Process;
 import android.os.UserHandle;
 import android.util.Log;
 
+import com.android.launcher3.allapps.search.AppSearchIndex;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.PackageInstallerCompat;
 import com.android.launcher3.icons.IconCache;
@@ -59,6 +60,11 @@ public class AllAppsList {
 
     private AppFilter mAppFilter;
 
+    /** Search index over {@link #data}, kept in sync with every change to the list. */
+    private final AppSearchIndex mSearchIndex = new AppSearchIndex();
+    /** Apps hidden from {@link #data} which can still be found when searching hidden apps. */
+    private final AppSearchIndex mHiddenApps = new AppSearchIndex();
+
     /**
      * Boring constructor.
      */
@@ -75,6 +81,11 @@ public class AllAppsList {
      */
     public void add(AppInfo info, LauncherActivityInfo activityInfo) {
         if (!mAppFilter.shouldShowApp(info.componentName, info.user)) {
+            if (mAppFilter.isSearchableHiddenApp(info.componentName, info.user)
+                    && mHiddenApps.getApp(info.toComponentKey()) == null) {
+                mIconCache.getTitleAndIcon(info, activityInfo, true /* useLowResIcon */);
+                mHiddenApps.addOrUpdate(info);
+            }
             return;
         }
         if (findAppInfo(info.componentName, info.user) != null) {
@@ -84,6 +95,8 @@ public class AllAppsList {
 
         data.add(info);
         added.add(info);
+        mSearchIndex.addOrUpdate(info);
+        mHiddenApps.remove(info);
     }
 
     public void addPromiseApp(Context context,
@@ -96,6 +109,7 @@ public class AllAppsList {
             mIconCache.getTitleAndIcon(info, info.usingLowResIcon());
             data.add(info);
             added.add(info);
+            mSearchIndex.addOrUpdate(info);
         }
     }
 
@@ -103,10 +117,13 @@ public class AllAppsList {
         // the <em>removed</em> list is handled by the caller
         // so not adding it here
         data.remove(appInfo);
+        mSearchIndex.remove(appInfo);
     }
 
     public void clear() {
         data.clear();
+        mSearchIndex.clear();
+        mHiddenApps.clear();
         // TODO: do we clear these too?
         added.clear();
         removed.clear();
@@ -121,6 +138,14 @@ public class AllAppsList {
         return data.get(index);
     }
 
+    public AppSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    public AppSearchIndex getHiddenApps() {
+        return mHiddenApps;
+    }
+
     /**
      * Add the icons for the supplied apk called packageName.
      */
@@ -144,8 +169,10 @@ public class AllAppsList {
             if (info.user.equals(user) && packageName.equals(info.componentName.getPackageName())) {
                 removed.add(info);
                 data.remove(i);
+                mSearchIndex.remove(info);
             }
         }
+        mHiddenApps.removePackage(packageName, user);
     }
 
     /**
@@ -167,9 +194,16 @@ public class AllAppsList {
         for (AppInfo info : data) {
             if (info.user.equals(user) && packages.contains(info.componentName.getPackageName())) {
                 mIconCache.updateTitleAndIcon(info);
+                mSearchIndex.addOrUpdate(info);
                 outUpdates.add(info);
             }
         }
+        for (AppInfo info : mHiddenApps.getApps()) {
+            if (info.user.equals(user) && packages.contains(info.componentName.getPackageName())) {
+                mIconCache.updateTitleAndIcon(info);
+                mHiddenApps.addOrUpdate(info);
+            }
+        }
     }
 
     /**
@@ -190,18 +224,21 @@ public class AllAppsList {
                         Log.w(TAG, "Changing shortcut target due to app component name change.");
                         removed.add(applicationInfo);
                         data.remove(i);
+                        mSearchIndex.remove(applicationInfo);
                     }
                 }
             }
 
             // Find enabled activities and add them to the adapter
             // Also updates existing activities with new labels/icons
+            mHiddenApps.removePackage(packageName, user);
             for (final LauncherActivityInfo info : matches) {
                 AppInfo applicationInfo = findAppInfo(info.getComponentName(), user);
                 if (applicationInfo == null) {
                     add(new AppInfo(context, info, user), info);
                 } else {
                     mIconCache.getTitleAndIcon(applicationInfo, info, true /* useLowResIcon */);
+                    mSearchIndex.addOrUpdate(applicationInfo);
                     modified.add(applicationInfo);
                 }
             }
@@ -214,8 +251,10 @@ public class AllAppsList {
                     removed.add(applicationInfo);
                     mIconCache.remove(applicationInfo.componentName, user);
                     data.remove(i);
+                    mSearchIndex.remove(applicationInfo);
                 }
             }
+            mHiddenApps.removePackage(packageName, user);
         }
     }
 
@@ -235,6 +274,11 @@ public class AllAppsList {
             if (user.equals(applicationInfo.user) && !mAppFilter.shouldShowApp(applicationInfo.componentName, applicationInfo.user)) {
                 removed.add(applicationInfo);
                 data.remove(i);
+                mSearchIndex.remove(applicationInfo);
+                if (mAppFilter.isSearchableHiddenApp(
+                        applicationInfo.componentName, applicationInfo.user)) {
+                    mHiddenApps.addOrUpdate(applicationInfo);
+                }
             }
         }
     }
@@ -15,4 +15,12 @@ public class AppFilter implements ResourceBasedOverride {
     public boolean shouldShowApp(ComponentName app, UserHandle user) {
         return true;
     }
+
+    /**
+     * Returns whether an app which is not shown in all apps can still be found through search
+     * when searching hidden apps is enabled.
+     */
+    public boolean isSearchableHiddenApp(ComponentName app, UserHandle user) {
+        return false;
+    }
 }
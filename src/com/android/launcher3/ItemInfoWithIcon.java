@@ -20,6 +20,7 @@ import static com.android.launcher3.icons.BitmapInfo.LOW_RES_ICON;
 
 import android.graphics.Bitmap;
 
+import ch.deletescape.lawnchair.allapps.AppColorComparator;
 import com.android.launcher3.icons.BitmapInfo;
 
 /**
@@ -37,6 +38,11 @@ public abstract class ItemInfoWithIcon extends ItemInfo {
      */
     public int iconColor;
 
+    /**
+     * Key to sort items by {@link #iconColor}, computed whenever it is assigned.
+     */
+    public int colorSortKey;
+
     /**
      * Indicates that the icon is disabled due to safe mode restrictions.
      */
@@ -112,6 +118,7 @@ public abstract class ItemInfoWithIcon extends ItemInfo {
         super(info);
         iconBitmap = info.iconBitmap;
         iconColor = info.iconColor;
+        colorSortKey = info.colorSortKey;
         runtimeStatusFlags = info.runtimeStatusFlags;
     }
 
@@ -129,6 +136,10 @@ public abstract class ItemInfoWithIcon extends ItemInfo {
 
     public void applyFrom(BitmapInfo info) {
         iconBitmap = info.icon;
+        // The initial key matches the initial color
+        if (iconColor != info.color) {
+            colorSortKey = AppColorComparator.getColorSortKey(info.color);
+        }
         iconColor = info.color;
     }
 
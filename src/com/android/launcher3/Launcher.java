@@ -97,6 +97,7 @@ import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.LauncherAppsCompatVO;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.dot.DotInfo;
+import com.android.launcher3.dot.DotViewIndex;
 import com.android.launcher3.dragndrop.DragController;
 import com.android.launcher3.dragndrop.DragLayer;
 import com.android.launcher3.dragndrop.DragView;
@@ -166,7 +167,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Set;
 
 import androidx.annotation.Nullable;
 
@@ -267,6 +268,7 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
     private LauncherAccessibilityDelegate mAccessibilityDelegate;
 
     private PopupDataProvider mPopupDataProvider;
+    private final DotViewIndex mDotViewIndex = new DotViewIndex();
 
     private int mSynchronouslyBoundPage = PagedView.INVALID_PAGE;
 
@@ -616,6 +618,10 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
         return mPopupDataProvider;
     }
 
+    public DotViewIndex getDotViewIndex() {
+        return mDotViewIndex;
+    }
+
     @Override
     public DotInfo getDotInfoForItem(ItemInfo info) {
         return mPopupDataProvider.getDotInfoForItem(info);
@@ -1325,9 +1331,9 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
         }
     };
 
-    public void updateNotificationDots(Predicate<PackageUserKey> updatedDots) {
+    public void updateNotificationDots(Set<PackageUserKey> updatedDots) {
         mWorkspace.updateNotificationDots(updatedDots);
-        mAppsView.getAppsStore().updateNotificationDots(updatedDots);
+        mAppsView.getAppsStore().updateNotificationDots(updatedDots::contains);
     }
 
     @Override
@@ -1936,6 +1942,7 @@ public class Launcher extends BaseDraggingActivity implements LauncherExterns,
             // This clears all widget bitmaps from the widget tray
             // TODO(hyunyoungs)
         }
+        mIconCache.onTrimMemory(level);
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.onTrimMemory(level);
         }
@@ -34,6 +34,7 @@ import android.util.Pair;
 
 import ch.deletescape.lawnchair.LawnchairUtilsKt;
 import ch.deletescape.lawnchair.blur.BlurWallpaperProvider;
+import com.android.launcher3.allapps.search.AppSearchIndex;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.PackageInstallerCompat.PackageInstallInfo;
 import com.android.launcher3.compat.UserManagerCompat;
@@ -122,6 +123,8 @@ public class LauncherModel extends BroadcastReceiver
 
     // < only access in worker thread >
     private final AllAppsList mBgAllAppsList;
+    // Shared by all writers, so that updates are coalesced across them
+    private final ModelWriter.WriteQueue mWriteQueue;
 
     /**
      * All the static data should be accessed on the background thread, A lock should be acquired
@@ -173,6 +176,7 @@ public class LauncherModel extends BroadcastReceiver
     LauncherModel(LauncherAppState app, IconCache iconCache, AppFilter appFilter) {
         mApp = app;
         mBgAllAppsList = new AllAppsList(iconCache, appFilter);
+        mWriteQueue = new ModelWriter.WriteQueue(app.getContext());
     }
 
     public void setPackageState(PackageInstallInfo installInfo) {
@@ -201,7 +205,7 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     public ModelWriter getWriter(boolean hasVerticalHotseat, boolean verifyChanges) {
-        return new ModelWriter(mApp.getContext(), this, sBgDataModel,
+        return new ModelWriter(mApp.getContext(), this, sBgDataModel, mWriteQueue,
                 hasVerticalHotseat, verifyChanges);
     }
 
@@ -476,6 +480,8 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     public LoaderTransaction beginLoader(LoaderTask task) throws CancellationException {
+        // The loader reads the DB, so it has to see the updates which are still coalesced
+        mWriteQueue.flush();
         return new LoaderTransaction(task);
     }
 
@@ -596,6 +602,24 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
         sBgDataModel.dump(prefix, fd, writer, args);
+        LoaderTask.dumpStageTimes(prefix, writer);
+        mApp.getIconCache().dumpMemoryCache(prefix, writer);
+        mWriteQueue.dump(prefix, writer);
+    }
+
+    /**
+     * @return the search index over the all apps list, which can be queried from any thread.
+     */
+    public AppSearchIndex getSearchIndex() {
+        return mBgAllAppsList.getSearchIndex();
+    }
+
+    /**
+     * @return the apps hidden from all apps which can still be found by search, which can be
+     * queried from any thread.
+     */
+    public AppSearchIndex getHiddenApps() {
+        return mBgAllAppsList.getHiddenApps();
     }
 
     public Callbacks getCallback() {
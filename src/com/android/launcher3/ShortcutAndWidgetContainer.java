@@ -79,6 +79,22 @@ public class ShortcutAndWidgetContainer extends ViewGroup implements LawnchairPr
         mPrefs.removeOnPreferenceChangeListener(SettingsActivity.ALLOW_OVERLAP_PREF, this);
     }
 
+    @Override
+    public void onViewAdded(View child) {
+        super.onViewAdded(child);
+        if (mActivity instanceof Launcher) {
+            ((Launcher) mActivity).getDotViewIndex().onViewAdded(child, mContainerType);
+        }
+    }
+
+    @Override
+    public void onViewRemoved(View child) {
+        super.onViewRemoved(child);
+        if (mActivity instanceof Launcher) {
+            ((Launcher) mActivity).getDotViewIndex().onViewRemoved(child);
+        }
+    }
+
     public void setCellDimensions(int cellWidth, int cellHeight, int countX, int countY) {
         mCellWidth = cellWidth;
         mCellHeight = cellHeight;
@@ -59,6 +59,11 @@ public class AllAppsStore {
     private int mDeferUpdatesFlags = 0;
     private boolean mUpdatePending = false;
 
+    // Apps added, updated or removed since the last update was sent
+    private final HashSet<ComponentKey> mChangedKeys = new HashSet<>();
+    // Whether all apps were replaced since the last update was sent
+    private boolean mAllAppsChanged = false;
+
     public Collection<AppInfo> getApps() {
         return mComponentToAppMap.values();
     }
@@ -68,6 +73,7 @@ public class AllAppsStore {
      */
     public void setApps(List<AppInfo> apps) {
         mComponentToAppMap.clear();
+        mAllAppsChanged = true;
         addOrUpdateApps(apps);
     }
 
@@ -110,7 +116,9 @@ public class AllAppsStore {
      */
     public void addOrUpdateApps(List<AppInfo> apps) {
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            ComponentKey key = app.toComponentKey();
+            mComponentToAppMap.put(key, app);
+            mChangedKeys.add(key);
         }
         notifyUpdate();
     }
@@ -120,7 +128,9 @@ public class AllAppsStore {
      */
     public void removeApps(List<AppInfo> apps) {
         for (AppInfo app : apps) {
-            mComponentToAppMap.remove(app.toComponentKey());
+            ComponentKey key = app.toComponentKey();
+            mComponentToAppMap.remove(key);
+            mChangedKeys.add(key);
         }
         notifyUpdate();
     }
@@ -131,9 +141,13 @@ public class AllAppsStore {
             mUpdatePending = true;
             return;
         }
+        Set<ComponentKey> changedKeys = mAllAppsChanged
+                ? null : Collections.unmodifiableSet(new HashSet<>(mChangedKeys));
+        mChangedKeys.clear();
+        mAllAppsChanged = false;
         List<OnUpdateListener> listeners = new ArrayList<>(mUpdateListeners);
         for (OnUpdateListener listener : listeners) {
-            listener.onAppsUpdated();
+            listener.onAppsUpdated(changedKeys);
         }
     }
 
@@ -211,5 +225,14 @@ public class AllAppsStore {
 
     public interface OnUpdateListener {
         void onAppsUpdated();
+
+        /**
+         * Called instead of {@link #onAppsUpdated()} by the store.
+         * @param changedKeys the apps which were added, updated or removed since the last update,
+         *                    or null if all apps may have changed
+         */
+        default void onAppsUpdated(@Nullable Set<ComponentKey> changedKeys) {
+            onAppsUpdated();
+        }
     }
 }
@@ -16,11 +16,8 @@
 package com.android.launcher3.allapps;
 
 import android.content.Context;
-import android.content.pm.LauncherActivityInfo;
 
 import android.graphics.Color;
-import android.os.UserHandle;
-import androidx.core.graphics.ColorUtils;
 import ch.deletescape.lawnchair.LawnchairPreferences;
 import ch.deletescape.lawnchair.LawnchairUtilsKt;
 import ch.deletescape.lawnchair.allapps.AppColorComparator;
@@ -30,10 +27,8 @@ import com.android.launcher3.AppInfo;
 import com.android.launcher3.Launcher;
 import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.Utilities;
+import com.android.launcher3.allapps.search.AppSearchIndex;
 import com.android.launcher3.compat.AlphabeticIndexCompat;
-import com.android.launcher3.compat.LauncherAppsCompat;
-import com.android.launcher3.compat.UserManagerCompat;
-import com.android.launcher3.icons.IconCache;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.ItemInfoMatcher;
@@ -41,7 +36,9 @@ import com.android.launcher3.util.LabelComparator;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -49,6 +46,9 @@ import java.util.Set;
 import java.util.TreeMap;
 import kotlin.Unit;
 
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+
 /**
  * The alphabetically sorted list of applications.
  */
@@ -202,6 +202,16 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
 
     private List<String> mSearchSuggestions;
 
+    // The apps in mApps by their component, to update single apps without a full sort
+    private final HashMap<ComponentKey, AppInfo> mAppsByKey = new HashMap<>();
+    // Whether mApps was last sorted by colors
+    private boolean mSortedByColors;
+    // Incremented for every update of the adapter items, only the latest one is applied
+    private volatile int mUpdateGeneration;
+    // Apps changed since the adapter items were last applied. Apps can be updated in place, so
+    // their items are always reported as changed.
+    private final HashSet<ComponentKey> mPendingChangedKeys = new HashSet<>();
+
     public AlphabeticalAppsList(Context context, AllAppsStore appsStore, boolean isWork) {
         mAllAppsStore = appsStore;
         mLauncher = Launcher.getLauncher(context);
@@ -309,6 +319,39 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
         return false;
     }
 
+    /**
+     * Updates internals when some apps of the store were added, updated or removed. Unless all
+     * apps may have changed, only the changed apps are moved in the sorted list, and the adapter
+     * is notified of the items which actually changed.
+     */
+    @Override
+    public void onAppsUpdated(@Nullable Set<ComponentKey> changedKeys) {
+        if (changedKeys == null || !canUpdateIncrementally()) {
+            onAppsUpdated();
+            return;
+        }
+        mPendingChangedKeys.addAll(changedKeys);
+        Comparator<AppInfo> comparator = getAppComparator();
+        for (ComponentKey key : changedKeys) {
+            AppInfo oldApp = mAppsByKey.remove(key);
+            if (oldApp != null) {
+                removeSortedApp(oldApp, comparator);
+                mCachedSectionNames.remove(oldApp);
+            }
+            AppInfo newApp = mAllAppsStore.getApp(key);
+            if (newApp != null && (mItemFilter == null || mItemFilter.matches(newApp, null))) {
+                int index = Collections.binarySearch(mApps, newApp, comparator);
+                mApps.add(index < 0 ? -(index + 1) : index, newApp);
+                mAppsByKey.put(key, newApp);
+                getAndUpdateCachedSectionName(newApp);
+            }
+        }
+
+        // Section boundaries, rows and fast scroller sections are recomputed in a single pass
+        // while building the new items, only the items which differ are updated in the view
+        updateAdapterItems(true /* dispatchDiff */);
+    }
+
     /**
      * Updates internals when the set of apps are updated.
      */
@@ -316,26 +359,24 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
     public void onAppsUpdated() {
         // Sort the list of apps
         mApps.clear();
+        mAppsByKey.clear();
 
         for (AppInfo app : mAllAppsStore.getApps()) {
             if (mItemFilter == null || mItemFilter.matches(app, null) || hasFilter()) {
                 mApps.add(app);
+                mAppsByKey.put(app.toComponentKey(), app);
             }
         }
 
-        if (prefs.getSortDrawerByColors()) {
-            Collections.sort(mApps, mAppColorComparator);
-        } else {
-            Collections.sort(mApps, mAppNameComparator);
+        boolean sortByColors = prefs.getSortDrawerByColors();
+        if (sortByColors != mSortedByColors) {
+            // The section names depend on the sort order
+            mCachedSectionNames.clear();
+            mSortedByColors = sortByColors;
         }
+        Collections.sort(mApps, getAppComparator());
 
-        // As a special case for some languages (currently only Simplified Chinese), we may need to
-        // coalesce sections
-        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
-        boolean localeRequiresSectionSorting =
-                curLocale.getLanguage().equals(Locale.SIMPLIFIED_CHINESE.getLanguage()) &&
-                        curLocale.getCountry().equals(Locale.SIMPLIFIED_CHINESE.getCountry());
-        if (localeRequiresSectionSorting) {
+        if (localeRequiresSectionSorting()) {
             // Compute the section headers. We use a TreeMap with the section name comparator to
             // ensure that the sections are ordered when we iterate over it later
             TreeMap<String, ArrayList<AppInfo>> sectionMap = new TreeMap<>(new LabelComparator());
@@ -366,42 +407,116 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
         }
 
         // Recompose the set of adapter items from the current set of apps
-        updateAdapterItems();
+        updateAdapterItems(false /* dispatchDiff */);
+    }
+
+    /**
+     * Returns whether a change of some apps can be applied to the sorted list of apps, rather than
+     * sorting all apps again.
+     */
+    private boolean canUpdateIncrementally() {
+        // Search results are ordered by the search, and some locales reorder whole sections
+        return !hasFilter() && prefs.getSortDrawerByColors() == mSortedByColors
+                && !localeRequiresSectionSorting();
+    }
+
+    private boolean localeRequiresSectionSorting() {
+        // As a special case for some languages (currently only Simplified Chinese), we may need to
+        // coalesce sections
+        Locale curLocale = mLauncher.getResources().getConfiguration().locale;
+        return curLocale.getLanguage().equals(Locale.SIMPLIFIED_CHINESE.getLanguage()) &&
+                curLocale.getCountry().equals(Locale.SIMPLIFIED_CHINESE.getCountry());
+    }
+
+    private Comparator<AppInfo> getAppComparator() {
+        return mSortedByColors ? mAppColorComparator : mAppNameComparator;
+    }
+
+    private void removeSortedApp(AppInfo app, Comparator<AppInfo> comparator) {
+        int index = Collections.binarySearch(mApps, app, comparator);
+        if (index < 0 || mApps.get(index) != app) {
+            // The sort key of the app may have changed since it was inserted
+            index = mApps.indexOf(app);
+        }
+        if (index >= 0) {
+            mApps.remove(index);
+        }
     }
 
     /**
      * Updates the set of filtered apps with the current filter.  At this point, we expect
      * mCachedSectionNames to have been calculated for the set of all apps in mApps.
+     *
+     * The items are built on the worker thread from a copy of the apps and their section names,
+     * and replace the current items on the main thread unless a newer update was started in the
+     * meantime.
+     * @param dispatchDiff if true, the adapter is notified of the items which were inserted,
+     *                     removed, moved or changed, otherwise of a change of the whole data set
      */
-    private void updateAdapterItems() {
+    private void updateAdapterItems(boolean dispatchDiff) {
+        final int generation = ++mUpdateGeneration;
+        final List<AppInfo> apps = new ArrayList<>(getFiltersAppInfos());
+        // The section name cache is only accessed on the main thread
+        final List<String> sectionNames = new ArrayList<>(apps.size());
+        for (AppInfo info : apps) {
+            sectionNames.add(getAndUpdateCachedSectionName(info));
+        }
+        final List<AdapterItem> oldItems = dispatchDiff ? new ArrayList<>(mAdapterItems) : null;
+        final Set<ComponentKey> changedKeys = dispatchDiff
+                ? new HashSet<>(mPendingChangedKeys) : null;
         LawnchairUtilsKt.getWorkerHandler().postAtFrontOfQueue(() -> {
-            refillAdapterItems();
-            LawnchairUtilsKt.getMainHandler().postAtFrontOfQueue(this::refreshRecyclerView);
+            if (generation != mUpdateGeneration) {
+                return;
+            }
+            AdapterState state = buildAdapterState(apps, sectionNames);
+            DiffUtil.DiffResult diff = oldItems == null ? null : DiffUtil.calculateDiff(
+                    new AdapterItemDiffCallback(oldItems, state.adapterItems, changedKeys), true);
+            LawnchairUtilsKt.getMainHandler().postAtFrontOfQueue(
+                    () -> applyAdapterState(generation, state, diff));
         });
     }
 
-    private void refreshRecyclerView() {
+    private void applyAdapterState(int generation, AdapterState state,
+            @Nullable DiffUtil.DiffResult diff) {
+        if (generation != mUpdateGeneration) {
+            // Superseded by a newer update, which was computed against the current items
+            return;
+        }
+        mPendingChangedKeys.clear();
+        mFilteredApps.clear();
+        mFilteredApps.addAll(state.filteredApps);
+        mFastScrollerSections.clear();
+        mFastScrollerSections.addAll(state.fastScrollerSections);
+        mAdapterItems.clear();
+        mAdapterItems.addAll(state.adapterItems);
+        mNumAppRowsInAdapter = state.numAppRows;
+
         if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+            if (diff != null) {
+                diff.dispatchUpdatesTo(mAdapter);
+            } else {
+                mAdapter.notifyDataSetChanged();
+            }
         }
     }
 
-    private void refillAdapterItems() {
+    private AdapterState buildAdapterState(List<AppInfo> apps, List<String> sectionNames) {
         String lastSectionName = null;
         FastScrollSectionInfo lastFastScrollerSectionInfo = null;
         int position = 0;
         int appIndex = 0;
         int folderIndex = 0;
 
-        // Prepare to update the list of sections, filtered apps, etc.
-        mFilteredApps.clear();
-        mFastScrollerSections.clear();
-        mAdapterItems.clear();
+        // Prepare the list of sections, filtered apps, etc.
+        AdapterState state = new AdapterState();
+        List<AppInfo> filteredApps = state.filteredApps;
+        List<FastScrollSectionInfo> fastScrollerSections = state.fastScrollerSections;
+        List<AdapterItem> adapterItems = state.adapterItems;
 
         // Search suggestions should be all the way to the top
         if (hasFilter() && hasSuggestions()) {
             for (String suggestion : mSearchSuggestions) {
-                mAdapterItems.add(AdapterItem.asSearchSuggestion(position++, suggestion));
+                adapterItems.add(AdapterItem.asSearchSuggestion(position++, suggestion));
             }
         }
 
@@ -415,7 +530,7 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
                     lastSectionName = sectionName;
                     lastFastScrollerSectionInfo = new FastScrollSectionInfo(sectionName,
                             Color.WHITE);
-                    mFastScrollerSections.add(lastFastScrollerSectionInfo);
+                    fastScrollerSections.add(lastFastScrollerSectionInfo);
                 }
 
                 info.setAppsStore(mAllAppsStore);
@@ -425,7 +540,7 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
                 if (lastFastScrollerSectionInfo.fastScrollToItem == null) {
                     lastFastScrollerSectionInfo.fastScrollToItem = appItem;
                 }
-                mAdapterItems.add(appItem);
+                adapterItems.add(appItem);
             }
         }
 
@@ -433,21 +548,22 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
 
         // Recreate the filtered and sectioned apps (for convenience for the grid layout) from the
         // ordered set of sections
-        for (AppInfo info : getFiltersAppInfos()) {
+        for (int i = 0; i < apps.size(); i++) {
+            AppInfo info = apps.get(i);
             if (!hasFilter() && folderFilters.contains(info.toComponentKey())) {
                 continue;
             }
-            String sectionName = getAndUpdateCachedSectionName(info);
+            String sectionName = sectionNames.get(i);
 
             // Create a new section if the section names do not match
             if (!sectionName.equals(lastSectionName)) {
                 lastSectionName = sectionName;
                 int color = 0;
-                if (prefs.getSortDrawerByColors()) {
+                if (mSortedByColors) {
                     color = info.iconColor;
                 }
                 lastFastScrollerSectionInfo = new FastScrollSectionInfo(sectionName, color);
-                mFastScrollerSections.add(lastFastScrollerSectionInfo);
+                fastScrollerSections.add(lastFastScrollerSectionInfo);
             }
 
             // Create an app item
@@ -455,18 +571,19 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
             if (lastFastScrollerSectionInfo.fastScrollToItem == null) {
                 lastFastScrollerSectionInfo.fastScrollToItem = appItem;
             }
-            mAdapterItems.add(appItem);
-            mFilteredApps.add(info);
+            adapterItems.add(appItem);
+            filteredApps.add(info);
         }
 
         if (hasFilter()) {
             // Append the search market item
-            if (hasNoFilteredResults() && !hasSuggestions()) {
-                mAdapterItems.add(AdapterItem.asEmptySearch(position++));
+            if (filteredApps.isEmpty() && mSearchSuggestions != null
+                    && mSearchSuggestions.isEmpty()) {
+                adapterItems.add(AdapterItem.asEmptySearch(position++));
             } else {
-                mAdapterItems.add(AdapterItem.asAllAppsDivider(position++));
+                adapterItems.add(AdapterItem.asAllAppsDivider(position++));
             }
-            mAdapterItems.add(AdapterItem.asMarketSearch(position++));
+            adapterItems.add(AdapterItem.asMarketSearch(position++));
         }
 
         if (mNumAppsPerRow != 0) {
@@ -475,7 +592,7 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
             int numAppsInSection = 0;
             int numAppsInRow = 0;
             int rowIndex = -1;
-            for (AdapterItem item : mAdapterItems) {
+            for (AdapterItem item : adapterItems) {
                 item.rowIndex = 0;
                 if (AllAppsGridAdapter.isDividerViewType(item.viewType)) {
                     numAppsInSection = 0;
@@ -490,13 +607,13 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
                     numAppsInRow++;
                 }
             }
-            mNumAppRowsInAdapter = rowIndex + 1;
+            state.numAppRows = rowIndex + 1;
 
             // Pre-calculate all the fast scroller fractions
             switch (mFastScrollDistributionMode) {
                 case FAST_SCROLL_FRACTION_DISTRIBUTE_BY_ROWS_FRACTION:
-                    float rowFraction = 1f / mNumAppRowsInAdapter;
-                    for (FastScrollSectionInfo info : mFastScrollerSections) {
+                    float rowFraction = 1f / state.numAppRows;
+                    for (FastScrollSectionInfo info : fastScrollerSections) {
                         AdapterItem item = info.fastScrollToItem;
                         if (!AllAppsGridAdapter.isIconViewType(item.viewType)) {
                             info.touchFraction = 0f;
@@ -508,9 +625,9 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
                     }
                     break;
                 case FAST_SCROLL_FRACTION_DISTRIBUTE_BY_NUM_SECTIONS:
-                    float perSectionTouchFraction = 1f / mFastScrollerSections.size();
+                    float perSectionTouchFraction = 1f / fastScrollerSections.size();
                     float cumulativeTouchFraction = 0f;
-                    for (FastScrollSectionInfo info : mFastScrollerSections) {
+                    for (FastScrollSectionInfo info : fastScrollerSections) {
                         AdapterItem item = info.fastScrollToItem;
                         if (!AllAppsGridAdapter.isIconViewType(item.viewType)) {
                             info.touchFraction = 0f;
@@ -525,8 +642,9 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
 
         // Add the work profile footer if required.
         if (shouldShowWorkFooter()) {
-            mAdapterItems.add(AdapterItem.asWorkTabFooter(position++));
+            adapterItems.add(AdapterItem.asWorkTabFooter(position++));
         }
+        return state;
     }
 
     private boolean shouldShowWorkFooter() {
@@ -541,25 +659,17 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
             return mApps;
         }
 
-        final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(mLauncher);
-        final UserHandle user = android.os.Process.myUserHandle();
-        final IconCache iconCache = LauncherAppState.getInstance(mLauncher).getIconCache();
-        boolean quietMode = UserManagerCompat.getInstance(mLauncher).isQuietModeEnabled(user);
+        // Hidden apps are not in the store, but can still be part of the search results
+        final AppSearchIndex hiddenApps = LauncherAppState.getInstance(mLauncher).getModel()
+                .getHiddenApps();
         ArrayList<AppInfo> result = new ArrayList<>();
         for (ComponentKey key : mSearchResults) {
             AppInfo match = mAllAppsStore.getApp(key);
+            if (match == null) {
+                match = hiddenApps.getApp(key);
+            }
             if (match != null) {
                 result.add(match);
-            } else {
-                for (LauncherActivityInfo info : launcherApps
-                        .getActivityList(key.componentName.getPackageName(), user)) {
-                    if (info.getComponentName().equals(key.componentName)) {
-                        final AppInfo appInfo = new AppInfo(info, user, quietMode);
-                        iconCache.getTitleAndIcon(appInfo, false);
-                        result.add(appInfo);
-                        break;
-                    }
-                }
             }
         }
         return result;
@@ -572,10 +682,8 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
     private String getAndUpdateCachedSectionName(AppInfo info) {
         String sectionName = mCachedSectionNames.get(info);
         if (sectionName == null) {
-            if (prefs.getSortDrawerByColors()) {
-                float[] hsl = new float[3];
-                ColorUtils.colorToHSL(info.iconColor, hsl);
-                sectionName = String.format("%d:%d:%d", AppColorComparator.remapHue(hsl[0]), AppColorComparator.remap(hsl[2]), AppColorComparator.remap(hsl[1]));
+            if (mSortedByColors) {
+                sectionName = AppColorComparator.getSectionName(info.colorSortKey);
             } else {
                 sectionName = mIndexer.computeSectionName(info.title);
             }
@@ -603,7 +711,83 @@ public class AlphabeticalAppsList implements AllAppsStore.OnUpdateListener {
     }
 
     public void reset() {
-        updateAdapterItems();
+        updateAdapterItems(false /* dispatchDiff */);
+    }
+
+    /**
+     * The adapter items built on the worker thread.
+     */
+    private static class AdapterState {
+        final List<AppInfo> filteredApps = new ArrayList<>();
+        final List<FastScrollSectionInfo> fastScrollerSections = new ArrayList<>();
+        final List<AdapterItem> adapterItems = new ArrayList<>();
+        int numAppRows;
     }
 
+    /**
+     * Matches the adapter items of two updates, so that only the items which were inserted,
+     * removed, moved or changed are updated in the view.
+     */
+    private static class AdapterItemDiffCallback extends DiffUtil.Callback {
+
+        private final List<AdapterItem> mOldItems;
+        private final List<AdapterItem> mNewItems;
+        private final Set<ComponentKey> mChangedKeys;
+
+        AdapterItemDiffCallback(List<AdapterItem> oldItems, List<AdapterItem> newItems,
+                Set<ComponentKey> changedKeys) {
+            mOldItems = oldItems;
+            mNewItems = newItems;
+            mChangedKeys = changedKeys;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldItems.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewItems.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            AdapterItem oldItem = mOldItems.get(oldItemPosition);
+            AdapterItem newItem = mNewItems.get(newItemPosition);
+            if (oldItem.viewType != newItem.viewType) {
+                return false;
+            }
+            switch (oldItem.viewType) {
+                case AllAppsGridAdapter.VIEW_TYPE_ICON:
+                    return oldItem.appInfo.componentName.equals(newItem.appInfo.componentName)
+                            && oldItem.appInfo.user.equals(newItem.appInfo.user);
+                case AllAppsGridAdapter.VIEW_TYPE_FOLDER:
+                    // Folders are always arranged first, in their own order
+                    return oldItemPosition == newItemPosition;
+                case AllAppsGridAdapter.VIEW_TYPE_SEARCH_SUGGESTION:
+                    return oldItem.suggestion.equals(newItem.suggestion);
+                default:
+                    return true;
+            }
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            AdapterItem oldItem = mOldItems.get(oldItemPosition);
+            AdapterItem newItem = mNewItems.get(newItemPosition);
+            switch (oldItem.viewType) {
+                case AllAppsGridAdapter.VIEW_TYPE_ICON:
+                    // Updated apps can keep their info, which is changed in place
+                    return oldItem.appInfo == newItem.appInfo
+                            && (mChangedKeys.isEmpty()
+                                    || !mChangedKeys.contains(newItem.appInfo.toComponentKey()));
+                case AllAppsGridAdapter.VIEW_TYPE_FOLDER:
+                    // Each update creates new folder items, which create their own icons
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    }
 }
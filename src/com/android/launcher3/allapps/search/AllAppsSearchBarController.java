@@ -173,9 +173,10 @@ public class AllAppsSearchBarController
     public interface Callbacks {
 
         /**
-         * Called when the search is complete.
+         * Called when the search is complete, or when part of the results are available.
          *
-         * @param apps sorted list of matching components or null if in case of failure.
+         * @param apps sorted list of matching components or null if in case of failure or if
+         *             they are not part of this result.
          * @param suggestions relevancy sorted list of matching suggestions or null
          */
         void onSearchResult(String query, ArrayList<ComponentKey> apps, List<String> suggestions);
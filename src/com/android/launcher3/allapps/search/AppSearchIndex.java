@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps.search;
+
+import android.os.UserHandle;
+import android.util.SparseArray;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.allapps.search.DefaultAppSearchAlgorithm.StringMatcher;
+import com.android.launcher3.util.ComponentKey;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An index over the apps in the all apps list, so that a search does not have to scan and
+ * tokenize every title on each keystroke.
+ *
+ * Titles are tokenized once when they are added: the word break positions used by
+ * {@link DefaultAppSearchAlgorithm#matches} are indexed by their (folded) first character, and
+ * the title trigrams are indexed to pick candidates for fuzzy matching. The index is kept up to
+ * date by {@link com.android.launcher3.AllAppsList} and can be queried from any thread.
+ */
+public class AppSearchIndex {
+
+    /**
+     * Token key used for word breaks which do not start with a latin letter or digit, and thus
+     * cannot be reliably bucketed by their first character. These are checked for every query.
+     */
+    private static final int KEY_IRREGULAR = -1;
+
+    private static final Comparator<Entry> ORDINAL_COMPARATOR =
+            (a, b) -> Integer.compare(a.ordinal, b.ordinal);
+
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+    private final SparseArray<ArrayList<Entry>> mTokenIndex = new SparseArray<>();
+    private final HashMap<Long, ArrayList<Entry>> mTrigramIndex = new HashMap<>();
+
+    private final StringMatcher mMatcher = StringMatcher.getInstance();
+
+    private int mNextOrdinal;
+    private int mVisitMark;
+    private int mModCount;
+
+    // The last title query and its matches, used to narrow down refined queries
+    private String mLastQuery;
+    private ArrayList<Entry> mLastMatches;
+    private int mLastModCount;
+
+    /**
+     * Adds {@param info} to the index, or re-indexes it if its title has changed.
+     */
+    public synchronized void addOrUpdate(AppInfo info) {
+        ComponentKey key = info.toComponentKey();
+        String title = info.title == null ? "" : info.title.toString();
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            if (entry.info == info && entry.title.equals(title)) {
+                return;
+            }
+            removeEntry(entry);
+        }
+        addEntry(new Entry(info, key, title, mNextOrdinal++));
+    }
+
+    public synchronized void addOrUpdate(Collection<AppInfo> apps) {
+        for (AppInfo info : apps) {
+            addOrUpdate(info);
+        }
+    }
+
+    public synchronized void remove(AppInfo info) {
+        Entry entry = mEntries.get(info.toComponentKey());
+        if (entry != null) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * Removes all the apps of {@param packageName} for {@param user}.
+     */
+    public synchronized void removePackage(String packageName, UserHandle user) {
+        for (Entry entry : new ArrayList<>(mEntries.values())) {
+            if (entry.key.user.equals(user)
+                    && entry.key.componentName.getPackageName().equals(packageName)) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mTokenIndex.clear();
+        mTrigramIndex.clear();
+        mModCount++;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized AppInfo getApp(ComponentKey key) {
+        Entry entry = mEntries.get(key);
+        return entry == null ? null : entry.info;
+    }
+
+    /**
+     * Returns all the indexed apps, in the order they were added.
+     */
+    public synchronized ArrayList<AppInfo> getApps() {
+        ArrayList<Entry> entries = new ArrayList<>(mEntries.values());
+        Collections.sort(entries, ORDINAL_COMPARATOR);
+        return toApps(entries);
+    }
+
+    /**
+     * Returns the apps which have a word starting with {@param query}, using the same rules as
+     * {@link DefaultAppSearchAlgorithm#matches}. If the query refines the previous query and the
+     * index has not changed since, only the previous matches are checked.
+     */
+    public synchronized ArrayList<AppInfo> findTitleMatches(String query) {
+        final String queryTextLower = query.toLowerCase();
+        if (queryTextLower.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        final ArrayList<Entry> candidates;
+        if (mLastQuery != null && mLastModCount == mModCount
+                && queryTextLower.startsWith(mLastQuery)) {
+            candidates = mLastMatches;
+        } else {
+            int key = getTokenKey(queryTextLower, 0);
+            if (key == KEY_IRREGULAR) {
+                candidates = new ArrayList<>(mEntries.values());
+            } else {
+                int mark = ++mVisitMark;
+                candidates = new ArrayList<>();
+                collect(mTokenIndex.get(key), mark, candidates);
+                collect(mTokenIndex.get(KEY_IRREGULAR), mark, candidates);
+            }
+            Collections.sort(candidates, ORDINAL_COMPARATOR);
+        }
+
+        final ArrayList<Entry> matches = new ArrayList<>();
+        for (Entry entry : candidates) {
+            if (matches(entry, queryTextLower)) {
+                matches.add(entry);
+            }
+        }
+        mLastQuery = queryTextLower;
+        mLastMatches = matches;
+        mLastModCount = mModCount;
+        return toApps(matches);
+    }
+
+    /**
+     * Returns the apps which share at least one trigram with {@param query}, or whose title has a
+     * word starting with the same character. Queries too short to have any trigram return all
+     * the indexed apps.
+     */
+    public synchronized ArrayList<AppInfo> getFuzzyCandidates(String query) {
+        final long[] trigrams = getTrigrams(query);
+        if (trigrams.length == 0) {
+            return getApps();
+        }
+
+        int mark = ++mVisitMark;
+        ArrayList<Entry> candidates = new ArrayList<>();
+        for (long trigram : trigrams) {
+            collect(mTrigramIndex.get(trigram), mark, candidates);
+        }
+        // Titles sharing a prefix with the query are boosted by the ratio, include them as well
+        int key = getTokenKey(query.toLowerCase(), 0);
+        if (key != KEY_IRREGULAR) {
+            collect(mTokenIndex.get(key), mark, candidates);
+        }
+        Collections.sort(candidates, ORDINAL_COMPARATOR);
+        return toApps(candidates);
+    }
+
+    private boolean matches(Entry entry, String query) {
+        final int queryLength = query.length();
+        final String title = entry.title;
+        final int end = title.length() - queryLength;
+        for (int start : entry.breaks) {
+            if (start > end) {
+                break;
+            }
+            if (mMatcher.matches(query, title.substring(start, start + queryLength))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addEntry(Entry entry) {
+        mEntries.put(entry.key, entry);
+        for (int key : entry.tokenKeys) {
+            ArrayList<Entry> bucket = mTokenIndex.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mTokenIndex.put(key, bucket);
+            }
+            bucket.add(entry);
+        }
+        for (long trigram : entry.trigrams) {
+            ArrayList<Entry> bucket = mTrigramIndex.get(trigram);
+            if (bucket == null) {
+                bucket = new ArrayList<>();
+                mTrigramIndex.put(trigram, bucket);
+            }
+            bucket.add(entry);
+        }
+        mModCount++;
+    }
+
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.key);
+        for (int key : entry.tokenKeys) {
+            ArrayList<Entry> bucket = mTokenIndex.get(key);
+            if (bucket != null && bucket.remove(entry) && bucket.isEmpty()) {
+                mTokenIndex.remove(key);
+            }
+        }
+        for (long trigram : entry.trigrams) {
+            ArrayList<Entry> bucket = mTrigramIndex.get(trigram);
+            if (bucket != null && bucket.remove(entry) && bucket.isEmpty()) {
+                mTrigramIndex.remove(trigram);
+            }
+        }
+        mModCount++;
+    }
+
+    private static void collect(List<Entry> bucket, int mark, ArrayList<Entry> out) {
+        if (bucket == null) {
+            return;
+        }
+        for (Entry entry : bucket) {
+            if (entry.visitMark != mark) {
+                entry.visitMark = mark;
+                out.add(entry);
+            }
+        }
+    }
+
+    private static ArrayList<AppInfo> toApps(List<Entry> entries) {
+        ArrayList<AppInfo> apps = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            apps.add(entry.info);
+        }
+        return apps;
+    }
+
+    /**
+     * Returns the key of the word starting at {@param index}: the lower case latin letter or
+     * digit it starts with once accents and compatibility forms are removed, or
+     * {@link #KEY_IRREGULAR} if it starts with anything else.
+     */
+    private static int getTokenKey(String text, int index) {
+        char c = text.charAt(index);
+        if (c >= 0x80) {
+            c = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKD).charAt(0);
+        }
+        if (c < 0x80 && Character.isLetterOrDigit(c)) {
+            return Character.toLowerCase(c);
+        }
+        return KEY_IRREGULAR;
+    }
+
+    /**
+     * Returns the distinct trigrams of the lower case alphanumeric characters of {@param text},
+     * each packed into a long.
+     */
+    private static long[] getTrigrams(String text) {
+        final int length = text.length();
+        if (length < 3) {
+            return new long[0];
+        }
+        final char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            chars[i] = Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ';
+        }
+        long[] trigrams = new long[length - 2];
+        int count = 0;
+        outer:
+        for (int i = 0; i < length - 2; i++) {
+            long trigram = ((long) chars[i] << 32) | ((long) chars[i + 1] << 16) | chars[i + 2];
+            for (int j = 0; j < count; j++) {
+                if (trigrams[j] == trigram) {
+                    continue outer;
+                }
+            }
+            trigrams[count++] = trigram;
+        }
+        return count == trigrams.length ? trigrams : Arrays.copyOf(trigrams, count);
+    }
+
+    private static class Entry {
+
+        final AppInfo info;
+        final ComponentKey key;
+        final String title;
+        final int ordinal;
+
+        /** Start positions of the words in the title, in increasing order */
+        final int[] breaks;
+        /** Distinct keys of the words in the title, see {@link #getTokenKey} */
+        final int[] tokenKeys;
+        final long[] trigrams;
+
+        int visitMark;
+
+        Entry(AppInfo info, ComponentKey key, String title, int ordinal) {
+            this.info = info;
+            this.key = key;
+            this.title = title;
+            this.ordinal = ordinal;
+
+            final int titleLength = title.length();
+            final int[] breaks = new int[titleLength];
+            final int[] tokenKeys = new int[titleLength];
+            int breakCount = 0;
+            int keyCount = 0;
+
+            int lastType;
+            int thisType = Character.UNASSIGNED;
+            int nextType = titleLength > 0
+                    ? Character.getType(title.codePointAt(0)) : Character.UNASSIGNED;
+            for (int i = 0; i < titleLength; i++) {
+                lastType = thisType;
+                thisType = nextType;
+                nextType = i < (titleLength - 1) ?
+                        Character.getType(title.codePointAt(i + 1)) : Character.UNASSIGNED;
+                if (DefaultAppSearchAlgorithm.isBreak(thisType, lastType, nextType)) {
+                    breaks[breakCount++] = i;
+                    int tokenKey = getTokenKey(title, i);
+                    boolean found = false;
+                    for (int j = 0; j < keyCount && !found; j++) {
+                        found = tokenKeys[j] == tokenKey;
+                    }
+                    if (!found) {
+                        tokenKeys[keyCount++] = tokenKey;
+                    }
+                }
+            }
+            this.breaks = Arrays.copyOf(breaks, breakCount);
+            this.tokenKeys = Arrays.copyOf(tokenKeys, keyCount);
+            this.trigrams = getTrigrams(title);
+        }
+    }
+}
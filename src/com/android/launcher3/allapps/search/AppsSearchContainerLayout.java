@@ -142,7 +142,7 @@ public class AppsSearchContainerLayout extends ExtendedEditText
         mApps = appsView.getApps();
         mAppsView = appsView;
         mSearchBarController.initialize(
-                new FuzzyAppSearchAlgorithm(getContext(), mApps.getApps()), this, mLauncher, this);
+                new FuzzyAppSearchAlgorithm(getContext()), this, mLauncher, this);
     }
 
     @Override
@@ -15,116 +15,47 @@
  */
 package com.android.launcher3.allapps.search;
 
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.pm.LauncherActivityInfo;
-import android.os.Handler;
-import android.os.UserHandle;
-
-import ch.deletescape.lawnchair.LawnchairAppFilter;
-import ch.deletescape.lawnchair.globalsearch.SearchProvider;
-import ch.deletescape.lawnchair.globalsearch.SearchProviderController;
-import ch.deletescape.lawnchair.globalsearch.providers.web.WebSearchProvider;
-import com.android.launcher3.AppFilter;
+
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.LauncherAppState;
+import com.android.launcher3.LauncherModel;
 import com.android.launcher3.Utilities;
-import com.android.launcher3.compat.LauncherAppsCompat;
-import com.android.launcher3.compat.UserManagerCompat;
-import com.android.launcher3.icons.IconCache;
 import com.android.launcher3.util.ComponentKey;
 
 import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 /**
  * The default search implementation.
  */
-public class DefaultAppSearchAlgorithm implements SearchAlgorithm {
+public class DefaultAppSearchAlgorithm extends StagedSearchAlgorithm {
 
     public final static String SEARCH_HIDDEN_APPS = "pref_search_hidden_apps";
-    private final Context mContext;
-    private final List<AppInfo> mApps;
-    protected final Handler mResultHandler;
-
-    private final AppFilter mBaseFilter;
-
-    public DefaultAppSearchAlgorithm(Context context, List<AppInfo> apps) {
-        mContext = context;
-        mApps = apps;
-        mResultHandler = new Handler();
-        mBaseFilter = new LawnchairAppFilter(context);
+    private final AppSearchIndex mSearchIndex;
+    private final AppSearchIndex mHiddenApps;
+
+    public DefaultAppSearchAlgorithm(Context context) {
+        super(context);
+        LauncherModel model = LauncherAppState.getInstance(context).getModel();
+        mSearchIndex = model.getSearchIndex();
+        mHiddenApps = model.getHiddenApps();
     }
 
     @Override
-    public void cancel(boolean interruptActiveRequests) {
-        if (interruptActiveRequests) {
-            mResultHandler.removeCallbacksAndMessages(null);
-        }
-    }
-
-    @Override
-    public void doSearch(final String query,
-            final AllAppsSearchBarController.Callbacks callback) {
-        final ArrayList<ComponentKey> result = getTitleMatchResult(query);
-        final List<String> suggestions = getSuggestions(query);
-        mResultHandler.post(new Runnable() {
-
-            @Override
-            public void run() {
-                callback.onSearchResult(query, result, suggestions);
-            }
-        });
-    }
-
-    private ArrayList<ComponentKey> getTitleMatchResult(String query) {
-        // Do an intersection of the words in the query and each title, and filter out all the
-        // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
+    protected ArrayList<ComponentKey> getAppMatches(SearchRequest request) {
         final ArrayList<ComponentKey> result = new ArrayList<>();
-        StringMatcher matcher = StringMatcher.getInstance();
-        for (AppInfo info : getApps(mContext, mApps, mBaseFilter)) {
-            if (matches(info, queryTextLower, matcher)) {
+        for (AppInfo info : mSearchIndex.findTitleMatches(request.query)) {
+            result.add(info.toComponentKey());
+        }
+        if (Utilities.getPrefs(mContext).getBoolean(SEARCH_HIDDEN_APPS, false)) {
+            for (AppInfo info : mHiddenApps.findTitleMatches(request.query)) {
                 result.add(info.toComponentKey());
             }
         }
         return result;
     }
 
-    private List<String> getSuggestions(String query) {
-        SearchProvider provider = SearchProviderController.Companion
-                .getInstance(mContext).getSearchProvider();
-        if (provider instanceof WebSearchProvider) {
-            return ((WebSearchProvider) provider).getSuggestions(query);
-        }
-        return Collections.emptyList();
-    }
-
-    public static List<AppInfo> getApps(Context context, List<AppInfo> defaultApps, AppFilter filter) {
-        if (!Utilities.getPrefs(context).getBoolean(SEARCH_HIDDEN_APPS, false)) {
-            return defaultApps;
-        }
-        final List<AppInfo> apps = new ArrayList<>();
-        final IconCache iconCache = LauncherAppState.getInstance(context).getIconCache();
-        for (UserHandle user : UserManagerCompat.getInstance(context).getUserProfiles()) {
-            final List<ComponentName> duplicatePreventionCache = new ArrayList<>();
-            for (LauncherActivityInfo info : LauncherAppsCompat.getInstance(context).getActivityList(null, user)) {
-                if (!filter.shouldShowApp(info.getComponentName(), user)) {
-                    continue;
-                }
-                if (!duplicatePreventionCache.contains(info.getComponentName())) {
-                    duplicatePreventionCache.add(info.getComponentName());
-                    final AppInfo appInfo = new AppInfo(context, info, user);
-                    iconCache.getTitleAndIcon(appInfo, false);
-                    apps.add(appInfo);
-                }
-            }
-        }
-        return apps;
-    }
-
     public static boolean matches(AppInfo info, String query, StringMatcher matcher) {
         int queryLength = query.length();
 
@@ -161,7 +92,7 @@ public class DefaultAppSearchAlgorithm implements SearchAlgorithm {
      *      3) Any capital character after a digit or small character
      *      4) Any capital character before a small character
      */
-    private static boolean isBreak(int thisType, int prevType, int nextType) {
+    static boolean isBreak(int thisType, int prevType, int nextType) {
         switch (prevType) {
             case Character.UNASSIGNED:
             case Character.SPACE_SEPARATOR:
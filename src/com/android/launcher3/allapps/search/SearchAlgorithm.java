@@ -21,7 +21,8 @@ package com.android.launcher3.allapps.search;
 public interface SearchAlgorithm {
 
     /**
-     * Performs search and sends the result to the callback.
+     * Performs search and sends the result to the callback. The result can be sent in several
+     * parts, as they become available.
      */
     void doSearch(String query, AllAppsSearchBarController.Callbacks callback);
 
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps.search;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import ch.deletescape.lawnchair.globalsearch.SearchProvider;
+import ch.deletescape.lawnchair.globalsearch.SearchProviderController;
+import ch.deletescape.lawnchair.globalsearch.providers.web.WebSearchProvider;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base class for search algorithms which match off the UI thread and deliver their results in
+ * stages, so that cheap matches are shown while more expensive matching is still running.
+ *
+ * Each query goes through the following stages on the search thread:
+ *   1) App matches, posted as soon as they are available
+ *   2) Extended app matches (like fuzzy matches), which only run once typing pauses and are
+ *      posted along with the first stage results
+ * Suggestions are loaded on a separate thread once typing pauses, so that a slow provider never
+ * delays app results. A new query cancels the previous one: its pending stages are dropped, and
+ * its running stage stops at the next {@link SearchRequest#isCancelled()} check.
+ */
+public abstract class StagedSearchAlgorithm implements SearchAlgorithm {
+
+    private static final long EXTENDED_MATCHES_DELAY_MS = 32;
+    private static final long SUGGESTIONS_DELAY_MS = 150;
+
+    private static HandlerThread sSearchThread;
+    private static HandlerThread sSuggestionsThread;
+
+    protected final Context mContext;
+
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+    private final Handler mSearchHandler;
+    private final Handler mSuggestionsHandler;
+    // The search threads are shared, so only remove our own callbacks
+    private final Object mToken = new Object();
+
+    private SearchRequest mActiveRequest;
+
+    public StagedSearchAlgorithm(Context context) {
+        mContext = context;
+        mSearchHandler = new Handler(getSearchLooper());
+        mSuggestionsHandler = new Handler(getSuggestionsLooper());
+    }
+
+    @Override
+    public void doSearch(String query, AllAppsSearchBarController.Callbacks callback) {
+        cancelActiveRequest();
+        final SearchRequest request = new SearchRequest(query, callback);
+        mActiveRequest = request;
+
+        mSearchHandler.postAtTime(() -> runAppStage(request), mToken,
+                SystemClock.uptimeMillis());
+        mSuggestionsHandler.postAtTime(() -> runSuggestionsStage(request), mToken,
+                SystemClock.uptimeMillis() + SUGGESTIONS_DELAY_MS);
+    }
+
+    @Override
+    public void cancel(boolean interruptActiveRequests) {
+        cancelActiveRequest();
+        if (interruptActiveRequests) {
+            mUiHandler.removeCallbacksAndMessages(mToken);
+        }
+    }
+
+    private void cancelActiveRequest() {
+        if (mActiveRequest != null) {
+            mActiveRequest.mCancelled = true;
+            mActiveRequest = null;
+        }
+        mSearchHandler.removeCallbacksAndMessages(mToken);
+        mSuggestionsHandler.removeCallbacksAndMessages(mToken);
+    }
+
+    /**
+     * Returns the apps matching the request, in the order they should be shown.
+     */
+    @WorkerThread
+    protected abstract ArrayList<ComponentKey> getAppMatches(SearchRequest request);
+
+    /**
+     * Returns the complete list of app matches, including {@param appMatches} from the first
+     * stage, or null if there are no additional matches to show.
+     */
+    @WorkerThread
+    @Nullable
+    protected ArrayList<ComponentKey> getExtendedAppMatches(SearchRequest request,
+            ArrayList<ComponentKey> appMatches) {
+        return null;
+    }
+
+    @WorkerThread
+    protected List<String> getSuggestions(String query) {
+        SearchProvider provider = SearchProviderController.Companion
+                .getInstance(mContext).getSearchProvider();
+        if (provider instanceof WebSearchProvider) {
+            return ((WebSearchProvider) provider).getSuggestions(query);
+        }
+        return Collections.emptyList();
+    }
+
+    private void runAppStage(SearchRequest request) {
+        if (request.isCancelled()) {
+            return;
+        }
+        final ArrayList<ComponentKey> appMatches = getAppMatches(request);
+        if (request.isCancelled()) {
+            return;
+        }
+        postResult(request, appMatches, null);
+        mSearchHandler.postAtTime(() -> runExtendedStage(request, appMatches), mToken,
+                SystemClock.uptimeMillis() + EXTENDED_MATCHES_DELAY_MS);
+    }
+
+    private void runExtendedStage(SearchRequest request, ArrayList<ComponentKey> appMatches) {
+        if (request.isCancelled()) {
+            return;
+        }
+        final ArrayList<ComponentKey> allMatches = getExtendedAppMatches(request, appMatches);
+        if (allMatches != null && !request.isCancelled()) {
+            postResult(request, allMatches, null);
+        }
+    }
+
+    private void runSuggestionsStage(SearchRequest request) {
+        if (request.isCancelled()) {
+            return;
+        }
+        final List<String> suggestions = getSuggestions(request.query);
+        if (!request.isCancelled()) {
+            postResult(request, null, suggestions);
+        }
+    }
+
+    private void postResult(SearchRequest request, ArrayList<ComponentKey> apps,
+            List<String> suggestions) {
+        mUiHandler.postAtTime(() -> {
+            if (!request.isCancelled()) {
+                request.callback.onSearchResult(request.query, apps, suggestions);
+            }
+        }, mToken, SystemClock.uptimeMillis());
+    }
+
+    private static synchronized Looper getSearchLooper() {
+        if (sSearchThread == null) {
+            sSearchThread = new HandlerThread("launcher-search", Process.THREAD_PRIORITY_FOREGROUND);
+            sSearchThread.start();
+        }
+        return sSearchThread.getLooper();
+    }
+
+    private static synchronized Looper getSuggestionsLooper() {
+        if (sSuggestionsThread == null) {
+            sSuggestionsThread = new HandlerThread("launcher-search-suggestions",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            sSuggestionsThread.start();
+        }
+        return sSuggestionsThread.getLooper();
+    }
+
+    /**
+     * A single query going through the search stages.
+     */
+    public static final class SearchRequest {
+
+        public final String query;
+        private final AllAppsSearchBarController.Callbacks callback;
+        private volatile boolean mCancelled;
+
+        SearchRequest(String query, AllAppsSearchBarController.Callbacks callback) {
+            this.query = query;
+            this.callback = callback;
+        }
+
+        /**
+         * Returns whether the request was superseded or cancelled, in which case any work for it
+         * should stop as soon as possible.
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+}
@@ -41,6 +41,16 @@ public class DotInfo {
      */
     private int mTotalCount;
 
+    public DotInfo() { }
+
+    /**
+     * Creates a copy of {@param other}, which can be changed without affecting it.
+     */
+    public DotInfo(DotInfo other) {
+        mNotificationKeys.addAll(other.mNotificationKeys);
+        mTotalCount = other.mTotalCount;
+    }
+
     /**
      * Returns whether the notification was added or its count changed.
      */
@@ -52,10 +62,11 @@ public class DotInfo {
             if (prevKey.count == notificationKey.count) {
                 return false;
             }
-            // Notification was updated with a new count.
+            // Notification was updated with a new count. The previous key is replaced rather than
+            // updated, as it can be shared with copies of this dot.
             mTotalCount -= prevKey.count;
             mTotalCount += notificationKey.count;
-            prevKey.count = notificationKey.count;
+            mNotificationKeys.set(indexOfPrevKey, notificationKey);
             return true;
         }
         boolean added = mNotificationKeys.add(notificationKey);
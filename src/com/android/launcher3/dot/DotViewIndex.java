@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.dot;
+
+import android.view.View;
+
+import com.android.launcher3.BubbleTextView;
+import com.android.launcher3.CellLayout;
+import com.android.launcher3.CellLayout.ContainerType;
+import com.android.launcher3.FolderInfo;
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.WorkspaceItemInfo;
+import com.android.launcher3.folder.FolderIcon;
+import com.android.launcher3.util.IntArray;
+import com.android.launcher3.util.IntSet;
+import com.android.launcher3.util.IntSparseArrayMap;
+import com.android.launcher3.util.PackageUserKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Index of the icons bound to the workspace, hotseat and workspace folders by the package they
+ * show, so that a change of the notification dots of a package only updates its icons.
+ *
+ * Icons are added and removed as they are added to and removed from their cell layouts. The
+ * icons inside a folder are only indexed while its folder icon is.
+ */
+public class DotViewIndex {
+
+    private final HashMap<PackageUserKey, ArrayList<BubbleTextView>> mIconsByKey =
+            new HashMap<>();
+    private final HashMap<BubbleTextView, PackageUserKey> mKeysByIcon = new HashMap<>();
+    private final IntSparseArrayMap<FolderIcon> mFolderIcons = new IntSparseArrayMap<>();
+
+    private final PackageUserKey mTempKey = new PackageUserKey(null, null);
+    private final IntSet mTempFolderIds = new IntSet();
+
+    /**
+     * Called when {@param child} was added to a cell layout of type {@param containerType}.
+     */
+    public void onViewAdded(View child, @ContainerType int containerType) {
+        Object tag = child.getTag();
+        if (child instanceof FolderIcon && tag instanceof FolderInfo) {
+            FolderIcon folderIcon = (FolderIcon) child;
+            mFolderIcons.put(((FolderInfo) tag).id, folderIcon);
+            folderIcon.getFolder().iterateOverItems((info, view) -> {
+                addIcon(view);
+                return false;
+            });
+        } else if (containerType != CellLayout.FOLDER || (tag instanceof ItemInfo
+                && mFolderIcons.get(((ItemInfo) tag).container) != null)) {
+            addIcon(child);
+        }
+    }
+
+    /**
+     * Called when {@param child} was removed from its cell layout.
+     */
+    public void onViewRemoved(View child) {
+        Object tag = child.getTag();
+        if (child instanceof FolderIcon && tag instanceof FolderInfo) {
+            FolderIcon folderIcon = (FolderIcon) child;
+            if (mFolderIcons.get(((FolderInfo) tag).id) == folderIcon) {
+                mFolderIcons.remove(((FolderInfo) tag).id);
+            }
+            folderIcon.getFolder().iterateOverItems((info, view) -> {
+                removeIcon(view);
+                return false;
+            });
+        } else {
+            removeIcon(child);
+        }
+    }
+
+    /**
+     * Updates the dots of the icons of {@param updatedDots} and of the folders containing them.
+     */
+    public void updateNotificationDots(Set<PackageUserKey> updatedDots) {
+        mTempFolderIds.clear();
+        for (PackageUserKey key : updatedDots) {
+            ArrayList<BubbleTextView> icons = mIconsByKey.get(key);
+            if (icons == null) {
+                continue;
+            }
+            for (int i = icons.size() - 1; i >= 0; i--) {
+                BubbleTextView icon = icons.get(i);
+                ItemInfo info = (ItemInfo) icon.getTag();
+                icon.applyDotState(info, true /* animate */);
+                mTempFolderIds.add(info.container);
+            }
+        }
+
+        IntArray folderIds = mTempFolderIds.getArray();
+        for (int i = 0; i < folderIds.size(); i++) {
+            FolderIcon folderIcon = mFolderIcons.get(folderIds.get(i));
+            if (folderIcon != null) {
+                folderIcon.updateIconDots(updatedDots::contains, mTempKey);
+            }
+        }
+    }
+
+    private void addIcon(View view) {
+        if (!(view instanceof BubbleTextView) || !(view.getTag() instanceof WorkspaceItemInfo)) {
+            return;
+        }
+        BubbleTextView icon = (BubbleTextView) view;
+        if (mKeysByIcon.containsKey(icon)) {
+            return;
+        }
+        ItemInfo info = (ItemInfo) icon.getTag();
+        if (!mTempKey.updateFromItemInfo(info)) {
+            // Icons without a package never show a dot
+            return;
+        }
+        PackageUserKey key = new PackageUserKey(mTempKey.mPackageName, mTempKey.mUser);
+        mKeysByIcon.put(icon, key);
+        ArrayList<BubbleTextView> icons = mIconsByKey.get(key);
+        if (icons == null) {
+            icons = new ArrayList<>(1);
+            mIconsByKey.put(key, icons);
+        }
+        icons.add(icon);
+    }
+
+    private void removeIcon(View view) {
+        PackageUserKey key = mKeysByIcon.remove(view);
+        if (key == null) {
+            return;
+        }
+        ArrayList<BubbleTextView> icons = mIconsByKey.get(key);
+        if (icons != null) {
+            icons.remove(view);
+            if (icons.isEmpty()) {
+                mIconsByKey.remove(key);
+            }
+        }
+    }
+}
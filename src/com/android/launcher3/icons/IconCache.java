@@ -50,6 +50,7 @@ import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.util.InstantAppResolver;
 import com.android.launcher3.util.Preconditions;
 
+import java.util.List;
 import java.util.function.Supplier;
 
 import androidx.annotation.NonNull;
@@ -117,6 +118,14 @@ public class IconCache extends BaseIconCache {
         }
     }
 
+    /**
+     * Renders the icons of {@param apps} in parallel and adds them to the cache.
+     * @see #renderEntries
+     */
+    public void renderActivityIcons(List<LauncherActivityInfo> apps) {
+        renderEntries(apps, mLauncherActivityInfoCachingLogic);
+    }
+
     /**
      * Fetches high-res icon for the provided ItemInfo and updates the caller when done.
      * @return a request ID that can be used to cancel the request.
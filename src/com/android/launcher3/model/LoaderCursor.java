@@ -433,18 +433,18 @@ public class LoaderCursor extends CursorWrapper {
             }
 
             if (hotseatOccupancy != null) {
-                if (hotseatOccupancy.cells[hotseatX][hotseatY]) {
+                if (hotseatOccupancy.isOccupied(hotseatX, hotseatY)) {
                     Log.e(TAG, "Error loading shortcut into hotseat " + item
                             + " into position (" + item.screenId + ":" + item.cellX + ","
                             + item.cellY + ") already occupied");
                     return false;
                 } else {
-                    hotseatOccupancy.cells[hotseatX][hotseatY] = true;
+                    hotseatOccupancy.markCells(hotseatX, hotseatY, 1, 1, true);
                     return true;
                 }
             } else {
                 final GridOccupancy occupancy = new GridOccupancy(hotseatSize, hotseatRows);
-                occupancy.cells[hotseatX][hotseatY] = true;
+                occupancy.markCells(hotseatX, hotseatY, 1, 1, true);
                 occupied.put(LauncherSettings.Favorites.CONTAINER_HOTSEAT, occupancy);
                 return true;
             }
@@ -33,6 +33,7 @@ import android.content.pm.PackageInstaller.SessionInfo;
 import android.content.pm.ShortcutInfo;
 import android.os.Handler;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -52,6 +53,7 @@ import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.LauncherAppWidgetInfo;
 import com.android.launcher3.LauncherModel;
 import com.android.launcher3.LauncherSettings;
+import com.android.launcher3.Workspace;
 import com.android.launcher3.WorkspaceItemInfo;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.compat.AppWidgetManagerCompat;
@@ -77,13 +79,20 @@ import com.android.launcher3.util.MultiHashMap;
 import com.android.launcher3.util.PackageManagerHelper;
 import com.android.launcher3.util.TraceHelper;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 /**
@@ -96,6 +105,13 @@ import java.util.function.Supplier;
 public class LoaderTask implements Runnable {
     private static final String TAG = "LoaderTask";
 
+    private static final int PREFETCH_THREADS = 3;
+    private static final ThreadPoolExecutor PREFETCH_EXECUTOR = new ThreadPoolExecutor(
+            PREFETCH_THREADS, PREFETCH_THREADS, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    static {
+        PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
     private final LauncherAppState mApp;
     private final AllAppsList mBgAllAppsList;
     private final BgDataModel mBgDataModel;
@@ -113,6 +129,15 @@ public class LoaderTask implements Runnable {
 
     private boolean mStopped;
 
+    // Queries started ahead of the step that uses them, guarded by this
+    private final ArrayList<Future<?>> mPrefetches = new ArrayList<>();
+
+    // Wall time of each stage, including the prefetch queries running in parallel
+    private final LinkedHashMap<String, Long> mStageTimes = new LinkedHashMap<>();
+    private String mStage;
+    private long mStageStart;
+    private static volatile Map<String, Long> sLastStageTimes;
+
     public LoaderTask(LauncherAppState app, AllAppsList bgAllAppsList, BgDataModel dataModel,
             LoaderResults results) {
         mApp = app;
@@ -170,32 +195,45 @@ public class LoaderTask implements Runnable {
 
         TraceHelper.beginSection(TAG);
         try (LauncherModel.LoaderTransaction transaction = mApp.getModel().beginLoader(this)) {
-            TraceHelper.partitionSection(TAG, "step 1.1: loading workspace");
+            beginStage("step 1.1: loading workspace");
             loadWorkspace();
 
+            // The queries of the following steps don't depend on each other, start them now so
+            // that they run while the workspace is being bound.
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 1.2: bind workspace workspace");
+            Future<List<ProfileActivities>> allAppsQuery =
+                    prefetch("prefetch all apps", this::queryAllApps);
+            Future<Map<UserHandle, List<ShortcutInfo>>> deepShortcutsQuery =
+                    prefetch("prefetch deep shortcuts", this::queryDeepShortcuts);
+            Future<WidgetsModel.ProviderList> widgetsQuery = prefetch("prefetch widgets",
+                    () -> WidgetsModel.queryAllProviders(mApp.getContext()));
+
+            beginStage("step 1.2: bind workspace workspace");
             mResults.bindWorkspace();
 
             // Notify the installer packages of packages with active installs on the first screen.
-            TraceHelper.partitionSection(TAG, "step 1.3: send first screen broadcast");
+            beginStage("step 1.3: send first screen broadcast");
             sendFirstScreenActiveInstallsBroadcast();
 
             // Take a break
-            TraceHelper.partitionSection(TAG, "step 1 completed, wait for idle");
+            beginStage("step 1 completed, wait for idle");
             waitForIdle();
             verifyNotStopped();
 
             // second step
-            TraceHelper.partitionSection(TAG, "step 2.1: loading all apps");
-            List<LauncherActivityInfo> allActivityList = loadAllApps();
+            beginStage("step 2.1: loading all apps");
+            List<ProfileActivities> profileActivities = getPrefetched(allAppsQuery);
+            if (profileActivities == null) {
+                profileActivities = queryAllApps();
+            }
+            List<LauncherActivityInfo> allActivityList = loadAllApps(profileActivities);
 
-            TraceHelper.partitionSection(TAG, "step 2.2: Binding all apps");
+            beginStage("step 2.2: Binding all apps");
             verifyNotStopped();
             mResults.bindAllApps();
 
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 2.3: Update icon cache");
+            beginStage("step 2.3: Update icon cache");
             IconCacheUpdateHandler updateHandler = mIconCache.getUpdateHandler();
             setIgnorePackages(updateHandler);
             updateHandler.updateIcons(allActivityList,
@@ -203,50 +241,61 @@ public class LoaderTask implements Runnable {
                     mApp.getModel()::onPackageIconsUpdated);
 
             // Take a break
-            TraceHelper.partitionSection(TAG, "step 2 completed, wait for idle");
+            beginStage("step 2 completed, wait for idle");
             waitForIdle();
             verifyNotStopped();
 
             // third step
-            TraceHelper.partitionSection(TAG, "step 3.1: loading deep shortcuts");
-            loadDeepShortcuts();
+            beginStage("step 3.1: loading deep shortcuts");
+            Map<UserHandle, List<ShortcutInfo>> deepShortcuts = getPrefetched(deepShortcutsQuery);
+            if (deepShortcuts == null) {
+                deepShortcuts = queryDeepShortcuts();
+            }
+            loadDeepShortcuts(deepShortcuts);
 
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 3.2: bind deep shortcuts");
+            beginStage("step 3.2: bind deep shortcuts");
             mResults.bindDeepShortcuts();
 
             // Take a break
-            TraceHelper.partitionSection(TAG, "step 3 completed, wait for idle");
+            beginStage("step 3 completed, wait for idle");
             waitForIdle();
             verifyNotStopped();
 
             // fourth step
-            TraceHelper.partitionSection(TAG, "step 4.1: loading widgets");
-            List<ComponentWithLabel> allWidgetsList = mBgDataModel.widgetsModel.update(mApp, null);
+            beginStage("step 4.1: loading widgets");
+            WidgetsModel.ProviderList providers = getPrefetched(widgetsQuery);
+            List<ComponentWithLabel> allWidgetsList = providers != null
+                    ? mBgDataModel.widgetsModel.updateFromProviders(mApp, providers)
+                    : mBgDataModel.widgetsModel.update(mApp, null);
 
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 4.2: Binding widgets");
+            beginStage("step 4.2: Binding widgets");
             mResults.bindWidgets();
 
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 4.3: Update icon cache");
+            beginStage("step 4.3: Update icon cache");
             updateHandler.updateIcons(allWidgetsList, new ComponentCachingLogic(mApp.getContext()),
                     mApp.getModel()::onWidgetLabelsUpdated);
 
             verifyNotStopped();
-            TraceHelper.partitionSection(TAG, "step 5: Finish icon cache update");
+            beginStage("step 5: Finish icon cache update");
             updateHandler.finish();
 
             transaction.commit();
+            endStages();
         } catch (CancellationException e) {
             // Loader stopped, ignore
             TraceHelper.partitionSection(TAG, "Cancelled");
+        } finally {
+            cancelPrefetches();
         }
         TraceHelper.endSection(TAG);
     }
 
     public synchronized void stopLocked() {
         mStopped = true;
+        cancelPrefetches();
         this.notify();
     }
 
@@ -347,6 +396,8 @@ public class LoaderTask implements Runnable {
                     unlockedUsers.put(serialNo, userUnlocked);
                 }
 
+                preloadWorkspaceIcons(c);
+
                 WorkspaceItemInfo info;
                 LauncherAppWidgetInfo appWidgetInfo;
                 Intent intent;
@@ -804,6 +855,52 @@ public class LoaderTask implements Runnable {
         }
     }
 
+    /**
+     * Loads the cached icons of all the apps in {@param c} with one query per user, rather than
+     * one query per item while the items are loaded. The icons are also pinned in memory, as they
+     * are needed whenever the workspace is bound. Icons which aren't cached, like after the icon
+     * pack changed, are rendered in parallel, starting with the hotseat and the first screen.
+     */
+    private void preloadWorkspaceIcons(LoaderCursor c) {
+        MultiHashMap<UserHandle, ComponentName> components = new MultiHashMap<>();
+        ArrayList<ComponentKey> keys = new ArrayList<>();
+        ArrayList<ComponentKey> otherKeys = new ArrayList<>();
+        int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
+        while (!mStopped && c.moveToNext()) {
+            if (c.user != null
+                    && c.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                Intent intent = c.parseIntent();
+                if (intent != null && intent.getComponent() != null) {
+                    ComponentKey key = new ComponentKey(intent.getComponent(), c.user);
+                    boolean visible = c.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT
+                            || (c.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                                    && c.getInt(screenIndex) == Workspace.FIRST_SCREEN_ID);
+                    (visible ? keys : otherKeys).add(key);
+                }
+            }
+        }
+        c.moveToPosition(-1);
+        keys.addAll(otherKeys);
+        for (ComponentKey key : keys) {
+            components.addToList(key.user, key.componentName);
+        }
+        mIconCache.setPinnedEntries(keys);
+        for (Map.Entry<UserHandle, ArrayList<ComponentName>> entry : components.entrySet()) {
+            UserHandle user = entry.getKey();
+            List<ComponentName> missing = mIconCache.preloadEntries(user, entry.getValue(),
+                    false /* lowRes */);
+            ArrayList<LauncherActivityInfo> activities = new ArrayList<>(missing.size());
+            for (ComponentName cn : missing) {
+                LauncherActivityInfo info = mLauncherApps.resolveActivity(
+                        new Intent(Intent.ACTION_MAIN).setComponent(cn), user);
+                if (info != null) {
+                    activities.add(info);
+                }
+            }
+            mIconCache.renderActivityIcons(activities);
+        }
+    }
+
     private void setIgnorePackages(IconCacheUpdateHandler updateHandler) {
         // Ignore packages which have a promise icon.
         HashSet<String> packagesToIgnore = new HashSet<>();
@@ -825,24 +922,48 @@ public class LoaderTask implements Runnable {
         updateHandler.setPackagesToIgnore(Process.myUserHandle(), packagesToIgnore);
     }
 
-    private List<LauncherActivityInfo> loadAllApps() {
-        final List<UserHandle> profiles = mUserManager.getUserProfiles();
+    private List<ProfileActivities> queryAllApps() {
+        List<ProfileActivities> result = new ArrayList<>();
+        for (UserHandle user : mUserManager.getUserProfiles()) {
+            // Query for the set of apps
+            result.add(new ProfileActivities(user, mLauncherApps.getActivityList(null, user),
+                    mUserManager.isQuietModeEnabled(user)));
+        }
+        return result;
+    }
+
+    private List<LauncherActivityInfo> loadAllApps(List<ProfileActivities> profiles) {
         List<LauncherActivityInfo> allActivityList = new ArrayList<>();
         // Clear the list of apps
         mBgAllAppsList.clear();
-        for (UserHandle user : profiles) {
-            // Query for the set of apps
-            final List<LauncherActivityInfo> apps = mLauncherApps.getActivityList(null, user);
+        for (ProfileActivities profile : profiles) {
+            final List<LauncherActivityInfo> apps = profile.apps;
             // Fail if we don't have any apps
             if (apps == null || apps.isEmpty()) {
                 return allActivityList;
             }
-            boolean quietMode = mUserManager.isQuietModeEnabled(user);
+            ArrayList<ComponentName> components = new ArrayList<>(apps.size());
+            for (LauncherActivityInfo app : apps) {
+                components.add(app.getComponentName());
+            }
+            List<ComponentName> missing = mIconCache.preloadEntries(profile.user, components,
+                    true /* lowRes */);
+            if (!missing.isEmpty()) {
+                HashSet<ComponentName> missingSet = new HashSet<>(missing);
+                ArrayList<LauncherActivityInfo> activities = new ArrayList<>(missing.size());
+                for (LauncherActivityInfo app : apps) {
+                    if (missingSet.contains(app.getComponentName())) {
+                        activities.add(app);
+                    }
+                }
+                mIconCache.renderActivityIcons(activities);
+            }
+
             // Create the ApplicationInfos
             for (int i = 0; i < apps.size(); i++) {
                 LauncherActivityInfo app = apps.get(i);
                 // This builds the icon bitmaps.
-                mBgAllAppsList.add(new AppInfo(app, user, quietMode), app);
+                mBgAllAppsList.add(new AppInfo(app, profile.user, profile.quietMode), app);
             }
             allActivityList.addAll(apps);
         }
@@ -860,22 +981,123 @@ public class LoaderTask implements Runnable {
         return allActivityList;
     }
 
-    private void loadDeepShortcuts() {
-        mBgDataModel.deepShortcutMap.clear();
-        mBgDataModel.hasShortcutHostPermission = mShortcutManager.hasHostPermission();
-        if (mBgDataModel.hasShortcutHostPermission) {
+    /**
+     * Returns the deep shortcuts of all unlocked users, or an empty map if we don't have the
+     * permission to access them.
+     */
+    private Map<UserHandle, List<ShortcutInfo>> queryDeepShortcuts() {
+        Map<UserHandle, List<ShortcutInfo>> result = new LinkedHashMap<>();
+        if (mShortcutManager.hasHostPermission()) {
             for (UserHandle user : mUserManager.getUserProfiles()) {
                 if (mUserManager.isUserUnlocked(user)) {
-                    List<ShortcutInfo> shortcuts =
-                            mShortcutManager.queryForAllShortcuts(user);
-                    mBgDataModel.updateDeepShortcutCounts(null, user, shortcuts);
+                    result.put(user, mShortcutManager.queryForAllShortcuts(user));
                 }
             }
         }
+        return result;
+    }
+
+    private void loadDeepShortcuts(Map<UserHandle, List<ShortcutInfo>> shortcuts) {
+        mBgDataModel.deepShortcutMap.clear();
+        mBgDataModel.hasShortcutHostPermission = mShortcutManager.hasHostPermission();
+        if (mBgDataModel.hasShortcutHostPermission) {
+            for (Map.Entry<UserHandle, List<ShortcutInfo>> entry : shortcuts.entrySet()) {
+                mBgDataModel.updateDeepShortcutCounts(null, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Runs {@param query} on the prefetch pool, recording its duration as a stage.
+     */
+    private synchronized <T> Future<T> prefetch(String stage, Supplier<T> query) {
+        Future<T> future = PREFETCH_EXECUTOR.submit(() -> {
+            long start = SystemClock.uptimeMillis();
+            T result = query.get();
+            recordStage(stage, SystemClock.uptimeMillis() - start);
+            return result;
+        });
+        mPrefetches.add(future);
+        return future;
+    }
+
+    /**
+     * Waits for the result of {@param future}, or returns null if the query failed, in which case
+     * it should be run again on the loader thread.
+     */
+    private <T> T getPrefetched(Future<T> future) throws CancellationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new CancellationException("Loader interrupted");
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Prefetch failed", e.getCause());
+            return null;
+        }
+    }
+
+    private synchronized void cancelPrefetches() {
+        for (Future<?> future : mPrefetches) {
+            future.cancel(false);
+        }
+        mPrefetches.clear();
+    }
+
+    private void beginStage(String stage) {
+        TraceHelper.partitionSection(TAG, stage);
+        long now = SystemClock.uptimeMillis();
+        if (mStage != null) {
+            recordStage(mStage, now - mStageStart);
+        }
+        mStage = stage;
+        mStageStart = now;
+    }
+
+    private void endStages() {
+        if (mStage != null) {
+            recordStage(mStage, SystemClock.uptimeMillis() - mStageStart);
+            mStage = null;
+        }
+        synchronized (mStageTimes) {
+            sLastStageTimes = new LinkedHashMap<>(mStageTimes);
+        }
+    }
+
+    private void recordStage(String stage, long duration) {
+        synchronized (mStageTimes) {
+            mStageTimes.put(stage, duration);
+        }
+    }
+
+    /**
+     * Dumps the wall time of each stage of the last completed load.
+     */
+    public static void dumpStageTimes(String prefix, PrintWriter writer) {
+        Map<String, Long> stageTimes = sLastStageTimes;
+        if (stageTimes == null) {
+            return;
+        }
+        writer.println(prefix + "Loader stages:");
+        for (Map.Entry<String, Long> entry : stageTimes.entrySet()) {
+            writer.println(prefix + "  " + entry.getKey() + ": " + entry.getValue() + "ms");
+        }
     }
 
     public static boolean isValidProvider(AppWidgetProviderInfo provider) {
         return (provider != null) && (provider.provider != null)
                 && (provider.provider.getPackageName() != null);
     }
+
+    private static class ProfileActivities {
+
+        final UserHandle user;
+        final List<LauncherActivityInfo> apps;
+        final boolean quietMode;
+
+        ProfileActivities(UserHandle user, List<LauncherActivityInfo> apps, boolean quietMode) {
+            this.user = user;
+            this.apps = apps;
+            this.quietMode = quietMode;
+        }
+    }
 }
@@ -17,6 +17,7 @@
 package com.android.launcher3.model;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -24,6 +25,7 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.Log;
 
 import ch.deletescape.lawnchair.iconpack.IconPackManager;
@@ -45,14 +47,22 @@ import com.android.launcher3.util.ContentWriter;
 import com.android.launcher3.util.ItemInfoMatcher;
 import com.android.launcher3.util.LooperExecutor;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.function.Supplier;
 
 /**
  * Class for handling model updates.
+ *
+ * Updates to existing items are not written right away, but collected in the {@link WriteQueue}
+ * of the model. Successive updates to the same item are merged, and all updates are committed in
+ * one transaction once the worker thread is idle, or a frame later at the latest. The queue is
+ * flushed before any other write of this class, and before the loader reads the DB.
  */
 public class ModelWriter {
 
@@ -64,6 +74,7 @@ public class ModelWriter {
     private final Handler mUiHandler;
 
     private final Executor mWorkerExecutor;
+    private final WriteQueue mWriteQueue;
     private final boolean mHasVerticalHotseat;
     private final boolean mVerifyChanges;
 
@@ -72,11 +83,12 @@ public class ModelWriter {
     private boolean mPreparingToUndo;
 
     public ModelWriter(Context context, LauncherModel model, BgDataModel dataModel,
-            boolean hasVerticalHotseat, boolean verifyChanges) {
+            WriteQueue writeQueue, boolean hasVerticalHotseat, boolean verifyChanges) {
         mContext = context;
         mModel = model;
         mBgDataModel = dataModel;
         mWorkerExecutor = new LooperExecutor(LauncherModel.getWorkerLooper());
+        mWriteQueue = writeQueue;
         mHasVerticalHotseat = hasVerticalHotseat;
         mVerifyChanges = verifyChanges;
         mUiHandler = new Handler(Looper.getMainLooper());
@@ -192,6 +204,16 @@ public class ModelWriter {
         enqueueDeleteRunnable(new UpdateItemsRunnable(items, contentValues));
     }
 
+    /**
+     * Runs {@param r} on the worker thread after the pending updates were committed.
+     */
+    private void executeAfterPendingWrites(Runnable r) {
+        mWorkerExecutor.execute(() -> {
+            mWriteQueue.flush();
+            r.run();
+        });
+    }
+
     /**
      * Move and/or resize item in the DB to a new <container, screen, cellX, cellY, spanX, spanY>
      */
@@ -258,8 +280,8 @@ public class ModelWriter {
         item.id = Settings.call(cr, Settings.METHOD_NEW_ITEM_ID).getInt(Settings.EXTRA_VALUE);
 
         ModelVerifier verifier = new ModelVerifier();
-        final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
-        mWorkerExecutor.execute(() -> {
+        final StackTraceElement[] stackTrace = getStackTrace();
+        executeAfterPendingWrites(() -> {
             // Write the item on background thread, as some properties might have been updated in
             // the background.
             final ContentWriter writer = new ContentWriter(mContext);
@@ -363,14 +385,14 @@ public class ModelWriter {
         if (mPreparingToUndo) {
             mDeleteRunnables.add(r);
         } else {
-            mWorkerExecutor.execute(r);
+            executeAfterPendingWrites(r);
         }
     }
 
     public void commitDelete() {
         mPreparingToUndo = false;
         for (Runnable runnable : mDeleteRunnables) {
-            mWorkerExecutor.execute(runnable);
+            executeAfterPendingWrites(runnable);
         }
         mDeleteRunnables.clear();
     }
@@ -396,10 +418,8 @@ public class ModelWriter {
 
         @Override
         public void run() {
-            Uri uri = Favorites.getContentUri(mItemId);
-            mContext.getContentResolver().update(uri, mWriter.get().getValues(mContext),
-                    null, null);
-            updateItemArrays(mItem, mItemId);
+            mWriteQueue.enqueue(mItemId, mWriter.get().getValues(mContext),
+                    () -> updateItemArrays(mItem, mItemId));
         }
     }
 
@@ -414,21 +434,11 @@ public class ModelWriter {
 
         @Override
         public void run() {
-            ArrayList<ContentProviderOperation> ops = new ArrayList<>();
             int count = mItems.size();
             for (int i = 0; i < count; i++) {
                 ItemInfo item = mItems.get(i);
                 final int itemId = item.id;
-                final Uri uri = Favorites.getContentUri(itemId);
-                ContentValues values = mValues.get(i);
-
-                ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
-                updateItemArrays(item, itemId);
-            }
-            try {
-                mContext.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
-            } catch (Exception e) {
-                e.printStackTrace();
+                mWriteQueue.enqueue(itemId, mValues.get(i), () -> updateItemArrays(item, itemId));
             }
         }
     }
@@ -438,7 +448,7 @@ public class ModelWriter {
         private final ModelVerifier mVerifier = new ModelVerifier();
 
         UpdateItemBaseRunnable() {
-            mStackTrace = new Throwable().getStackTrace();
+            mStackTrace = getStackTrace();
         }
 
         protected void updateItemArrays(ItemInfo item, int itemId) {
@@ -485,6 +495,128 @@ public class ModelWriter {
         }
     }
 
+    /**
+     * Returns the stack trace of the caller, which is attached to errors found while verifying
+     * the change later on. Capturing it is expensive, so it's only done if changes are verified.
+     */
+    private StackTraceElement[] getStackTrace() {
+        return mVerifyChanges ? new Throwable().getStackTrace() : null;
+    }
+
+    /**
+     * Coalesces the updates of items until they are committed in one transaction. This class
+     * must only be used on the worker thread, except for {@link #dump}.
+     */
+    public static class WriteQueue {
+
+        // Commit at the latest a frame after the first pending update
+        private static final long MAX_FLUSH_DELAY_MS = 16;
+
+        private final Context mContext;
+        private final Handler mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        private final Runnable mFlushRunnable = this::flush;
+        private final MessageQueue.IdleHandler mIdleHandler = () -> {
+            flush();
+            return false;
+        };
+
+        private final LinkedHashMap<Integer, PendingWrite> mPending = new LinkedHashMap<>();
+        private boolean mFlushScheduled;
+
+        // Counters for dumpsys
+        private volatile long mWritesIssued;
+        private volatile long mRowsCommitted;
+        private volatile long mTransactions;
+
+        public WriteQueue(Context context) {
+            mContext = context;
+        }
+
+        /**
+         * Adds an update of {@param values} to the item {@param itemId}, merging it into the
+         * pending update of the same item if there is one.
+         * @param onCommitted called once the update was committed, replacing the callback of
+         *                    the previous update of the same item
+         */
+        void enqueue(int itemId, ContentValues values, Runnable onCommitted) {
+            mWritesIssued++;
+            PendingWrite pending = mPending.get(itemId);
+            if (pending == null) {
+                mPending.put(itemId, new PendingWrite(values, onCommitted));
+            } else {
+                pending.values.putAll(values);
+                pending.onCommitted = onCommitted;
+            }
+
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mWorkerHandler.postDelayed(mFlushRunnable, MAX_FLUSH_DELAY_MS);
+                Looper.myQueue().addIdleHandler(mIdleHandler);
+            }
+        }
+
+        /**
+         * Commits all pending updates in one transaction.
+         */
+        public void flush() {
+            if (mFlushScheduled) {
+                mFlushScheduled = false;
+                mWorkerHandler.removeCallbacks(mFlushRunnable);
+                Looper.myQueue().removeIdleHandler(mIdleHandler);
+            }
+            if (mPending.isEmpty()) {
+                return;
+            }
+
+            ArrayList<ContentProviderOperation> ops = new ArrayList<>(mPending.size());
+            ArrayList<Runnable> callbacks = new ArrayList<>(mPending.size());
+            for (Map.Entry<Integer, PendingWrite> entry : mPending.entrySet()) {
+                ops.add(ContentProviderOperation.newUpdate(Favorites.getContentUri(entry.getKey()))
+                        .withValues(entry.getValue().values).build());
+                callbacks.add(entry.getValue().onCommitted);
+            }
+            mPending.clear();
+
+            try {
+                ContentProviderResult[] results =
+                        mContext.getContentResolver().applyBatch(LauncherProvider.AUTHORITY, ops);
+                long rows = 0;
+                for (ContentProviderResult result : results) {
+                    if (result.count != null) {
+                        rows += result.count;
+                    }
+                }
+                mRowsCommitted += rows;
+                mTransactions++;
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to commit item updates", e);
+            }
+
+            // Update the model *after* the db operation
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+
+        public void dump(String prefix, PrintWriter writer) {
+            writer.println(prefix + "Model writes: issued=" + mWritesIssued
+                    + " rowsCommitted=" + mRowsCommitted
+                    + " transactions=" + mTransactions);
+        }
+
+        private static class PendingWrite {
+
+            final ContentValues values;
+            Runnable onCommitted;
+
+            PendingWrite(ContentValues values, Runnable onCommitted) {
+                // Copied, as the values of later updates are merged into it
+                this.values = new ContentValues(values);
+                this.onCommitted = onCommitted;
+            }
+        }
+    }
+
     /**
      * Utility class to verify model updates are propagated properly to the callback.
      */
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.notification;
+
+import android.os.SystemClock;
+import android.service.notification.StatusBarNotification;
+
+import com.android.launcher3.dot.DotInfo;
+import com.android.launcher3.util.PackageUserKey;
+
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Folds notification events into the {@link DotInfo} of each package on the worker thread, and
+ * hands out immutable snapshots of all dots together with the packages whose dots changed since
+ * the previous snapshot.
+ *
+ * Dots which were part of a snapshot are never changed, a changed dot is copied first. Dots which
+ * already changed since the last snapshot are updated in place, so a burst of events for a
+ * package only costs one copy. This class is not thread safe.
+ */
+class DotInfoAggregator {
+
+    private HashMap<PackageUserKey, DotInfo> mDotInfos = new HashMap<>();
+    /** Packages whose dots changed since the last snapshot, their dots are not shared yet. */
+    private final HashSet<PackageUserKey> mChangedKeys = new HashSet<>();
+
+    private final long mStartTime = SystemClock.uptimeMillis();
+    private int mEventCount;
+    private int mFoldedEventCount;
+    private int mFullRefreshCount;
+    private int mSnapshotCount;
+    private int mChangedKeyCount;
+    private int mMaxEventsPerSnapshot;
+    private int mEventsSinceSnapshot;
+
+    /**
+     * Returns whether the dot of {@param key} changed.
+     */
+    boolean onNotificationPosted(PackageUserKey key, NotificationKeyData notificationKey,
+            boolean shouldBeFilteredOut) {
+        onEvent(key);
+        DotInfo dotInfo = mDotInfos.get(key);
+        if (dotInfo == null && shouldBeFilteredOut) {
+            return false;
+        }
+        DotInfo updated = getWritableDotInfo(key, dotInfo);
+        boolean changed = shouldBeFilteredOut
+                ? updated.removeNotificationKey(notificationKey)
+                : updated.addOrUpdateNotificationKey(notificationKey);
+        return onDotInfoUpdated(key, updated, changed);
+    }
+
+    /**
+     * Returns whether the dot of {@param key} changed.
+     */
+    boolean onNotificationRemoved(PackageUserKey key, NotificationKeyData notificationKey) {
+        onEvent(key);
+        DotInfo dotInfo = mDotInfos.get(key);
+        if (dotInfo == null) {
+            return false;
+        }
+        DotInfo updated = getWritableDotInfo(key, dotInfo);
+        return onDotInfoUpdated(key, updated, updated.removeNotificationKey(notificationKey));
+    }
+
+    /**
+     * Replaces all dots with the ones of {@param activeNotifications}.
+     */
+    void onNotificationFullRefresh(List<StatusBarNotification> activeNotifications) {
+        mFullRefreshCount++;
+        HashMap<PackageUserKey, DotInfo> dotInfos = new HashMap<>();
+        for (StatusBarNotification notification : activeNotifications) {
+            PackageUserKey key = PackageUserKey.fromNotification(notification);
+            DotInfo dotInfo = dotInfos.get(key);
+            if (dotInfo == null) {
+                dotInfo = new DotInfo();
+                dotInfos.put(key, dotInfo);
+            }
+            dotInfo.addOrUpdateNotificationKey(NotificationKeyData.fromNotification(notification));
+        }
+        mDotInfos = dotInfos;
+        // All dots are delivered by the next full snapshot
+        mChangedKeys.clear();
+    }
+
+    /**
+     * Returns the current dots and the packages whose dots changed since the last snapshot.
+     * @param full if true, the changed packages are not tracked and all dots should be updated,
+     *             like after a full refresh
+     */
+    Snapshot takeSnapshot(boolean full) {
+        Snapshot snapshot = new Snapshot(
+                Collections.unmodifiableMap(new HashMap<>(mDotInfos)),
+                full ? null : Collections.unmodifiableSet(new HashSet<>(mChangedKeys)));
+        mSnapshotCount++;
+        mChangedKeyCount += mChangedKeys.size();
+        mMaxEventsPerSnapshot = Math.max(mMaxEventsPerSnapshot, mEventsSinceSnapshot);
+        mEventsSinceSnapshot = 0;
+        mChangedKeys.clear();
+        return snapshot;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        long elapsedMs = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+        writer.println(prefix + "DotInfoAggregator:");
+        writer.println(prefix + "  dots=" + mDotInfos.size()
+                + " pendingChanges=" + mChangedKeys.size());
+        writer.println(prefix + "  events=" + mEventCount
+                + " eventsPerMinute=" + (mEventCount * 60000L / elapsedMs)
+                + " folded=" + mFoldedEventCount
+                + " fullRefreshes=" + mFullRefreshCount);
+        writer.println(prefix + "  snapshots=" + mSnapshotCount
+                + " changedKeys=" + mChangedKeyCount
+                + " maxEventsPerSnapshot=" + mMaxEventsPerSnapshot);
+    }
+
+    private void onEvent(PackageUserKey key) {
+        mEventCount++;
+        mEventsSinceSnapshot++;
+        if (mChangedKeys.contains(key)) {
+            // Will be delivered with the other changes of this package
+            mFoldedEventCount++;
+        }
+    }
+
+    private DotInfo getWritableDotInfo(PackageUserKey key, DotInfo dotInfo) {
+        if (dotInfo == null) {
+            return new DotInfo();
+        }
+        return mChangedKeys.contains(key) ? dotInfo : new DotInfo(dotInfo);
+    }
+
+    private boolean onDotInfoUpdated(PackageUserKey key, DotInfo updated, boolean changed) {
+        if (!changed) {
+            return false;
+        }
+        if (updated.getNotificationKeys().isEmpty()) {
+            mDotInfos.remove(key);
+        } else {
+            mDotInfos.put(key, updated);
+        }
+        mChangedKeys.add(key);
+        return true;
+    }
+
+    /**
+     * An immutable state of the dots.
+     */
+    static class Snapshot {
+
+        final Map<PackageUserKey, DotInfo> dotInfos;
+        /** Null if all dots may have changed */
+        final Set<PackageUserKey> changedKeys;
+
+        Snapshot(Map<PackageUserKey, DotInfo> dotInfos, Set<PackageUserKey> changedKeys) {
+            this.dotInfos = dotInfos;
+            this.changedKeys = changedKeys;
+        }
+    }
+}
@@ -34,16 +34,22 @@ import android.util.Pair;
 import androidx.annotation.Keep;
 import com.android.launcher3.LauncherModel;
 import com.android.launcher3.Utilities;
+import com.android.launcher3.dot.DotInfo;
 import com.android.launcher3.util.IntSet;
 import com.android.launcher3.util.PackageUserKey;
 import com.android.launcher3.util.SecureSettingsObserver;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import androidx.annotation.Nullable;
 
@@ -63,6 +69,10 @@ public class NotificationListener extends NotificationListenerService {
     private static final int MSG_NOTIFICATION_POSTED = 1;
     private static final int MSG_NOTIFICATION_REMOVED = 2;
     private static final int MSG_NOTIFICATION_FULL_REFRESH = 3;
+    private static final int MSG_DOTS_SNAPSHOT = 4;
+
+    // Changes are collected for about a frame before they are sent to the UI
+    private static final long SNAPSHOT_DELAY_MS = 16;
 
     private static NotificationListener sNotificationListenerInstance = null;
     private static NotificationsChangedListener sNotificationsChangedListener;
@@ -73,6 +83,8 @@ public class NotificationListener extends NotificationListenerService {
     private final Handler mWorkerHandler;
     private final Handler mUiHandler;
     private final Ranking mTempRanking = new Ranking();
+    /** Only accessed on the worker thread */
+    private final DotInfoAggregator mDotInfoAggregator = new DotInfoAggregator();
     /** Maps groupKey's to the corresponding group of notifications. */
     private final Map<String, NotificationGroup> mNotificationGroupMap = new HashMap<>();
     /** Maps keys to their corresponding current group key */
@@ -87,11 +99,25 @@ public class NotificationListener extends NotificationListenerService {
         @Override
         public boolean handleMessage(Message message) {
             switch (message.what) {
-                case MSG_NOTIFICATION_POSTED:
-                    mUiHandler.obtainMessage(message.what, message.obj).sendToTarget();
+                case MSG_NOTIFICATION_POSTED: {
+                    NotificationPostedMsg msg = (NotificationPostedMsg) message.obj;
+                    if (mDotInfoAggregator.onNotificationPosted(msg.packageUserKey,
+                            msg.notificationKey, msg.shouldBeFilteredOut)) {
+                        scheduleDotsSnapshot();
+                    }
+                    break;
+                }
+                case MSG_NOTIFICATION_REMOVED: {
+                    Pair<PackageUserKey, NotificationKeyData> pair
+                            = (Pair<PackageUserKey, NotificationKeyData>) message.obj;
+                    if (mDotInfoAggregator.onNotificationRemoved(pair.first, pair.second)) {
+                        scheduleDotsSnapshot();
+                    }
                     break;
-                case MSG_NOTIFICATION_REMOVED:
-                    mUiHandler.obtainMessage(message.what, message.obj).sendToTarget();
+                }
+                case MSG_DOTS_SNAPSHOT:
+                    mUiHandler.obtainMessage(MSG_DOTS_SNAPSHOT,
+                            mDotInfoAggregator.takeSnapshot(false /* full */)).sendToTarget();
                     break;
                 case MSG_NOTIFICATION_FULL_REFRESH:
                     List<StatusBarNotification> activeNotifications;
@@ -107,7 +133,14 @@ public class NotificationListener extends NotificationListenerService {
                         activeNotifications = new ArrayList<StatusBarNotification>();
                     }
 
-                    mUiHandler.obtainMessage(message.what, activeNotifications).sendToTarget();
+                    if (activeNotifications == null) {
+                        break;
+                    }
+                    mDotInfoAggregator.onNotificationFullRefresh(activeNotifications);
+                    // Pending changes are part of the full snapshot
+                    mWorkerHandler.removeMessages(MSG_DOTS_SNAPSHOT);
+                    mUiHandler.obtainMessage(MSG_DOTS_SNAPSHOT,
+                            mDotInfoAggregator.takeSnapshot(true /* full */)).sendToTarget();
                     break;
             }
             return true;
@@ -118,24 +151,12 @@ public class NotificationListener extends NotificationListenerService {
         @Override
         public boolean handleMessage(Message message) {
             switch (message.what) {
-                case MSG_NOTIFICATION_POSTED:
-                    if (sNotificationsChangedListener != null) {
-                        NotificationPostedMsg msg = (NotificationPostedMsg) message.obj;
-                        sNotificationsChangedListener.onNotificationPosted(msg.packageUserKey,
-                                msg.notificationKey, msg.shouldBeFilteredOut);
-                    }
-                    break;
-                case MSG_NOTIFICATION_REMOVED:
+                case MSG_DOTS_SNAPSHOT:
                     if (sNotificationsChangedListener != null) {
-                        Pair<PackageUserKey, NotificationKeyData> pair
-                                = (Pair<PackageUserKey, NotificationKeyData>) message.obj;
-                        sNotificationsChangedListener.onNotificationRemoved(pair.first, pair.second);
-                    }
-                    break;
-                case MSG_NOTIFICATION_FULL_REFRESH:
-                    if (sNotificationsChangedListener != null) {
-                        sNotificationsChangedListener.onNotificationFullRefresh(
-                                (List<StatusBarNotification>) message.obj);
+                        DotInfoAggregator.Snapshot snapshot =
+                                (DotInfoAggregator.Snapshot) message.obj;
+                        sNotificationsChangedListener.onNotificationDotsChanged(
+                                snapshot.dotInfos, snapshot.changedKeys);
                     }
                     break;
             }
@@ -175,8 +196,8 @@ public class NotificationListener extends NotificationListenerService {
         } else if (!sIsCreated && sNotificationsChangedListener != null) {
             // User turned off dots globally, so we unbound this service;
             // tell the listener that there are no notifications to remove dots.
-            sNotificationsChangedListener.onNotificationFullRefresh(
-                    Collections.<StatusBarNotification>emptyList());
+            sNotificationsChangedListener.onNotificationDotsChanged(
+                    Collections.<PackageUserKey, DotInfo>emptyMap(), null);
         }
     }
 
@@ -214,6 +235,16 @@ public class NotificationListener extends NotificationListenerService {
         }
     }
 
+    /**
+     * Sends the changed dots to the UI once the events of the current frame are folded in.
+     * Must be called on the worker thread.
+     */
+    private void scheduleDotsSnapshot() {
+        if (!mWorkerHandler.hasMessages(MSG_DOTS_SNAPSHOT)) {
+            mWorkerHandler.sendEmptyMessageDelayed(MSG_DOTS_SNAPSHOT, SNAPSHOT_DELAY_MS);
+        }
+    }
+
     private void onNotificationFullRefresh() {
         mWorkerHandler.obtainMessage(MSG_NOTIFICATION_FULL_REFRESH).sendToTarget();
         if (sStatusBarNotificationsChangedListener != null) {
@@ -290,6 +321,20 @@ public class NotificationListener extends NotificationListenerService {
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        // The aggregator is only accessed on the worker thread
+        FutureTask<Void> dump = new FutureTask<>(
+                () -> mDotInfoAggregator.dump("", writer), null);
+        mWorkerHandler.post(dump);
+        try {
+            dump.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Failed to dump notification dots", e);
+        }
+    }
+
     public void cancelNotificationFromLauncher(String key) {
         mLastKeyDismissedByLauncher = key;
         cancelNotification(key);
@@ -398,11 +443,12 @@ public class NotificationListener extends NotificationListenerService {
     }
 
     public interface NotificationsChangedListener {
-        void onNotificationPosted(PackageUserKey postedPackageUserKey,
-                NotificationKeyData notificationKey, boolean shouldBeFilteredOut);
-        void onNotificationRemoved(PackageUserKey removedPackageUserKey,
-                NotificationKeyData notificationKey);
-        void onNotificationFullRefresh(List<StatusBarNotification> activeNotifications);
+        /**
+         * Called with an immutable map of all dots.
+         * @param changedKeys the packages whose dots changed, or null if all of them may have
+         */
+        void onNotificationDotsChanged(Map<PackageUserKey, DotInfo> dotInfos,
+                @Nullable Set<PackageUserKey> changedKeys);
     }
 
     public interface StatusBarNotificationsChangedListener {
@@ -19,6 +19,8 @@ package com.android.launcher3.popup;
 import android.content.ComponentName;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.Choreographer.FrameCallback;
 
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.Launcher;
@@ -32,14 +34,18 @@ import com.android.launcher3.util.PackageUserKey;
 import com.android.launcher3.widget.WidgetListRowEntry;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Predicate;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * Provides data for the popup menu that appears after long-clicking on apps.
@@ -53,96 +59,63 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
 
     /** Maps launcher activity components to a count of how many shortcuts they have. */
     private HashMap<ComponentKey, Integer> mDeepShortcutMap = new HashMap<>();
-    /** Maps packages to their DotInfo's . */
-    private Map<PackageUserKey, DotInfo> mPackageUserToDotInfos = new HashMap<>();
+    /** Maps packages to their DotInfo's, an immutable snapshot from NotificationListener. */
+    private Map<PackageUserKey, DotInfo> mPackageUserToDotInfos = Collections.emptyMap();
     /** Maps packages to their Widgets */
     private ArrayList<WidgetListRowEntry> mAllWidgets = new ArrayList<>();
 
+    /** Packages whose dots changed since the last dot update, which is done once per frame. */
+    private final HashSet<PackageUserKey> mPendingDotUpdates = new HashSet<>();
+    private final FrameCallback mDotUpdateCallback = frameTimeNanos -> applyDotUpdates();
+
     private PopupDataChangeListener mChangeListener = PopupDataChangeListener.INSTANCE;
 
     public PopupDataProvider(Launcher launcher) {
         mLauncher = launcher;
     }
 
-    private void updateNotificationDots(Predicate<PackageUserKey> updatedDots) {
-        mLauncher.updateNotificationDots(updatedDots);
-        mChangeListener.onNotificationDotsUpdated(updatedDots);
+    private void updateNotificationDots(Collection<PackageUserKey> updatedDots) {
+        scheduleDotUpdate();
+        mPendingDotUpdates.addAll(updatedDots);
     }
 
-    @Override
-    public void onNotificationPosted(PackageUserKey postedPackageUserKey,
-            NotificationKeyData notificationKey, boolean shouldBeFilteredOut) {
-        DotInfo dotInfo = mPackageUserToDotInfos.get(postedPackageUserKey);
-        boolean dotShouldBeRefreshed;
-        if (dotInfo == null) {
-            if (!shouldBeFilteredOut) {
-                DotInfo newDotInfo = new DotInfo();
-                newDotInfo.addOrUpdateNotificationKey(notificationKey);
-                mPackageUserToDotInfos.put(postedPackageUserKey, newDotInfo);
-                dotShouldBeRefreshed = true;
-            } else {
-                dotShouldBeRefreshed = false;
-            }
-        } else {
-            dotShouldBeRefreshed = shouldBeFilteredOut
-                    ? dotInfo.removeNotificationKey(notificationKey)
-                    : dotInfo.addOrUpdateNotificationKey(notificationKey);
-            if (dotInfo.getNotificationKeys().size() == 0) {
-                mPackageUserToDotInfos.remove(postedPackageUserKey);
-            }
-        }
-        if (dotShouldBeRefreshed) {
-            updateNotificationDots(t -> postedPackageUserKey.equals(t));
+    private void scheduleDotUpdate() {
+        if (mPendingDotUpdates.isEmpty()) {
+            Choreographer.getInstance().postFrameCallback(mDotUpdateCallback);
         }
     }
 
-    @Override
-    public void onNotificationRemoved(PackageUserKey removedPackageUserKey,
-            NotificationKeyData notificationKey) {
-        DotInfo oldDotInfo = mPackageUserToDotInfos.get(removedPackageUserKey);
-        if (oldDotInfo != null && oldDotInfo.removeNotificationKey(notificationKey)) {
-            if (oldDotInfo.getNotificationKeys().size() == 0) {
-                mPackageUserToDotInfos.remove(removedPackageUserKey);
-            }
-            updateNotificationDots(t -> removedPackageUserKey.equals(t));
-            trimNotifications(mPackageUserToDotInfos);
-        }
+    private void applyDotUpdates() {
+        HashSet<PackageUserKey> updatedDots = new HashSet<>(mPendingDotUpdates);
+        mPendingDotUpdates.clear();
+        mLauncher.updateNotificationDots(updatedDots);
+        mChangeListener.onNotificationDotsUpdated(updatedDots::contains);
     }
 
     @Override
-    public void onNotificationFullRefresh(List<StatusBarNotification> activeNotifications) {
-        if (activeNotifications == null) return;
-        // This will contain the PackageUserKeys which have updated dots.
-        HashMap<PackageUserKey, DotInfo> updatedDots = new HashMap<>(mPackageUserToDotInfos);
-        mPackageUserToDotInfos.clear();
-        for (StatusBarNotification notification : activeNotifications) {
-            PackageUserKey packageUserKey = PackageUserKey.fromNotification(notification);
-            DotInfo dotInfo = mPackageUserToDotInfos.get(packageUserKey);
-            if (dotInfo == null) {
-                dotInfo = new DotInfo();
-                mPackageUserToDotInfos.put(packageUserKey, dotInfo);
+    public void onNotificationDotsChanged(Map<PackageUserKey, DotInfo> dotInfos,
+            @Nullable Set<PackageUserKey> changedKeys) {
+        Map<PackageUserKey, DotInfo> previousDotInfos = mPackageUserToDotInfos;
+        mPackageUserToDotInfos = dotInfos;
+        if (changedKeys == null) {
+            // Update the dots which appeared or disappeared
+            HashSet<PackageUserKey> updatedDots = new HashSet<>();
+            for (PackageUserKey key : previousDotInfos.keySet()) {
+                if (!dotInfos.containsKey(key)) {
+                    updatedDots.add(key);
+                }
             }
-            dotInfo.addOrUpdateNotificationKey(NotificationKeyData.fromNotification(notification));
-        }
-
-        // Add and remove from updatedDots so it contains the PackageUserKeys of updated dots.
-        for (PackageUserKey packageUserKey : mPackageUserToDotInfos.keySet()) {
-            DotInfo prevDot = updatedDots.get(packageUserKey);
-            DotInfo newDot = mPackageUserToDotInfos.get(packageUserKey);
-            if (prevDot == null) {
-                updatedDots.put(packageUserKey, newDot);
-            } else {
-                // No need to update the dot if it already existed (no visual change).
-                // Note that if the dot was removed entirely, we wouldn't reach this point because
-                // this loop only includes active notifications added above.
-                updatedDots.remove(packageUserKey);
+            for (PackageUserKey key : dotInfos.keySet()) {
+                if (!previousDotInfos.containsKey(key)) {
+                    updatedDots.add(key);
+                }
             }
+            changedKeys = updatedDots;
         }
-
-        if (!updatedDots.isEmpty()) {
-            updateNotificationDots(updatedDots::containsKey);
+        if (!changedKeys.isEmpty()) {
+            updateNotificationDots(changedKeys);
         }
-        trimNotifications(updatedDots);
+        trimNotifications(dotInfos);
     }
 
     private void trimNotifications(Map<PackageUserKey, DotInfo> updatedDots) {
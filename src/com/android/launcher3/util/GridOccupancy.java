@@ -4,20 +4,35 @@ import android.graphics.Rect;
 
 import com.android.launcher3.ItemInfo;
 
+import java.util.Arrays;
+
 /**
  * Utility object to manage the occupancy in a grid.
+ *
+ * Each row is stored as a bitmask of its occupied columns, so that a span can be checked with one
+ * AND per row, and the whole grid can be copied, saved and restored cheaply.
  */
 public class GridOccupancy {
 
+    // One bit per column
+    public static final int MAX_COUNT_X = Long.SIZE;
+
     private final int mCountX;
     private final int mCountY;
 
-    public final boolean[][] cells;
+    private final long[] mRows;
 
     public GridOccupancy(int countX, int countY) {
+        if (countX > MAX_COUNT_X) {
+            throw new IllegalArgumentException("At most " + MAX_COUNT_X + " columns are supported");
+        }
         mCountX = countX;
         mCountY = countY;
-        cells = new boolean[countX][countY];
+        mRows = new long[countY];
+    }
+
+    public boolean isOccupied(int x, int y) {
+        return (mRows[y] & (1L << x)) != 0;
     }
 
     /**
@@ -31,54 +46,85 @@ public class GridOccupancy {
      */
     public boolean findVacantCell(int[] vacantOut, int spanX, int spanY) {
         for (int y = 0; (y + spanY) <= mCountY; y++) {
-            for (int x = 0; (x + spanX) <= mCountX; x++) {
-                boolean available = !cells[x][y];
-                out:
-                for (int i = x; i < x + spanX; i++) {
-                    for (int j = y; j < y + spanY; j++) {
-                        available = available && !cells[i][j];
-                        if (!available) break out;
-                    }
-                }
-                if (available) {
-                    vacantOut[0] = x;
-                    vacantOut[1] = y;
-                    return true;
-                }
+            long vacant = getVacantMask(y, spanX, spanY);
+            if (vacant != 0) {
+                vacantOut[0] = Long.numberOfTrailingZeros(vacant);
+                vacantOut[1] = y;
+                return true;
             }
         }
         return false;
     }
 
-    public void copyTo(GridOccupancy dest) {
-        for (int i = 0; i < mCountX; i++) {
-            for (int j = 0; j < mCountY; j++) {
-                dest.cells[i][j] = cells[i][j];
-            }
+    /**
+     * Returns a mask with the bit of every column x set for which the region starting at x, y
+     * with the given span is vacant.
+     */
+    public long getVacantMask(int y, int spanX, int spanY) {
+        if (spanX <= 0 || spanY <= 0 || spanX > mCountX || y < 0 || y + spanY > mCountY) {
+            return 0;
+        }
+        long occupied = 0;
+        for (int j = y; j < y + spanY; j++) {
+            occupied |= mRows[j];
         }
+        long vacant = ~occupied & spanMask(0, mCountX);
+        // Keep the columns where the next spanX - 1 columns are vacant as well
+        long fits = vacant;
+        for (int i = 1; i < spanX && fits != 0; i++) {
+            fits &= vacant >>> i;
+        }
+        return fits;
+    }
+
+    public void copyTo(GridOccupancy dest) {
+        System.arraycopy(mRows, 0, dest.mRows, 0, Math.min(mCountY, dest.mCountY));
+    }
+
+    /**
+     * Returns a copy of the occupied cells, which can be put back with {@link #restore(long[])}.
+     */
+    public long[] snapshot() {
+        return mRows.clone();
+    }
+
+    public void restore(long[] snapshot) {
+        System.arraycopy(snapshot, 0, mRows, 0, mCountY);
     }
 
     public boolean isRegionVacant(int x, int y, int spanX, int spanY) {
+        return isRegionVacant(x, y, spanX, spanY, null);
+    }
+
+    /**
+     * Returns true if the region is vacant, only considering the cells of the region which are
+     * occupied in {@param block}, which spans spanX x spanY. If block is null, all cells of the
+     * region are considered.
+     */
+    public boolean isRegionVacant(int x, int y, int spanX, int spanY, GridOccupancy block) {
         int x2 = x + spanX - 1;
         int y2 = y + spanY - 1;
         if (x < 0 || y < 0 || x2 >= mCountX || y2 >= mCountY) {
             return false;
         }
-        for (int i = x; i <= x2; i++) {
-            for (int j = y; j <= y2; j++) {
-                if (cells[i][j]) {
-                    return false;
-                }
+        long mask = spanMask(0, spanX);
+        for (int j = 0; j < spanY; j++) {
+            long blockRow = block == null ? mask : block.mRows[j];
+            if (((mRows[y + j] >>> x) & mask & blockRow) != 0) {
+                return false;
             }
         }
         return true;
     }
 
     public void markCells(int cellX, int cellY, int spanX, int spanY, boolean value) {
-        if (cellX < 0 || cellY < 0) return;
-        for (int x = cellX; x < cellX + spanX && x < mCountX; x++) {
-            for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
-                cells[x][y] = value;
+        if (cellX < 0 || cellY < 0 || cellX >= mCountX) return;
+        long mask = spanMask(cellX, Math.min(spanX, mCountX - cellX));
+        for (int y = cellY; y < cellY + spanY && y < mCountY; y++) {
+            if (value) {
+                mRows[y] |= mask;
+            } else {
+                mRows[y] &= ~mask;
             }
         }
     }
@@ -96,6 +142,17 @@ public class GridOccupancy {
     }
 
     public void clear() {
-        markCells(0, 0, mCountX, mCountY, false);
+        Arrays.fill(mRows, 0);
+    }
+
+    /**
+     * Returns a mask of {@param span} columns starting at {@param x}.
+     */
+    private static long spanMask(int x, int span) {
+        if (span <= 0) {
+            return 0;
+        }
+        long mask = span >= Long.SIZE ? -1L : (1L << span) - 1;
+        return mask << x;
     }
 }
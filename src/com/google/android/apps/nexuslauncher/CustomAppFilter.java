@@ -24,6 +24,11 @@ public class CustomAppFilter extends LawnchairAppFilter {
                 && (user == null || !isHiddenApp(mContext, new ComponentKey(componentName, user)));
     }
 
+    @Override
+    public boolean isSearchableHiddenApp(ComponentName componentName, UserHandle user) {
+        return super.shouldShowApp(componentName, user);
+    }
+
     static void setComponentNameState(Context context, ComponentKey key, boolean hidden) {
         String comp = key.toString();
         Set<String> hiddenApps = new HashSet<>(getHiddenApps(context));
@@ -14,10 +14,8 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import ch.deletescape.lawnchair.LawnchairAppFilter;
 import ch.deletescape.lawnchair.allapps.FuzzyAppSearchAlgorithm;
 import com.android.launcher3.AllAppsList;
-import com.android.launcher3.AppFilter;
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.BuildConfig;
 import com.android.launcher3.LauncherAppState;
@@ -41,8 +39,6 @@ public class AppSearchProvider extends ContentProvider
     private LooperExecutor mLooper;
     private LauncherAppState mApp;
 
-    private AppFilter mBaseFilter;
-
     public AppSearchProvider() {
         mPipeDataWriter = new PipeDataWriter<Future>() {
             @Override
@@ -179,11 +175,6 @@ public class AppSearchProvider extends ContentProvider
         throw new UnsupportedOperationException();
     }
 
-    public AppFilter getBaseFilter() {
-        if (mBaseFilter == null) mBaseFilter = new LawnchairAppFilter(getContext());
-        return mBaseFilter;
-    }
-
     class f implements Callable<List<AppInfo>>, LauncherModel.ModelUpdateTask
     {
         private final FutureTask<List<AppInfo>> eN;
@@ -207,7 +198,8 @@ public class AppSearchProvider extends ContentProvider
                 Log.d("AppSearchProvider", "Loading workspace failed");
                 return Collections.emptyList();
             }
-            return FuzzyAppSearchAlgorithm.query(mApp.getContext(), mQuery, mAllAppsList.data, getBaseFilter());
+            return FuzzyAppSearchAlgorithm.query(mApp.getContext(), mQuery, mAllAppsList.getSearchIndex(),
+                    mAllAppsList.getHiddenApps());
         }
 
         public void init(final LauncherAppState mApp, final LauncherModel mModel, final BgDataModel mBgDataModel, final AllAppsList mAllAppsList, final Executor executor) {
@@ -77,11 +77,35 @@ public class WidgetsModel {
         return result;
     }
 
+    /**
+     * Queries all the widget providers and shortcut config activities without updating the model,
+     * so unlike {@link #update}, it can be called from any thread.
+     */
+    public static ProviderList queryAllProviders(Context context) {
+        return new ProviderList(
+                AppWidgetManagerCompat.getInstance(context).getAllProviders(null),
+                LauncherAppsCompat.getInstance(context).getCustomShortcutActivityList(null));
+    }
+
     /**
      * @param packageUser If null, all widgets and shortcuts are updated and returned, otherwise
      *                    only widgets and shortcuts associated with the package/user are.
      */
     public List<ComponentWithLabel> update(LauncherAppState app, @Nullable PackageUserKey packageUser) {
+        return update(app, packageUser, null);
+    }
+
+    /**
+     * Updates all widgets and shortcuts from {@param providers}, as returned by
+     * {@link #queryAllProviders}.
+     */
+    public List<ComponentWithLabel> updateFromProviders(LauncherAppState app,
+            ProviderList providers) {
+        return update(app, null, providers);
+    }
+
+    private List<ComponentWithLabel> update(LauncherAppState app,
+            @Nullable PackageUserKey packageUser, @Nullable ProviderList providers) {
         Preconditions.assertWorkerThread();
 
         Context context = app.getContext();
@@ -92,8 +116,9 @@ public class WidgetsModel {
             PackageManager pm = app.getContext().getPackageManager();
 
             // Widgets
-            AppWidgetManagerCompat widgetManager = AppWidgetManagerCompat.getInstance(context);
-            for (AppWidgetProviderInfo widgetInfo : widgetManager.getAllProviders(packageUser)) {
+            List<AppWidgetProviderInfo> widgets = providers != null ? providers.widgets
+                    : AppWidgetManagerCompat.getInstance(context).getAllProviders(packageUser);
+            for (AppWidgetProviderInfo widgetInfo : widgets) {
                 LauncherAppWidgetProviderInfo launcherWidgetInfo =
                         LauncherAppWidgetProviderInfo.fromProviderInfo(context, widgetInfo);
 
@@ -103,8 +128,10 @@ public class WidgetsModel {
             }
 
             // Shortcuts
-            for (ShortcutConfigActivityInfo info : LauncherAppsCompat.getInstance(context)
-                    .getCustomShortcutActivityList(packageUser)) {
+            List<ShortcutConfigActivityInfo> shortcuts = providers != null ? providers.shortcuts
+                    : LauncherAppsCompat.getInstance(context)
+                            .getCustomShortcutActivityList(packageUser);
+            for (ShortcutConfigActivityInfo info : shortcuts) {
                 widgetsAndShortcuts.add(new WidgetItem(info, app.getIconCache(), pm));
                 updatedItems.add(info);
             }
@@ -238,4 +265,19 @@ public class WidgetsModel {
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The widget providers and shortcut config activities of all users.
+     */
+    public static class ProviderList {
+
+        final List<AppWidgetProviderInfo> widgets;
+        final List<ShortcutConfigActivityInfo> shortcuts;
+
+        ProviderList(List<AppWidgetProviderInfo> widgets,
+                List<ShortcutConfigActivityInfo> shortcuts) {
+            this.widgets = widgets;
+            this.shortcuts = shortcuts;
+        }
+    }
+}
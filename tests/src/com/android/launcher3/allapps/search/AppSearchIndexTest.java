@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.launcher3.allapps.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentName;
+import android.os.Process;
+
+import com.android.launcher3.AppInfo;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+/**
+ * Unit tests for {@link AppSearchIndex}
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AppSearchIndexTest {
+
+    private AppSearchIndex mIndex;
+
+    @Before
+    public void setup() {
+        mIndex = new AppSearchIndex();
+    }
+
+    @Test
+    public void testTitleMatches() {
+        AppInfo whiteCow = add("whiteCow");
+        AppInfo cats = add("cats&Dogs");
+        AppInfo alpha = add("Alpha");
+        AppInfo korean = add("다운로드 드라이브");
+        add("whitecowcow");
+
+        assertMatches("cow", whiteCow);
+        assertMatches("dog", cats);
+        assertMatches("&", cats);
+        assertMatches("ål", alpha);
+        assertMatches("ㄷ", korean);
+        assertMatches("x");
+    }
+
+    @Test
+    public void testRefinedQuery() {
+        AppInfo maps = add("Maps");
+        AppInfo mail = add("Mail");
+
+        assertMatches("m", maps, mail);
+        assertMatches("ma", maps, mail);
+        assertMatches("map", maps);
+
+        mIndex.remove(maps);
+        assertMatches("map");
+
+        mail.title = "Map Mail";
+        mIndex.addOrUpdate(mail);
+        assertMatches("map", mail);
+    }
+
+    @Test
+    public void testFuzzyCandidates() {
+        AppInfo maps = add("Google Maps");
+        AppInfo calendar = add("Calendar");
+
+        List<AppInfo> candidates = mIndex.getFuzzyCandidates("maps");
+        assertTrue(candidates.contains(maps));
+        assertEquals(1, candidates.size());
+
+        // Too short to have trigrams
+        assertEquals(2, mIndex.getFuzzyCandidates("ca").size());
+        assertTrue(mIndex.getFuzzyCandidates("calnedar").contains(calendar));
+    }
+
+    private void assertMatches(String query, AppInfo... expected) {
+        List<AppInfo> expectedList = new ArrayList<>();
+        for (AppInfo info : expected) {
+            expectedList.add(info);
+        }
+        assertEquals(expectedList, mIndex.findTitleMatches(query));
+    }
+
+    private AppInfo add(String title) {
+        AppInfo info = new AppInfo();
+        info.title = title;
+        info.componentName = new ComponentName("Test", title);
+        info.user = Process.myUserHandle();
+        mIndex.addOrUpdate(info);
+        return info;
+    }
+}